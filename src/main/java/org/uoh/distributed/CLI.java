@@ -5,11 +5,15 @@ import org.kohsuke.args4j.Option;
 import org.uoh.distributed.game.Foobar;
 import org.uoh.distributed.peer.Communicator;
 import org.uoh.distributed.peer.Node;
+import org.uoh.distributed.peer.NodeIds;
 import org.uoh.distributed.peer.NodeServer;
+import org.uoh.distributed.peer.RoutingTable;
+import org.uoh.distributed.peer.RoutingTableEntry;
 import org.uoh.distributed.utils.Constants;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.List;
 import java.util.Scanner;
 import java.util.UUID;
 
@@ -34,6 +38,14 @@ public class CLI
 
         Constants.BOOTSTRAP_PORT = options.getBsPort();
         Constants.BOOTSTRAP_IP = options.getBsIpAddress();
+        Constants.VIRTUAL_THREADS = Constants.VIRTUAL_THREADS || options.isVirtualThreads();
+        Constants.PROBE_PERIOD_MS = options.getProbePeriod();
+        Constants.PROBE_HELPERS = options.getProbeHelpers();
+        Constants.SUSPICION_TIMEOUT_MS = options.getSuspicionTimeout();
+        Constants.VIRTUAL_NODES = options.getVirtualNodes();
+        Constants.REPLICATION_FACTOR = options.getReplicas();
+        Constants.WRITE_QUORUM = options.getWriteQuorum();
+        Constants.READ_QUORUM = options.getReadQuorum();
 
         Node node;
         try
@@ -42,7 +54,7 @@ public class CLI
             NodeServer ns;
 
             cp = new Communicator();
-            ns = new NodeServer( options.getPort() );
+            ns = new NodeServer( options.getPort(), options.getLoopThreads() );
 
 
             node = new Node( options.getPort(), options.getIpAddress(), options.getUsername(), cp, ns );
@@ -73,17 +85,53 @@ public class CLI
                         started = false;
                         break;
                     case "node":
-                        System.out.println( node.getNodeId() );
+                        System.out.println( NodeIds.toString( node.getNodeId() ) );
                         break;
                     case "state":
                         System.out.println( node.getState() );
                         break;
                     case "routingTable":
                         node.getRoutingTable().getEntries()
-                            .forEach( entry -> System.out.println( entry.getNodeId() + " -> " + entry.getAddress().toString() ) );
+                            .forEach( entry -> System.out.println( NodeIds.toString( entry.getNodeId() ) + " -> " + entry.getAddress().toString() ) );
+                        break;
+                    case "ring":
+                        RoutingTable routingTable = node.getRoutingTable();
+                        System.out.println( "predecessor -> " + routingTable.getPredecessor() );
+                        System.out.println( "self -> " + routingTable.getSelf() );
+                        System.out.println( "successor -> " + routingTable.getSuccessor() );
+                        List<RoutingTableEntry> fingers = routingTable.getFingers();
+                        for( int i = 0; i < fingers.size(); i++ )
+                        {
+                            System.out.println( "finger " + i + " (" + NodeIds.toString( routingTable.fingerStart( i ) ) + ") -> " + fingers.get( i ) );
+                        }
+                        break;
+                    case "lookup":
+                        System.out.println( node.findNodeSuccessor( Long.parseUnsignedLong( parts[1].trim() ) ).join() );
+                        break;
+                    case "owner":
+                        long key = NodeIds.key( parts[1].trim() );
+                        System.out.println( NodeIds.toString( key ) + " -> " + node.getRoutingTable().ownerOf( key ) );
+                        break;
+                    case "put":
+                        String[] entry = parts[1].trim().split( " ", 2 );
+                        node.put( entry[0], entry.length > 1 ? entry[1] : "" ).join();
+                        System.out.println( "Stored " + entry[0] );
+                        break;
+                    case "get":
+                        System.out.println( node.get( parts[1].trim() ).join().orElse( "<not found>" ) );
+                        break;
+                    case "entryTable":
+                        node.getEntryTable().getEntries().forEach( ( k, v ) -> System.out.println( k + " -> " + v ) );
+                        break;
+                    case "lookupCache":
+                        System.out.println( node.getLookupCache() );
+                        break;
+                    case "rtt":
+                        node.getRttTracker().getEstimates()
+                            .forEach( ( peer, estimate ) -> System.out.println( peer + " -> " + estimate ) );
                         break;
                     case "help":
-                        System.out.println( "stop | node | state | search | routingTable | myFiles | entryTable" );
+                        System.out.println( "stop | node | state | search | routingTable | ring | lookup <position> (node ID successor) | lookupCache | owner <key> (replica owner) | put <key> <value> | get <key> | rtt | myFiles | entryTable" );
                         break;
                     default:
                         System.out.println( "Command not identified" );
@@ -116,6 +164,33 @@ public class CLI
         @Option(name = "-username", usage = "Username of the node (default: A random UUID)")
         private String username = UUID.randomUUID().toString();
 
+        @Option(name = "-loop-threads", usage = "Number of receive loops of the node server. Needs SO_REUSEPORT when more than 1 (default: 1)")
+        private int loopThreads = Constants.NODE_SERVER_LOOP_THREADS;
+
+        @Option(name = "-virtual-threads", usage = "Handle requests, retries and periodic tasks on virtual threads. Needs Java 21+ (default: false)")
+        private boolean virtualThreads;
+
+        @Option(name = "-probe-period", usage = "Milliseconds between two probes of the failure detector (default: 1000)")
+        private int probePeriod = Constants.PROBE_PERIOD_MS;
+
+        @Option(name = "-probe-helpers", usage = "Number of nodes asked to probe a node that didn't answer (default: 3)")
+        private int probeHelpers = Constants.PROBE_HELPERS;
+
+        @Option(name = "-suspicion-timeout", usage = "Milliseconds a suspected node has to refute it before being removed (default: 5000)")
+        private int suspicionTimeout = Constants.SUSPICION_TIMEOUT_MS;
+
+        @Option(name = "-vnodes", usage = "Virtual nodes per node. Has to be the same on every node (default: 256)")
+        private int virtualNodes = Constants.VIRTUAL_NODES;
+
+        @Option(name = "-replicas", usage = "Number of nodes holding a copy of each entry. Has to be the same on every node (default: 3)")
+        private int replicas = Constants.REPLICATION_FACTOR;
+
+        @Option(name = "-write-quorum", usage = "Number of replicas that have to store an entry before a put completes (default: 2)")
+        private int writeQuorum = Constants.WRITE_QUORUM;
+
+        @Option(name = "-read-quorum", usage = "Number of replicas whose values a get waits for. Gets see the last put only if read and write quorums add up to more than the replicas (default: 2)")
+        private int readQuorum = Constants.READ_QUORUM;
+
         private CmdLineOptions() throws UnknownHostException
         {
         }
@@ -145,6 +220,51 @@ public class CLI
             return bsPort;
         }
 
+        public int getLoopThreads()
+        {
+            return loopThreads;
+        }
+
+        public boolean isVirtualThreads()
+        {
+            return virtualThreads;
+        }
+
+        public int getProbePeriod()
+        {
+            return probePeriod;
+        }
+
+        public int getProbeHelpers()
+        {
+            return probeHelpers;
+        }
+
+        public int getSuspicionTimeout()
+        {
+            return suspicionTimeout;
+        }
+
+        public int getVirtualNodes()
+        {
+            return virtualNodes;
+        }
+
+        public int getReplicas()
+        {
+            return replicas;
+        }
+
+        public int getWriteQuorum()
+        {
+            return writeQuorum;
+        }
+
+        public int getReadQuorum()
+        {
+            return readQuorum;
+        }
+
 
     }
 }
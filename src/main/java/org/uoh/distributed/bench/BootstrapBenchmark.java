@@ -0,0 +1,195 @@
+package org.uoh.distributed.bench;
+
+import org.uoh.distributed.server.BootstrapServer;
+import org.uoh.distributed.utils.Constants;
+import org.uoh.distributed.utils.RequestBuilder;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many registrations a {@link BootstrapServer} sustains on loopback. Every client registers a node,
+ * unregisters it and starts over, waiting for each answer before sending the next request, so the registry holds at
+ * most one node per client on top of the preloaded ones. Reports the REG throughput and latencies.
+ * <p>
+ * All clients share the loopback address, so admission control is off unless a rate is given. Registrations turned away
+ * are counted, and the client waits as long as it was told before trying again.
+ * <p>
+ * Usage: {@code BootstrapBenchmark [clients] [seconds] [preload] [workers] [rate]}.
+ */
+public class BootstrapBenchmark
+{
+    private static final int PORT = 55655;
+    private static final int TIMEOUT_MS = 1000;
+
+    public static void main( String[] args ) throws Exception
+    {
+        int clients = args.length > 0 ? Integer.parseInt( args[0] ) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt( args[1] ) : 10;
+        int preload = args.length > 2 ? Integer.parseInt( args[2] ) : 0;
+        int workers = args.length > 3 ? Integer.parseInt( args[3] ) : Constants.BOOTSTRAP_WORKER_THREADS;
+        Constants.BOOTSTRAP_SOURCE_RATE = args.length > 4 ? Integer.parseInt( args[4] ) : 0;
+        if( preload > 0 && Constants.BOOTSTRAP_SOURCE_RATE > 0 )
+        {
+            throw new IllegalArgumentException( "Preloading is only possible with admission control off" );
+        }
+
+        BootstrapServer server = new BootstrapServer( PORT, Constants.BOOTSTRAP_LOOP_THREADS, workers );
+        server.start();
+        InetAddress address = InetAddress.getLoopbackAddress();
+
+        long preloadStart = System.nanoTime();
+        try (DatagramSocket socket = new DatagramSocket())
+        {
+            socket.setSoTimeout( TIMEOUT_MS );
+            for( int i = 0; i < preload; i++ )
+            {
+                send( socket, address, String.format( Constants.REG_MSG_FORMAT, host( i ), 1024 + i % 16000, "preload" + i ) );
+            }
+        }
+        System.out.printf( "clients=%d seconds=%d preload=%d workers=%d rate=%d (preloaded in %.1f ms)%n", clients, seconds, preload,
+                           workers, Constants.BOOTSTRAP_SOURCE_RATE, ( System.nanoTime() - preloadStart ) / 1_000_000.0 );
+
+        // Warm up, then measure
+        run( clients, 1, address );
+        Result result = run( clients, seconds, address );
+
+        long[] latencies = result.latencies;
+        Arrays.sort( latencies );
+        System.out.printf( "%10s %10s %10s %10s %10s %10s%n", "REG/s", "p50 ms", "p99 ms", "max ms", "timeouts", "turned away" );
+        System.out.printf( "%10.0f %10.3f %10.3f %10.3f %10d %10d%n", latencies.length / (double) seconds,
+                           millis( percentile( latencies, 0.5 ) ), millis( percentile( latencies, 0.99 ) ),
+                           millis( percentile( latencies, 1 ) ), result.timeouts, result.turnedAway );
+        server.stop();
+        System.exit( 0 );
+    }
+
+    private static Result run( int clients, int seconds, InetAddress address ) throws InterruptedException
+    {
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        AtomicLong timeouts = new AtomicLong();
+        AtomicLong turnedAway = new AtomicLong();
+        List<long[]> samples = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for( int c = 0; c < clients; c++ )
+        {
+            int client = c;
+            long[][] latencies = { new long[1024] };
+            int[] count = { 0 };
+            Thread thread = new Thread( () -> {
+                String host = "10.255." + ( client >> 8 & 0xFF ) + "." + ( client & 0xFF );
+                int port = 20000 + client;
+                String reg = String.format( Constants.REG_MSG_FORMAT, host, port, "client" + client );
+                String unreg = String.format( Constants.UNREG_MSG_FORMAT, host, port, "client" + client );
+                try (DatagramSocket socket = new DatagramSocket())
+                {
+                    socket.setSoTimeout( TIMEOUT_MS );
+                    while( System.nanoTime() < end )
+                    {
+                        long start = System.nanoTime();
+                        String response = send( socket, address, reg );
+                        if( response == null )
+                        {
+                            timeouts.incrementAndGet();
+                            continue;
+                        }
+                        long retryAfterMs = RequestBuilder.processRetryAfter( response );
+                        if( retryAfterMs >= 0 )
+                        {
+                            turnedAway.incrementAndGet();
+                            Thread.sleep( retryAfterMs );
+                            continue;
+                        }
+                        if( count[0] == latencies[0].length )
+                        {
+                            latencies[0] = Arrays.copyOf( latencies[0], count[0] * 2 );
+                        }
+                        latencies[0][count[0]++] = System.nanoTime() - start;
+                        if( send( socket, address, unreg ) == null )
+                        {
+                            timeouts.incrementAndGet();
+                        }
+                    }
+                }
+                catch( IOException e )
+                {
+                    throw new IllegalStateException( e );
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized( samples )
+                {
+                    samples.add( Arrays.copyOf( latencies[0], count[0] ) );
+                }
+            } );
+            threads.add( thread );
+            thread.start();
+        }
+        for( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        long[] all = samples.stream().flatMapToLong( Arrays::stream ).toArray();
+        return new Result( all, timeouts.get(), turnedAway.get() );
+    }
+
+    /**
+     * @return the response, null if not answered in time
+     */
+    private static String send( DatagramSocket socket, InetAddress address, String msg ) throws IOException
+    {
+        byte[] request = RequestBuilder.buildRequest( msg ).getBytes( StandardCharsets.UTF_8 );
+        socket.send( new DatagramPacket( request, request.length, address, PORT ) );
+        byte[] buffer = new byte[512];
+        DatagramPacket response = new DatagramPacket( buffer, buffer.length );
+        try
+        {
+            socket.receive( response );
+            return new String( buffer, 0, response.getLength(), StandardCharsets.UTF_8 );
+        }
+        catch( SocketTimeoutException e )
+        {
+            return null;
+        }
+    }
+
+    private static String host( int index )
+    {
+        return "10." + ( index >> 16 & 0xFF ) + "." + ( index >> 8 & 0xFF ) + "." + ( index & 0xFF );
+    }
+
+    private static long percentile( long[] sorted, double p )
+    {
+        return sorted.length == 0 ? 0 : sorted[Math.max( 0, (int) Math.ceil( sorted.length * p ) - 1 )];
+    }
+
+    private static double millis( long nanos )
+    {
+        return nanos / 1_000_000.0;
+    }
+
+    private static class Result
+    {
+        private final long[] latencies;
+        private final long timeouts;
+        private final long turnedAway;
+
+        private Result( long[] latencies, long timeouts, long turnedAway )
+        {
+            this.latencies = latencies;
+            this.timeouts = timeouts;
+            this.turnedAway = turnedAway;
+        }
+    }
+}
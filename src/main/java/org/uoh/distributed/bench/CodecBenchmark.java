@@ -0,0 +1,99 @@
+package org.uoh.distributed.bench;
+
+import org.uoh.distributed.peer.NodeIds;
+import org.uoh.distributed.peer.RoutingTableEntry;
+import org.uoh.distributed.utils.BinaryCodec;
+import org.uoh.distributed.utils.PayloadCompressor;
+import org.uoh.distributed.utils.RequestBuilder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compares the {@link BinaryCodec} against the Java serialization + Base64 path of {@link RequestBuilder} and the
+ * {@link PayloadCompressor} for routing table payloads. Reports bytes per entry on the wire and encode/decode
+ * nanoseconds per entry.
+ * <p>
+ * Usage: {@code CodecBenchmark [entries] [iterations]}
+ */
+public class CodecBenchmark
+{
+    public static void main( String[] args ) throws IOException
+    {
+        int size = args.length > 0 ? Integer.parseInt( args[0] ) : 180;
+        int iterations = args.length > 1 ? Integer.parseInt( args[1] ) : 2000;
+
+        Set<RoutingTableEntry> entries = new HashSet<>();
+        for( int i = 1; i <= size; i++ )
+        {
+            InetAddress address = InetAddress.getByAddress( new byte[] { 10, 0, (byte) ( i >> 8 ), (byte) i } );
+            InetSocketAddress socketAddress = new InetSocketAddress( address, 32000 + i );
+            entries.add( new RoutingTableEntry( socketAddress, NodeIds.nodeId( socketAddress ) ) );
+        }
+
+        // Warm up both paths before measuring
+        for( int i = 0; i < iterations; i++ )
+        {
+            RequestBuilder.base64StringToObject( RequestBuilder.buildObjectRequest( entries ) );
+            BinaryCodec.decodeRoutingEntries( RequestBuilder.decodeBinary( RequestBuilder.encodeBinary( BinaryCodec.encodeRoutingEntries( entries ) ) ) );
+        }
+
+        String serialized = RequestBuilder.buildObjectRequest( entries );
+        long start = System.nanoTime();
+        for( int i = 0; i < iterations; i++ )
+        {
+            serialized = RequestBuilder.buildObjectRequest( entries );
+        }
+        long javaEncode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for( int i = 0; i < iterations; i++ )
+        {
+            RequestBuilder.base64StringToObject( serialized );
+        }
+        long javaDecode = System.nanoTime() - start;
+
+        String binary = RequestBuilder.encodeBinary( BinaryCodec.encodeRoutingEntries( entries ) );
+        start = System.nanoTime();
+        for( int i = 0; i < iterations; i++ )
+        {
+            binary = RequestBuilder.encodeBinary( BinaryCodec.encodeRoutingEntries( entries ) );
+        }
+        long binaryEncode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for( int i = 0; i < iterations; i++ )
+        {
+            BinaryCodec.decodeRoutingEntries( RequestBuilder.decodeBinary( binary ) );
+        }
+        long binaryDecode = System.nanoTime() - start;
+
+        byte[] raw = BinaryCodec.encodeRoutingEntries( entries );
+        byte[] compressedPayload = PayloadCompressor.compress( raw );
+        String compressed = RequestBuilder.encodeBinary( compressedPayload != null ? compressedPayload : raw );
+        start = System.nanoTime();
+        for( int i = 0; i < iterations; i++ )
+        {
+            byte[] payload = PayloadCompressor.compress( BinaryCodec.encodeRoutingEntries( entries ) );
+            compressed = RequestBuilder.encodeBinary( payload != null ? payload : raw );
+        }
+        long compressedEncode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for( int i = 0; i < iterations; i++ )
+        {
+            BinaryCodec.decodeRoutingEntries( RequestBuilder.decodeBinary( compressed, compressedPayload != null ) );
+        }
+        long compressedDecode = System.nanoTime() - start;
+
+        double operations = (double) iterations * size;
+        System.out.printf( "entries=%d iterations=%d%n", size, iterations );
+        System.out.printf( "%-22s %12s %14s %14s%n", "codec", "bytes/entry", "encode ns/entry", "decode ns/entry" );
+        System.out.printf( "%-22s %12.1f %14.1f %14.1f%n", "java+base64", (double) serialized.length() / size,
+                           javaEncode / operations, javaDecode / operations );
+        System.out.printf( "%-22s %12.1f %14.1f %14.1f%n", "binary+base64", (double) binary.length() / size,
+                           binaryEncode / operations, binaryDecode / operations );
+        System.out.printf( "%-22s %12.1f %14.1f %14.1f%n", compressedPayload != null ? "binary+deflate+base64" : "binary+base64 (raw)",
+                           (double) compressed.length() / size, compressedEncode / operations, compressedDecode / operations );
+    }
+}
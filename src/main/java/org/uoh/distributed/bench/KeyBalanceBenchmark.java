@@ -0,0 +1,98 @@
+package org.uoh.distributed.bench;
+
+import org.uoh.distributed.peer.NodeIds;
+import org.uoh.distributed.peer.RoutingTableEntry;
+import org.uoh.distributed.peer.TokenRing;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures how evenly keys spread over the nodes of a {@link TokenRing} depending on the number of virtual nodes. For
+ * each setting reports the share of the ring owned by the most and the least loaded node relative to the mean and its
+ * standard deviation, the same extremes for a sample of hashed keys, and the time to build the ring and to place a key.
+ * <p>
+ * Usage: {@code KeyBalanceBenchmark [nodes] [keys]}
+ */
+public class KeyBalanceBenchmark
+{
+    private static final int[] VIRTUAL_NODES = { 1, 16, 64, 128, 256, 512 };
+
+    public static void main( String[] args ) throws UnknownHostException
+    {
+        int nodes = args.length > 0 ? Integer.parseInt( args[0] ) : 50;
+        int keys = args.length > 1 ? Integer.parseInt( args[1] ) : 1_000_000;
+
+        List<RoutingTableEntry> entries = new ArrayList<>();
+        for( int i = 1; i <= nodes; i++ )
+        {
+            InetAddress address = InetAddress.getByAddress( new byte[] { 10, 0, (byte) ( i >> 8 ), (byte) i } );
+            InetSocketAddress socketAddress = new InetSocketAddress( address, 32050 );
+            entries.add( new RoutingTableEntry( socketAddress, NodeIds.nodeId( socketAddress ) ) );
+        }
+
+        long[] sample = new long[keys];
+        for( int i = 0; i < keys; i++ )
+        {
+            sample[i] = NodeIds.key( "key-" + i );
+        }
+
+        System.out.printf( "nodes=%d keys=%d%n", nodes, keys );
+        System.out.printf( "%8s %12s %12s %12s %12s %12s %10s %12s%n", "vnodes", "ring max %", "ring min %", "ring stdev %",
+                           "keys max %", "keys min %", "build ms", "ns/lookup" );
+        for( int vnodes : VIRTUAL_NODES )
+        {
+            long start = System.nanoTime();
+            TokenRing ring = new TokenRing( entries, entry -> NodeIds.tokens( entry.getAddress(), vnodes ) );
+            double buildMs = ( System.nanoTime() - start ) / 1e6;
+
+            Map<RoutingTableEntry, Double> shares = ring.ownership();
+            Map<RoutingTableEntry, Double> counts = new HashMap<>();
+            // Warm up the lookup path, then measure it on the whole sample
+            for( int i = 0; i < Math.min( keys, 100_000 ); i++ )
+            {
+                ring.ownerOf( sample[ThreadLocalRandom.current().nextInt( keys )] );
+            }
+            start = System.nanoTime();
+            for( long key : sample )
+            {
+                counts.merge( ring.ownerOf( key ), 1.0, Double::sum );
+            }
+            double lookupNs = (double) ( System.nanoTime() - start ) / keys;
+
+            System.out.printf( "%8d %12.1f %12.1f %12.1f %12.1f %12.1f %10.2f %12.1f%n", vnodes, 100 * max( shares.values() ) * nodes,
+                               100 * min( shares.values(), nodes ) * nodes, 100 * stdev( shares.values(), nodes ) * nodes,
+                               100 * max( counts.values() ) * nodes / keys,
+                               100 * min( counts.values(), nodes ) * nodes / keys, buildMs, lookupNs );
+        }
+    }
+
+    private static double max( Collection<Double> values )
+    {
+        return values.stream().mapToDouble( Double::doubleValue ).max().orElse( 0 );
+    }
+
+    private static double stdev( Collection<Double> values, int nodes )
+    {
+        double mean = 1.0 / nodes;
+        double squares = values.stream().mapToDouble( v -> ( v - mean ) * ( v - mean ) ).sum();
+        // Nodes owning nothing are off by the whole mean
+        squares += ( nodes - values.size() ) * mean * mean;
+        return Math.sqrt( squares / nodes );
+    }
+
+    /**
+     * Nodes owning nothing at all don't show up in the map
+     */
+    private static double min( Collection<Double> values, int nodes )
+    {
+        return values.size() < nodes ? 0 : values.stream().mapToDouble( Double::doubleValue ).min().orElse( 0 );
+    }
+}
@@ -0,0 +1,142 @@
+package org.uoh.distributed.bench;
+
+import org.uoh.distributed.server.RegistryLog;
+import org.uoh.distributed.utils.Constants;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Measures how fast the {@link RegistryLog} of the bootstrap server appends, and how long a restart takes to recover
+ * from the log alone and from a snapshot. Registers the given number of nodes, unregistering every tenth one again.
+ * <p>
+ * Usage: {@code RegistryLogBenchmark [nodes] [dir]}, the directory is wiped first.
+ */
+public class RegistryLogBenchmark
+{
+    public static void main( String[] args ) throws IOException
+    {
+        int nodes = args.length > 0 ? Integer.parseInt( args[0] ) : 500_000;
+        Path directory = Paths.get( args.length > 1 ? args[1] : "registry-log-bench" );
+        delete( directory );
+
+        String[] ips = new String[nodes];
+        String[] usernames = new String[nodes];
+        for( int i = 0; i < nodes; i++ )
+        {
+            ips[i] = "10." + ( i >> 16 & 0xFF ) + "." + ( i >> 8 & 0xFF ) + "." + ( i & 0xFF );
+            usernames[i] = "node" + i;
+        }
+        Consumer<RegistryLog.Records> liveRegistrations = records -> {
+            for( int i = 0; i < nodes; i++ )
+            {
+                if( i % 10 != 0 )
+                {
+                    records.register( ips[i], port( i ), usernames[i] );
+                }
+            }
+        };
+
+        RegistryLog log = new RegistryLog( directory, Constants.BOOTSTRAP_LOG_SIZE, liveRegistrations );
+        log.replay( ignored() );
+        long start = System.nanoTime();
+        int appended = 0;
+        for( int i = 0; i < nodes; i++ )
+        {
+            log.appendRegister( ips[i], port( i ), usernames[i] );
+            appended++;
+            if( i % 10 == 0 )
+            {
+                log.appendUnregister( ips[i], port( i ) );
+                appended++;
+            }
+        }
+        long appendNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        log.force();
+        long forceNanos = System.nanoTime() - start;
+        System.out.printf( "nodes=%d records=%d log=%d bytes%n", nodes, appended, log.position() );
+        System.out.printf( "append    %10.0f records/s (%.1f ms), force %.1f ms%n", appended / ( appendNanos / 1e9 ),
+                           millis( appendNanos ), millis( forceNanos ) );
+
+        recover( "from log", directory, liveRegistrations );
+
+        start = System.nanoTime();
+        log.compact( liveRegistrations );
+        System.out.printf( "compact   %.1f ms%n", millis( System.nanoTime() - start ) );
+
+        recover( "from snapshot", directory, liveRegistrations );
+        delete( directory );
+    }
+
+    private static void recover( String what, Path directory, Consumer<RegistryLog.Records> liveRegistrations )
+            throws IOException
+    {
+        // Replays the way a restarted server would, into a registry of its own
+        long start = System.nanoTime();
+        Map<String, String> registry = new HashMap<>();
+        int records = new RegistryLog( directory, Constants.BOOTSTRAP_LOG_SIZE, liveRegistrations ).replay( new RegistryLog.Records()
+        {
+            @Override
+            public void register( String ip, int port, String username )
+            {
+                registry.put( ip + ':' + port, username );
+            }
+
+            @Override
+            public void unregister( String ip, int port )
+            {
+                registry.remove( ip + ':' + port );
+            }
+        } );
+        System.out.printf( "recovery  %.1f ms %s (%d records, %d nodes)%n", millis( System.nanoTime() - start ), what, records,
+                           registry.size() );
+    }
+
+    private static RegistryLog.Records ignored()
+    {
+        return new RegistryLog.Records()
+        {
+            @Override
+            public void register( String ip, int port, String username )
+            {
+            }
+
+            @Override
+            public void unregister( String ip, int port )
+            {
+            }
+        };
+    }
+
+    private static int port( int index )
+    {
+        return 1024 + index % 16000;
+    }
+
+    private static void delete( Path directory ) throws IOException
+    {
+        if( Files.exists( directory ) )
+        {
+            try (Stream<Path> files = Files.walk( directory ))
+            {
+                for( Path file : (Iterable<Path>) files.sorted( Comparator.reverseOrder() )::iterator )
+                {
+                    Files.delete( file );
+                }
+            }
+        }
+    }
+
+    private static double millis( long nanos )
+    {
+        return nanos / 1_000_000.0;
+    }
+}
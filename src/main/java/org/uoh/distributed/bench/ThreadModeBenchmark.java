@@ -0,0 +1,135 @@
+package org.uoh.distributed.bench;
+
+import org.uoh.distributed.utils.Constants;
+import org.uoh.distributed.utils.MessageView;
+import org.uoh.distributed.utils.RequestBuilder;
+import org.uoh.distributed.utils.ThreadPools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the platform thread pools against the virtual thread mode of {@link ThreadPools} with a burst of concurrent
+ * requests. Each request is handled like in the node server: the message is parsed, then the handler blocks as if
+ * backing off before resending its response. Reports the peak number of JVM threads, the peak memory used and the
+ * request latencies.
+ * <p>
+ * Usage: {@code ThreadModeBenchmark [requests] [blockMs]}. The virtual mode is skipped on JVMs older than Java 21.
+ */
+public class ThreadModeBenchmark
+{
+    public static void main( String[] args ) throws InterruptedException
+    {
+        int requests = args.length > 0 ? Integer.parseInt( args[0] ) : 10000;
+        long blockMs = args.length > 1 ? Long.parseLong( args[1] ) : 50;
+
+        System.out.printf( "requests=%d blockMs=%d java=%s%n", requests, blockMs, System.getProperty( "java.version" ) );
+        System.out.printf( "%-10s %12s %14s %10s %10s %10s %10s%n", "mode", "peak threads", "peak memory MB", "p50 ms",
+                           "p99 ms", "max ms", "total ms" );
+
+        // Warm up with a small burst so that class loading doesn't end up in the first measurement
+        run( false, Math.min( requests, 1000 ), 1, false );
+        run( false, requests, blockMs, true );
+        if( ThreadPools.isVirtualThreadsSupported() )
+        {
+            run( true, Math.min( requests, 1000 ), 1, false );
+            run( true, requests, blockMs, true );
+        }
+        else
+        {
+            System.out.printf( "%-10s skipped, virtual threads need Java 21+%n", "virtual" );
+        }
+    }
+
+    private static void run( boolean virtual, int requests, long blockMs, boolean report ) throws InterruptedException
+    {
+        Constants.VIRTUAL_THREADS = virtual;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        threads.resetPeakThreadCount();
+
+        byte[] message = RequestBuilder.tagRequestId( RequestBuilder.buildRequest( String.format( Constants.NEWNODE_MSG_FORMAT, "127.0.0.1", 32050, 42 ) ), 7 ).getBytes();
+        long[] latencies = new long[requests];
+        CountDownLatch done = new CountDownLatch( requests );
+        AtomicInteger failures = new AtomicInteger();
+
+        AtomicLong peakMemory = new AtomicLong();
+        Thread sampler = new Thread( () -> {
+            while( !Thread.currentThread().isInterrupted() )
+            {
+                long used = memory.getHeapMemoryUsage().getUsed() + memory.getNonHeapMemoryUsage().getUsed();
+                peakMemory.accumulateAndGet( used, Math::max );
+                try
+                {
+                    Thread.sleep( 5 );
+                }
+                catch( InterruptedException e )
+                {
+                    return;
+                }
+            }
+        } );
+        sampler.start();
+
+        ExecutorService executor = ThreadPools.newTaskExecutor();
+        long start = System.nanoTime();
+        for( int i = 0; i < requests; i++ )
+        {
+            int index = i;
+            long submitted = System.nanoTime();
+            executor.execute( () -> {
+                try
+                {
+                    MessageView view = new MessageView().wrap( ByteBuffer.wrap( message ) );
+                    if( view.intField( 3 ) != 32050 )
+                    {
+                        failures.incrementAndGet();
+                    }
+                    Thread.sleep( blockMs );
+                }
+                catch( InterruptedException e )
+                {
+                    failures.incrementAndGet();
+                }
+                finally
+                {
+                    latencies[index] = System.nanoTime() - submitted;
+                    done.countDown();
+                }
+            } );
+        }
+        done.await();
+        long total = System.nanoTime() - start;
+
+        executor.shutdown();
+        executor.awaitTermination( 10, TimeUnit.SECONDS );
+        sampler.interrupt();
+        sampler.join();
+
+        if( report )
+        {
+            Arrays.sort( latencies );
+            System.out.printf( "%-10s %12d %14.1f %10.1f %10.1f %10.1f %10.1f%n", virtual ? "virtual" : "platform",
+                               threads.getPeakThreadCount(), peakMemory.get() / 1048576.0, millis( latencies[requests / 2] ),
+                               millis( latencies[(int) Math.ceil( requests * 0.99 ) - 1] ), millis( latencies[requests - 1] ), millis( total ) );
+            if( failures.get() > 0 )
+            {
+                System.out.printf( "%d requests failed%n", failures.get() );
+            }
+        }
+    }
+
+    private static double millis( long nanos )
+    {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -14,10 +14,14 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * This class responsible for the communication between node and Bootstrap server
+ * This class responsible for the communication between node and Bootstrap server. Requests that go unanswered are
+ * retried with exponential backoff, and a server that is busy tells us how long to wait before registering again. Both
+ * waits are randomized, so that nodes turned away together don't come back together.
  */
 public class BootstrapConnector
 {
@@ -36,18 +40,46 @@ public class BootstrapConnector
         String request = RequestBuilder.buildRequest( msg );
 
         int retriesLeft = numOfRetries;
+        int attempt = 0;
+        boolean registeredAgain = false;
         while( retriesLeft > 0 )
         {
-            try (DatagramSocket datagramSocket = new DatagramSocket())
+            long delay;
+            try
             {
-                String response = RequestBuilder.sendRequest( datagramSocket, request, InetAddress.getByName( Constants.BOOTSTRAP_IP ), Constants.BOOTSTRAP_PORT );
+                String response = send( request );
                 logger.debug( "Response received : {}", response );
-                return RequestBuilder.processRegisterResponse( response );
+                if( !registeredAgain && RequestBuilder.isAlreadyRegistered( response ) )
+                {
+                    // The answer to an earlier attempt got lost. Servers without renewal on REG don't hand out peers again
+                    logger.info( "Bootstrap Server already has us registered, registering again" );
+                    registeredAgain = true;
+                    unregister( ipAddress, port, username );
+                    continue;
+                }
+                long retryAfterMs = RequestBuilder.processRetryAfter( response );
+                if( retryAfterMs < 0 )
+                {
+                    return RequestBuilder.processRegisterResponse( response );
+                }
+                logger.info( "Bootstrap Server is busy, registering again in {} ms", retryAfterMs );
+                // Never earlier than asked
+                delay = ThreadLocalRandom.current().nextLong( retryAfterMs, retryAfterMs + retryAfterMs / 2 + 1 );
+            }
+            catch( SocketTimeoutException e )
+            {
+                logger.warn( "Bootstrap Server didn't answer the register request" );
+                delay = backOff( attempt++ );
             }
             catch( IOException e )
             {
                 logger.error( "Error occurred when sending the register request", e );
-                retriesLeft--;
+                delay = backOff( attempt++ );
+            }
+
+            if( --retriesLeft > 0 && !sleep( delay ) )
+            {
+                break;
             }
         }
 
@@ -62,11 +94,12 @@ public class BootstrapConnector
         String request = RequestBuilder.buildRequest( msg );
 
         int retriesLeft = numOfRetries;
+        int attempt = 0;
         while( retriesLeft > 0 )
         {
-            try (DatagramSocket datagramSocket = new DatagramSocket())
+            try
             {
-                String response = RequestBuilder.sendRequest( datagramSocket, request, InetAddress.getByName( Constants.BOOTSTRAP_IP ), Constants.BOOTSTRAP_PORT );
+                String response = send( request );
                 logger.debug( "Response received : {}", response );
                 if( RequestBuilder.processUnregisterResponse( response ) )
                 {
@@ -81,12 +114,69 @@ public class BootstrapConnector
             }
             catch( IOException e )
             {
-                retriesLeft--;
                 logger.error( "Error occurred when sending the unregister request", e );
             }
+
+            if( --retriesLeft > 0 && !sleep( backOff( attempt++ ) ) )
+            {
+                break;
+            }
         }
 
         return false;
     }
 
+    /**
+     * Extends the lease of our registration. Sent once, a lost renewal is made up for by the next one.
+     *
+     * @return false if the server doesn't know us, e.g. because our lease lapsed or the server restarted
+     * @throws IOException if the server didn't answer
+     */
+    public boolean renew( String ipAddress, int port, String username ) throws IOException
+    {
+        String request = RequestBuilder.buildRequest( String.format( Constants.RENEW_MSG_FORMAT, ipAddress, port, username ) );
+        try (DatagramSocket datagramSocket = new DatagramSocket())
+        {
+            datagramSocket.setSoTimeout( Constants.BOOTSTRAP_RENEW_TIMEOUT_MS );
+            String response = RequestBuilder.sendRequest( datagramSocket, request, InetAddress.getByName( Constants.BOOTSTRAP_IP ), Constants.BOOTSTRAP_PORT );
+            logger.debug( "Response received : {}", response );
+            return RequestBuilder.processRenewResponse( response );
+        }
+    }
+
+    private String send( String request ) throws IOException
+    {
+        try (DatagramSocket datagramSocket = new DatagramSocket())
+        {
+            datagramSocket.setSoTimeout( Constants.BOOTSTRAP_REQUEST_TIMEOUT_MS );
+            return RequestBuilder.sendRequest( datagramSocket, request, InetAddress.getByName( Constants.BOOTSTRAP_IP ), Constants.BOOTSTRAP_PORT );
+        }
+    }
+
+    /**
+     * @return how long to wait after the given number of unanswered attempts, exponentially longer every time
+     */
+    private static long backOff( int attempt )
+    {
+        long delay = (long) Constants.BOOTSTRAP_RETRY_DELAY_MS << Math.min( attempt, 10 );
+        return ThreadLocalRandom.current().nextLong( delay / 2, delay + 1 );
+    }
+
+    /**
+     * @return false if interrupted, the caller should give up then
+     */
+    private static boolean sleep( long delay )
+    {
+        try
+        {
+            Thread.sleep( delay );
+            return true;
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
 }
@@ -0,0 +1,93 @@
+package org.uoh.distributed.peer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reassembles a response that arrives as {@link org.uoh.distributed.utils.Constants#CHUNK} fragments. Fragments may
+ * arrive in any order and more than once.
+ */
+class ChunkAssembler
+{
+    private final String[] chunks;
+    private int received;
+    private int receivedAtLastCheck;
+
+    ChunkAssembler( int total )
+    {
+        if( total <= 0 )
+        {
+            throw new IllegalArgumentException( "A transfer should have at least one chunk" );
+        }
+        this.chunks = new String[total];
+    }
+
+    /**
+     * Adds a fragment.
+     *
+     * @return true if this fragment completed the transfer
+     */
+    synchronized boolean add( int sequence, String data )
+    {
+        if( sequence < 0 || sequence >= chunks.length || chunks[sequence] != null )
+        {
+            return false;
+        }
+
+        chunks[sequence] = data;
+        received++;
+        return received == chunks.length;
+    }
+
+    synchronized boolean isComplete()
+    {
+        return received == chunks.length;
+    }
+
+    /**
+     * Checks whether any fragment arrived since the last call, i.e. whether the sender is still streaming.
+     */
+    synchronized boolean madeProgress()
+    {
+        boolean progress = received > receivedAtLastCheck;
+        receivedAtLastCheck = received;
+        return progress;
+    }
+
+    /**
+     * @param limit maximum number of sequence numbers to return
+     * @return sequence numbers of the fragments that haven't arrived yet
+     */
+    synchronized List<Integer> missing( int limit )
+    {
+        List<Integer> missing = new ArrayList<>();
+        for( int i = 0; i < chunks.length && missing.size() < limit; i++ )
+        {
+            if( chunks[i] == null )
+            {
+                missing.add( i );
+            }
+        }
+        return missing;
+    }
+
+    synchronized String assemble()
+    {
+        if( !isComplete() )
+        {
+            throw new IllegalStateException( "Transfer is not complete" );
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for( String chunk : chunks )
+        {
+            builder.append( chunk );
+        }
+        return builder.toString();
+    }
+
+    int getTotal()
+    {
+        return chunks.length;
+    }
+}
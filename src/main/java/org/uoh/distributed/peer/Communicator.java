@@ -2,109 +2,471 @@ package org.uoh.distributed.peer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.uoh.distributed.utils.BinaryCodec;
 import org.uoh.distributed.utils.Constants;
 import org.uoh.distributed.utils.RequestBuilder;
+import org.uoh.distributed.utils.ThreadPools;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 public class Communicator
 {
     private static final Logger logger = LoggerFactory.getLogger( Node.class );
     private final int numOfRetries = Constants.RETRIES_COUNT;
 
-    private boolean started = false;
+    private volatile boolean started = false;
+    /** Runs the receiver and the completion of the futures handed out to callers */
     private ExecutorService executorService;
+    /** Schedules retransmissions and deadlines of pending requests */
+    private ScheduledExecutorService scheduler;
     private Node node;
+    /** Peers which answered with a {@link BinaryCodec} payload, hence known to understand it */
+    private final Set<InetSocketAddress> binaryPeers = ConcurrentHashMap.newKeySet();
+
+    /** Single socket shared by all outgoing requests. Responses are matched to requests by their request ID */
+    private DatagramSocket socket;
+    private final AtomicLong requestIds = new AtomicLong();
+    private final Map<Long, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    /**
+     * Peers which echoed a request ID, hence run a version that unpacks {@link Constants#BATCH} messages. Only requests
+     * to these peers are coalesced.
+     */
+    private final Set<InetSocketAddress> batchingPeers = ConcurrentHashMap.newKeySet();
+    private OutboundCoalescer coalescer;
 
 
     public void start( Node node )
     {
         this.node = node;
-        executorService = Executors.newCachedThreadPool();
+        try
+        {
+            socket = new DatagramSocket();
+            socket.setReceiveBufferSize( Constants.SOCKET_RECEIVE_BUFFER_SIZE );
+        }
+        catch( SocketException e )
+        {
+            logger.error( "Error occurred when opening the peer communication socket", e );
+            throw new IllegalStateException( "Unable to open socket", e );
+        }
+
         started = true;
+        executorService = ThreadPools.newTaskExecutor();
+        scheduler = ThreadPools.newScheduledExecutor( 1 );
+        coalescer = new OutboundCoalescer( this::send, scheduler, Constants.COALESCE_WINDOW_MICROS, Constants.COALESCE_MAX_BATCH_SIZE );
+        executorService.submit( this::receive );
         logger.info("Communication between peers started");
 
     }
 
-    public Set<RoutingTableEntry> connect( InetSocketAddress peer )
+    /**
+     * Receives all the responses arriving at {@link #socket} and completes the corresponding pending requests. The
+     * receive buffer is reused since this is the only thread reading from the socket.
+     */
+    private void receive()
     {
-        String request = RequestBuilder.buildRequest( Constants.GET_ROUTING_TABLE );
-        logger.debug( "Sending request ({}) to get routing table from {}", request, peer );
-        String response = retryOrTimeout( request, peer );
-        logger.debug( "Received response : {}", response );
-        if( response != null )
+        byte[] buffer = new byte[Constants.MAX_DATAGRAM_SIZE];
+        DatagramPacket incoming = new DatagramPacket( buffer, buffer.length );
+        while( started && !socket.isClosed() )
         {
-            Object obj = RequestBuilder.base64StringToObject( response.split( Constants.MSG_SEPARATOR)[3] );
-            logger.debug( "Received routing table entries -> {}", obj );
-            if( obj != null )
+            try
+            {
+                incoming.setLength( buffer.length );
+                socket.receive( incoming );
+            }
+            catch( IOException e )
+            {
+                if( started )
+                {
+                    logger.error( "Error occurred when receiving responses", e );
+                }
+                continue;
+            }
+
+            String response = new String( buffer, 0, incoming.getLength(), StandardCharsets.UTF_8 );
+            InetSocketAddress sender = (InetSocketAddress) incoming.getSocketAddress();
+            long requestId = RequestBuilder.getRequestId( response );
+            PendingRequest pending = requestId >= 0 ? pendingRequests.get( requestId ) : oldestPendingTo( sender );
+            if( pending == null )
+            {
+                logger.debug( "Dropping response without a pending request from {} -> {}", sender, response );
+                continue;
+            }
+
+            if( requestId >= 0 )
             {
-                return (HashSet<RoutingTableEntry>) obj;
+                batchingPeers.add( pending.peer );
             }
+
+            if( pending.transmissions == 1 && !pending.answered )
+            {
+                // Karn's rule: a response to a retransmitted request can't be tied to a transmission
+                node.getRttTracker().sample( pending.peer, ( System.nanoTime() - pending.sentAt ) / 1_000_000.0 );
+            }
+            pending.answered = true;
+
+            String message = RequestBuilder.stripRequestId( response );
+            if( Constants.CHUNK.equals( RequestBuilder.getCommand( message ) ) )
+            {
+                receiveChunk( pending, message );
+                continue;
+            }
+
+            if( response.contains( Constants.RESPONSE_FAILURE ) )
+            {
+                // Let the retransmission timer retry the request. If it was a chunked transfer that the peer no
+                // longer has, start over with the original request
+                logger.warn( "Peer {} failed to process request ({})", pending.peer, pending.request );
+                pending.transfer = null;
+                continue;
+            }
+            complete( pending, message );
+        }
+    }
+
+    /**
+     * Collects a fragment of a chunked response and completes the request once all the fragments are in.
+     */
+    private void receiveChunk( PendingRequest pending, String message )
+    {
+        String[] parts = message.split( Constants.MSG_SEPARATOR, 5 );
+        int sequence = Integer.parseInt( parts[2] );
+        int total = Integer.parseInt( parts[3] );
+
+        ChunkAssembler transfer = pending.transfer;
+        if( transfer == null || transfer.getTotal() != total )
+        {
+            transfer = new ChunkAssembler( total );
+            pending.transfer = transfer;
         }
 
+        if( transfer.add( sequence, parts[4] ) )
+        {
+            logger.debug( "Received all {} chunks of request #{} from {}", total, pending.id, pending.peer );
+            complete( pending, transfer.assemble() );
+        }
+    }
+
+    /**
+     * Nodes that predate request IDs answer without one. Such a response is matched with the oldest request pending on
+     * the same host, since they reply from a different port than the one that was asked.
+     */
+    private PendingRequest oldestPendingTo( InetSocketAddress sender )
+    {
+        return pendingRequests.values()
+                              .stream()
+                              .filter( p -> p.peer.getAddress().equals( sender.getAddress() ) )
+                              .min( ( a, b ) -> Long.compare( a.id, b.id ) )
+                              .orElse( null );
+    }
+
+    public Set<RoutingTableEntry> connect( InetSocketAddress peer )
+    {
         // If failed we return an empty set to not to break operations.
-        return new HashSet<>();
+        return awaitOrDefault( connectAsync( peer ), new HashSet<>() );
     }
 
+    public CompletableFuture<Set<RoutingTableEntry>> connectAsync( InetSocketAddress peer )
+    {
+        return connectAsync( peer, defaultTimeout() );
+    }
 
-    public boolean disconnect( InetSocketAddress peer )
+    /**
+     * Fetches the routing table of a peer.
+     *
+     * @param peer      peer to be asked
+     * @param timeoutMs deadline of the whole request including retries
+     * @return future completed with the routing table entries, or exceptionally if the peer didn't answer in time
+     */
+    public CompletableFuture<Set<RoutingTableEntry>> connectAsync( InetSocketAddress peer, long timeoutMs )
     {
-        return false;
+        String request = RequestBuilder.buildRequest( Constants.GET_ROUTING_TABLE_COMPRESSED );
+        logger.debug( "Sending request ({}) to get routing table from {}", request, peer );
+        return sendAsync( request, peer, numOfRetries, timeoutMs ).thenApply( response -> {
+            logger.debug( "Received response : {}", response );
+            String[] parts = response.split( Constants.MSG_SEPARATOR );
+            if( RequestBuilder.hasBinaryFlag( parts, 4 ) )
+            {
+                binaryPeers.add( peer );
+                Set<RoutingTableEntry> entries = BinaryCodec.decodeRoutingEntries( RequestBuilder.decodeBinary( parts[3], RequestBuilder.hasCompressedFlag( parts, 4 ) ) );
+                logger.debug( "Received routing table entries -> {}", entries );
+                return entries;
+            }
+
+            Object obj = RequestBuilder.base64StringToObject( parts[3] );
+            logger.debug( "Received routing table entries -> {}", obj );
+            if( obj == null )
+            {
+                throw new IllegalStateException( "Unable to decode routing table of " + peer );
+            }
+            return (Set<RoutingTableEntry>) obj;
+        } );
     }
 
-    public Object notifyNewNode( InetSocketAddress peer, InetSocketAddress me, int nodeId )
+    /**
+     * Fetches the routing table changes of a peer since a version of its table.
+     *
+     * @param peer    peer to be asked
+     * @param epoch   epoch of the peer's table as of the last sync, 0 if never synced
+     * @param version version of the peer's table as of the last sync
+     * @return future completed with the changes. Peers that don't support deltas send their whole table, which comes
+     * back as a full delta of epoch 0
+     */
+    public CompletableFuture<RoutingDelta> syncRoutingTableAsync( InetSocketAddress peer, long epoch, long version )
     {
-        String msg = String.format( Constants.NEWNODE_MSG_FORMAT, me.getAddress(), me.getPort(), nodeId );
-        String request = RequestBuilder.buildRequest( msg );
-        logger.debug( "Notifying new node to {} as message: {}", peer, request );
-        String response = retryOrTimeout( request, peer );
-        logger.debug( "Received response : {}", response );
-        if( response != null )
-        {
-            Object obj = RequestBuilder.base64StringToObject( response.split( Constants.MSG_SEPARATOR )[3] );
-            logger.debug( "Received characters to be taken over -> {}", obj );
-            if( obj != null )
+        String request = RequestBuilder.buildRequest( String.format( Constants.GET_ROUTING_TABLE_DELTA_FORMAT, epoch, version ) );
+        logger.debug( "Sending request ({}) to sync routing table with {}", request, peer );
+        return sendAsync( request, peer, numOfRetries, defaultTimeout() ).thenApply( response -> {
+            String[] parts = response.split( Constants.MSG_SEPARATOR );
+            if( !RequestBuilder.hasBinaryFlag( parts, 4 ) )
             {
-                return  obj;
+                throw new IllegalStateException( "Unexpected routing table sync response from " + peer + ": " + response );
             }
+            binaryPeers.add( peer );
+            byte[] payload = RequestBuilder.decodeBinary( parts[3], RequestBuilder.hasCompressedFlag( parts, 4 ) );
+            if( Constants.TYPE_ROUTING_DELTA.equals( parts[2] ) )
+            {
+                return BinaryCodec.decodeRoutingDelta( payload );
+            }
+            return RoutingDelta.full( 0, 0, BinaryCodec.decodeRoutingEntries( payload ) );
+        } );
+    }
+
+    /**
+     * Gossips membership updates to a peer. Best effort: a peer that doesn't answer isn't removed, its failure is left
+     * to the failure detector.
+     *
+     * @param updates   updates to be piggybacked
+     * @param timeoutMs how long to wait for the answer. The request isn't retransmitted within it
+     * @return future completed with the updates piggybacked on the answer of the peer
+     */
+    public CompletableFuture<List<MemberUpdate>> gossipAsync( InetSocketAddress peer, List<MemberUpdate> updates, long timeoutMs )
+    {
+        String payload = RequestBuilder.encodeBinary( BinaryCodec.encodeMemberUpdates( updates ) );
+        String request = RequestBuilder.buildRequest( String.format( Constants.GOSSIP_MSG_FORMAT, payload ) );
+        return sendAsync( request, peer, 1, timeoutMs ).thenApply( response -> parseMemberUpdates( peer, response ) );
+    }
+
+    /**
+     * Asks a helper to probe a target on our behalf.
+     *
+     * @param updates   updates to be piggybacked
+     * @param timeoutMs how long to wait for the answer of the helper
+     * @return future completed with the updates piggybacked on the answer, or exceptionally if the target or the
+     * helper didn't answer
+     */
+    public CompletableFuture<List<MemberUpdate>> probeRequestAsync( InetSocketAddress helper, InetSocketAddress target,
+                                                                    List<MemberUpdate> updates, long timeoutMs )
+    {
+        String payload = RequestBuilder.encodeBinary( BinaryCodec.encodeMemberUpdates( updates ) );
+        String msg = String.format( Constants.PROBE_REQUEST_MSG_FORMAT, target.getHostString(), target.getPort(), payload );
+        return sendAsync( RequestBuilder.buildRequest( msg ), helper, 1, timeoutMs ).thenApply( response -> parseMemberUpdates( helper, response ) );
+    }
+
+    private static List<MemberUpdate> parseMemberUpdates( InetSocketAddress peer, String response )
+    {
+        String[] parts = response.split( Constants.MSG_SEPARATOR );
+        if( !RequestBuilder.hasBinaryFlag( parts, 4 ) || !Constants.TYPE_MEMBERS.equals( parts[2] ) )
+        {
+            throw new IllegalStateException( "Unexpected gossip response from " + peer + ": " + response );
         }
+        return BinaryCodec.decodeMemberUpdates( RequestBuilder.decodeBinary( parts[3], RequestBuilder.hasCompressedFlag( parts, 4 ) ) );
+    }
+
+
+    public boolean disconnect( InetSocketAddress peer )
+    {
+        return awaitOrDefault( disconnectAsync( peer ), false );
+    }
+
+    /**
+     * Graceful departure is not supported by the protocol yet, hence always completes with false.
+     */
+    public CompletableFuture<Boolean> disconnectAsync( InetSocketAddress peer )
+    {
+        return CompletableFuture.completedFuture( false );
+    }
+
+    public Object notifyNewNode( InetSocketAddress peer, InetSocketAddress me, long nodeId )
+    {
+        return notifyNewNode( peer, me.getHostString(), me.getPort(), nodeId );
+    }
 
-        return new HashMap<>();
+    public Object notifyNewNode( InetSocketAddress peer, String ip , int port, long nodeId )
+    {
+        return awaitOrDefault( notifyNewNodeAsync( peer, ip, port, nodeId ), new HashMap<>() );
     }
 
-    public Object notifyNewNode( InetSocketAddress peer, String ip , int port, int nodeId )
+    public CompletableFuture<Object> notifyNewNodeAsync( InetSocketAddress peer, String ip, int port, long nodeId )
     {
-        String msg = String.format( Constants.NEWNODE_MSG_FORMAT, ip, port, nodeId );
+        return notifyNewNodeAsync( peer, ip, port, nodeId, defaultTimeout() );
+    }
+
+    /**
+     * Notifies a peer about a node that joined the network.
+     *
+     * @param timeoutMs deadline of the whole request including retries
+     * @return future completed with the entries to be taken over by the new node
+     */
+    public CompletableFuture<Object> notifyNewNodeAsync( InetSocketAddress peer, String ip, int port, long nodeId, long timeoutMs )
+    {
+        String msg = String.format( Constants.NEWNODE_COMPRESSED_MSG_FORMAT, ip, port, nodeId );
         String request = RequestBuilder.buildRequest( msg );
         logger.debug( "Notifying new node to {} as message: {}", peer, request );
-        String response = retryOrTimeout( request, peer );
-        logger.debug( "Received response : {}", response );
-        if( response != null )
-        {
-            Object obj = RequestBuilder.base64StringToObject( response.split( Constants.MSG_SEPARATOR )[3] );
+        return sendAsync( request, peer, numOfRetries, timeoutMs ).thenApply( response -> {
+            logger.debug( "Received response : {}", response );
+            String[] parts = response.split( Constants.MSG_SEPARATOR );
+            if( RequestBuilder.hasBinaryFlag( parts, 4 ) )
+            {
+                binaryPeers.add( peer );
+                Map<String, String> entries = BinaryCodec.decodeEntryTable( RequestBuilder.decodeBinary( parts[3], RequestBuilder.hasCompressedFlag( parts, 4 ) ) );
+                logger.debug( "Received characters to be taken over -> {}", entries );
+                return entries;
+            }
+
+            Object obj = RequestBuilder.base64StringToObject( parts[3] );
             logger.debug( "Received characters to be taken over -> {}", obj );
-            if( obj != null )
+            return obj != null ? obj : new HashMap<>();
+        } );
+    }
+
+    /**
+     * Asks a peer for the successor of a key. The peer answers with the successor if it knows it, otherwise with the
+     * node closest to the key in its finger table.
+     *
+     * @return future completed with the answer of the peer
+     */
+    public CompletableFuture<LookupStep> findSuccessorAsync( InetSocketAddress peer, long key )
+    {
+        String request = RequestBuilder.buildRequest( String.format( Constants.FIND_SUCCESSOR_MSG_FORMAT, key ) );
+        return sendAsync( request, peer, numOfRetries, Constants.RETRY_TIMEOUT_MS ).thenApply( response -> {
+            String[] parts = response.split( Constants.MSG_SEPARATOR );
+            return new LookupStep( Constants.SUCCESSOR_FOUND.equals( parts[2] ), parseEntry( parts, 3 ) );
+        } );
+    }
+
+    /**
+     * @return future completed with the predecessor of the peer, empty if the peer doesn't know it yet
+     */
+    public CompletableFuture<Optional<RoutingTableEntry>> getPredecessorAsync( InetSocketAddress peer )
+    {
+        String request = RequestBuilder.buildRequest( Constants.GET_PREDECESSOR );
+        return sendAsync( request, peer, numOfRetries, Constants.RETRY_TIMEOUT_MS ).thenApply( response -> {
+            String[] parts = response.split( Constants.MSG_SEPARATOR );
+            return Long.parseLong( parts[2] ) != 0 ? Optional.of( parseEntry( parts, 2 ) ) : Optional.empty();
+        } );
+    }
+
+    /**
+     * Tells a peer that the given node might be its predecessor.
+     */
+    public CompletableFuture<Boolean> notifyPredecessorAsync( InetSocketAddress peer, RoutingTableEntry me )
+    {
+        String msg = String.format( Constants.NOTIFY_MSG_FORMAT, me.getNodeId(), me.getAddress().getHostString(), me.getAddress().getPort() );
+        return sendAsync( RequestBuilder.buildRequest( msg ), peer, numOfRetries, Constants.RETRY_TIMEOUT_MS )
+                .thenApply( response -> response.contains( Constants.RESPONSE_OK ) );
+    }
+
+    /**
+     * Stores a replica of an entry at a peer.
+     *
+     * @return future completed once the peer stored it, or had a newer value
+     */
+    public CompletableFuture<Boolean> putAsync( InetSocketAddress peer, String key, VersionedValue value )
+    {
+        String msg = String.format( Constants.PUT_MSG_FORMAT, RequestBuilder.encodeText( key ), RequestBuilder.encodeText( value.getValue() ), value.getVersion() );
+        return sendAsync( RequestBuilder.buildRequest( msg ), peer, numOfRetries, Constants.RETRY_TIMEOUT_MS )
+                .thenApply( response -> response.contains( Constants.RESPONSE_OK ) );
+    }
+
+    /**
+     * Reads the replica of an entry held by a peer.
+     *
+     * @return future completed with the value, empty if the peer has none
+     */
+    public CompletableFuture<Optional<VersionedValue>> getAsync( InetSocketAddress peer, String key )
+    {
+        String msg = String.format( Constants.GET_MSG_FORMAT, RequestBuilder.encodeText( key ) );
+        return sendAsync( RequestBuilder.buildRequest( msg ), peer, numOfRetries, Constants.RETRY_TIMEOUT_MS ).thenApply( response -> {
+            String[] parts = response.split( Constants.MSG_SEPARATOR );
+            if( !Constants.VALUE.equals( RequestBuilder.getCommand( response ).trim() ) )
             {
-                return  obj;
+                return Optional.empty();
             }
-        }
+            return Optional.of( new VersionedValue( RequestBuilder.decodeText( parts[2] ), Long.parseLong( parts[3].trim() ) ) );
+        } );
+    }
+
+    /**
+     * Asks a peer for a page of the entries that this node, which just joined, is now responsible for.
+     *
+     * @param me     this node
+     * @param offset offset of the page, -1 to tell the peer that all pages arrived
+     * @return future completed with the page
+     */
+    public CompletableFuture<HandoverPage> handOverAsync( InetSocketAddress peer, InetSocketAddress me, int offset )
+    {
+        String msg = String.format( Constants.HANDOVER_MSG_FORMAT, me.getHostString(), me.getPort(), offset );
+        return sendAsync( RequestBuilder.buildRequest( msg ), peer, numOfRetries, defaultTimeout() ).thenApply( response -> {
+            String[] parts = response.split( Constants.MSG_SEPARATOR );
+            if( !RequestBuilder.hasBinaryFlag( parts, 4 ) || !Constants.TYPE_ENTRIES.equals( parts[2] ) || parts.length < 6 )
+            {
+                throw new IllegalStateException( "Unexpected handover response from " + peer + ": " + response );
+            }
+            Map<String, VersionedValue> entries = BinaryCodec.decodeVersionedEntries( RequestBuilder.decodeBinary( parts[3], RequestBuilder.hasCompressedFlag( parts, 4 ) ) );
+            return new HandoverPage( entries, Integer.parseInt( parts[5].trim() ) );
+        } );
+    }
 
-        return new HashMap<>();
+    /**
+     * Reads a {@code ${nodeId} ${ip} ${port}} triple of a response
+     */
+    private static RoutingTableEntry parseEntry( String[] parts, int from )
+    {
+        InetSocketAddress address = new InetSocketAddress( parts[from + 1], Integer.parseInt( parts[from + 2].trim() ) );
+        return new RoutingTableEntry( address, Long.parseLong( parts[from] ) );
     }
 
     public void stop()
     {
+        started = false;
+        if( coalescer != null )
+        {
+            coalescer.flushAll();
+        }
+        if( socket != null )
+        {
+            socket.close();
+        }
+
+        pendingRequests.values().forEach( p -> p.future.cancel( true ) );
+        pendingRequests.clear();
+
+        if( scheduler != null )
+        {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+
         if( executorService != null )
         {
             executorService.shutdownNow();
@@ -119,81 +481,305 @@ public class Communicator
 
             executorService = null;
         }
-
-        started = false;
     }
 
-    private String retryOrTimeout( String request, InetSocketAddress peer )
+    private long defaultTimeout()
     {
-        return retryOrTimeout( numOfRetries, request, peer );
+        return (long) numOfRetries * Constants.RETRY_TIMEOUT_MS;
     }
 
-    private String retryOrTimeout( int retries, String request, InetSocketAddress peer )
+    private static <T> T awaitOrDefault( CompletableFuture<T> future, T defaultValue )
     {
-        int retriesLeft = retries;
+        try
+        {
+            return future.join();
+        }
+        catch( Exception e )
+        {
+            return defaultValue;
+        }
+    }
 
-        while( retriesLeft > 0 && started )
+    /**
+     * Sends a request and retransmits it until a response arrives, the retries are exhausted or the deadline passes.
+     * Retransmission timeouts come from the RTT estimate of the peer and back off exponentially with jitter. No thread
+     * is blocked while the request is in flight.
+     *
+     * @param request   framed request to be sent
+     * @param peer      recipient
+     * @param retries   number of transmissions allowed
+     * @param timeoutMs deadline of the whole request
+     * @return future completed with the response (request ID stripped), or exceptionally with a
+     * {@link TimeoutException}
+     */
+    private CompletableFuture<String> sendAsync( String request, InetSocketAddress peer, int retries, long timeoutMs )
+    {
+        if( !started )
         {
-            Future<String> task = executorService.submit( () -> {
-                try (DatagramSocket datagramSocket = new DatagramSocket())
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally( new IllegalStateException( "Communicator is not running" ) );
+            return failed;
+        }
+
+        long requestId = requestIds.incrementAndGet();
+        PendingRequest pending = new PendingRequest( requestId, peer, request, retries, System.currentTimeMillis() + timeoutMs );
+        pendingRequests.put( requestId, pending );
+        pending.future.whenComplete( ( response, error ) -> {
+            pendingRequests.remove( requestId );
+            if( error instanceof TimeoutException )
+            {
+                logger.error( "REQUEST FAILED !!! ({} -> {})", request, peer );
+                if( retries == numOfRetries && started )
                 {
-                    return RequestBuilder.sendRequest( datagramSocket, request, peer.getAddress(), peer.getPort() );
+                    this.node.removeNode( peer );
                 }
-            } );
+            }
+        } );
 
+        transmit( pending );
+        return pending.future;
+    }
+
+    private void transmit( PendingRequest pending )
+    {
+        if( pending.future.isDone() )
+        {
+            return;
+        }
+
+        RttTracker rttTracker = node.getRttTracker();
+        ChunkAssembler transfer = pending.transfer;
+        long remaining = pending.deadline - System.currentTimeMillis();
+        if( pending.transmissions > 0 )
+        {
+            if( transfer != null && transfer.madeProgress() && remaining > 0 && started )
+            {
+                // Fragments are still streaming in. Give the peer more time before asking for the missing ones
+                scheduleTransmit( pending, Math.min( rttTracker.timeout( pending.peer, pending.backOffs ), remaining ) );
+                return;
+            }
+            pending.backOffs++;
+        }
+
+        if( pending.attemptsLeft <= 0 || remaining <= 0 || !started )
+        {
+            fail( pending, new TimeoutException( "No response from " + pending.peer ) );
+            return;
+        }
+
+        String message = pending.message;
+        if( transfer != null )
+        {
+            // Ask only for the fragments that didn't make it, instead of the whole response
+            String missing = transfer.missing( Constants.MAX_CHUNKS_PER_REQUEST ).stream().map( String::valueOf ).collect( Collectors.joining( "," ) );
+            message = RequestBuilder.tagRequestId( RequestBuilder.buildRequest( String.format( Constants.CHUNK_REQUEST_MSG_FORMAT, missing ) ), pending.id );
+        }
+
+        pending.sentAt = System.nanoTime();
+        pending.transmissions++;
+        if( batchingPeers.contains( pending.peer ) )
+        {
+            coalescer.send( message, pending.peer );
+        }
+        else
+        {
             try
             {
-                String response = task.get( Constants.RETRY_TIMEOUT_MS, TimeUnit.MILLISECONDS );
-                if( !response.contains( Constants.RESPONSE_FAILURE ) )
-                {
-                    return response;
-                }
+                send( message.getBytes( StandardCharsets.UTF_8 ), pending.peer );
             }
-            catch( Exception e )
+            catch( IOException e )
             {
-                logger.error( "Error occurred when completing request({}) to peer -> {}. Error: {}", request, peer, e );
-                task.cancel( true );
-                retriesLeft--;
+                logger.error( "Error occurred when completing request({}) to peer -> {}. Error: {}", pending.request, pending.peer, e );
             }
         }
+        pending.attemptsLeft--;
+        scheduleTransmit( pending, Math.min( rttTracker.timeout( pending.peer, pending.backOffs ), remaining ) );
+    }
 
-        logger.error( "REQUEST FAILED !!! ({} -> {})", request, peer );
-        if( retries == numOfRetries )
+    private void scheduleTransmit( PendingRequest pending, long delayMs )
+    {
+        try
+        {
+            scheduler.schedule( () -> transmit( pending ), delayMs, TimeUnit.MILLISECONDS );
+        }
+        catch( RejectedExecutionException e )
         {
-            this.node.removeNode( peer );
+            pending.future.cancel( true );
         }
-        return null;
     }
 
+    private void send( byte[] data, InetSocketAddress peer ) throws IOException
+    {
+        socket.send( new DatagramPacket( data, data.length, peer ) );
+    }
 
-    public Object ping( InetSocketAddress peer, Object toBeHandedOver )
+    /**
+     * Runs a blocking task, e.g. a call to the bootstrap server, on the task executor instead of the calling thread.
+     *
+     * @return future completed once the task ran, or exceptionally if it threw or the communicator is not running
+     */
+    public CompletableFuture<Void> runAsync( Runnable task )
     {
-        String base64 = null;
+        ExecutorService executor = executorService;
+        if( !started || executor == null )
+        {
+            return CompletableFuture.failedFuture( new IllegalStateException( "Communicator is not running" ) );
+        }
+
         try
         {
-            base64 = RequestBuilder.buildObjectRequest( toBeHandedOver );
+            return CompletableFuture.runAsync( task, executor );
+        }
+        catch( RejectedExecutionException e )
+        {
+            return CompletableFuture.failedFuture( new IllegalStateException( "Communicator is not running", e ) );
+        }
+    }
+
+    /**
+     * Completes the future of a pending request off the receiver thread, so that callbacks chained by the callers never
+     * hold up receiving.
+     */
+    private void complete( PendingRequest pending, String response )
+    {
+        settle( pending, () -> pending.future.complete( response ) );
+    }
+
+    private void fail( PendingRequest pending, Throwable error )
+    {
+        settle( pending, () -> pending.future.completeExceptionally( error ) );
+    }
+
+    private void settle( PendingRequest pending, Runnable completion )
+    {
+        ExecutorService executor = executorService;
+        if( executor == null )
+        {
+            pending.future.cancel( true );
+            return;
+        }
+
+        try
+        {
+            executor.execute( completion );
+        }
+        catch( RejectedExecutionException e )
+        {
+            pending.future.cancel( true );
+        }
+    }
+
+
+    public Object ping( InetSocketAddress peer, Map<String, VersionedValue> toBeHandedOver )
+    {
+        return awaitOrDefault( pingAsync( peer, toBeHandedOver ), null );
+    }
+
+    public CompletableFuture<Object> pingAsync( InetSocketAddress peer, Map<String, VersionedValue> toBeHandedOver )
+    {
+        return pingAsync( peer, toBeHandedOver, Constants.RETRY_TIMEOUT_MS );
+    }
+
+    /**
+     * Pings a peer handing over the given entries. Pings are sent only once. Entries that don't fit in a single
+     * datagram are split over as many pings as needed.
+     *
+     * @param timeoutMs deadline of the request
+     * @return future completed with the entries the peer didn't take because it already had them
+     */
+    public CompletableFuture<Object> pingAsync( InetSocketAddress peer, Map<String, VersionedValue> toBeHandedOver, long timeoutMs )
+    {
+        String msg;
+        if( binaryPeers.contains( peer ) )
+        {
+            byte[] payload = BinaryCodec.encodeVersionedEntries( toBeHandedOver );
+            msg = String.format( Constants.PING_BINARY_MSG_FORMAT, this.node.getNodeId(), RequestBuilder.encodeBinary( payload ) );
         }
-        catch( IOException e )
+        else
         {
-            logger.error( "Error occurred when encoding entries to be handed over to -> {}", peer, e );
-            throw new IllegalArgumentException( "Unable to encode entries", e );
+            try
+            {
+                msg = String.format( Constants.PING_MSG_FORMAT, this.node.getNodeId(), RequestBuilder.buildObjectRequest( toBeHandedOver ) );
+            }
+            catch( IOException e )
+            {
+                logger.error( "Error occurred when encoding entries to be handed over to -> {}", peer, e );
+                return CompletableFuture.failedFuture( new IllegalArgumentException( "Unable to encode entries", e ) );
+            }
         }
 
-        String msg = String.format( Constants.PING_MSG_FORMAT, this.node.getNodeId(), base64 );
         String request = RequestBuilder.buildRequest( msg );
-        logger.debug( "Pinging -> {}", peer );
-        String response = retryOrTimeout( 1, request, peer );
-        logger.debug( "Received response : {}", response );
-        if( response != null )
+        if( RequestBuilder.utf8Length( request ) > Constants.MAX_REQUEST_SIZE )
         {
-            Object obj = RequestBuilder.base64StringToObject( response );
-            logger.debug( "Received entry table of ({}) -> {}", peer, obj );
-            if( obj != null )
+            if( toBeHandedOver.size() < 2 )
             {
-                return (Object) obj;
+                return CompletableFuture.failedFuture( new IllegalArgumentException( "Entry too large to be handed over: "
+                                                                                         + toBeHandedOver.keySet() ) );
             }
+            Map<String, VersionedValue> first = new HashMap<>();
+            Map<String, VersionedValue> second = new HashMap<>();
+            toBeHandedOver.forEach( ( key, value ) -> ( first.size() < toBeHandedOver.size() / 2 ? first : second ).put( key, value ) );
+            logger.debug( "Splitting {} entries to be handed over to -> {}", toBeHandedOver.size(), peer );
+            return pingAsync( peer, first, timeoutMs ).thenCombine( pingAsync( peer, second, timeoutMs ), Communicator::merge );
         }
-        return null;
+
+        logger.debug( "Pinging -> {}", peer );
+        return sendAsync( request, peer, 1, timeoutMs ).thenApply( response -> {
+            logger.debug( "Received response : {}", response );
+            String[] parts = response.split( Constants.MSG_SEPARATOR );
+            Object obj = RequestBuilder.hasBinaryFlag( parts, 4 )
+                    ? BinaryCodec.decodeVersionedEntries( RequestBuilder.decodeBinary( parts[3], RequestBuilder.hasCompressedFlag( parts, 4 ) ) )
+                    : RequestBuilder.base64StringToObject( parts[3] );
+            logger.debug( "Entries not taken by ({}) -> {}", peer, obj );
+            return obj;
+        } );
     }
 
+    /**
+     * Joins the entries rejected by the pings of a split handover.
+     */
+    private static Object merge( Object rejected, Object more )
+    {
+        if( !( rejected instanceof Map ) || !( more instanceof Map ) )
+        {
+            return rejected instanceof Map ? rejected : more;
+        }
+        Map<Object, Object> merged = new HashMap<>( (Map<?, ?>) rejected );
+        merged.putAll( (Map<?, ?>) more );
+        return merged;
+    }
+
+    /**
+     * A request waiting for its response.
+     */
+    private static class PendingRequest
+    {
+        private final long id;
+        private final InetSocketAddress peer;
+        private final String request;
+        /** Request tagged with its ID, as it goes on the wire */
+        private final String message;
+        private final long deadline;
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+        /** Touched by the caller for the first transmission and by the scheduler thread afterwards */
+        private int attemptsLeft;
+        /** Timeouts so far, each doubling the wait for this request only. Touched by the scheduler thread */
+        private int backOffs;
+        /** Read by the receiver to apply Karn's rule when sampling the RTT */
+        private volatile int transmissions;
+        private volatile long sentAt;
+        private volatile boolean answered;
+        /** Fragments received so far, if the response is chunked */
+        private volatile ChunkAssembler transfer;
+
+        private PendingRequest( long id, InetSocketAddress peer, String request, int attempts, long deadline )
+        {
+            this.id = id;
+            this.peer = peer;
+            this.request = request;
+            this.message = RequestBuilder.tagRequestId( request, id );
+            this.attemptsLeft = attempts;
+            this.deadline = deadline;
+        }
+    }
 }
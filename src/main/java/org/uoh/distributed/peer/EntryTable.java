@@ -0,0 +1,110 @@
+package org.uoh.distributed.peer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Entries stored by this node, ordered by their position on the ring so that the entries of a range of the ring can be
+ * picked without looking at the others. Keys sharing a position are kept together in an immutable bucket, which is
+ * replaced as a whole on every change.
+ */
+public class EntryTable
+{
+    private final ConcurrentSkipListMap<Long, Map<String, VersionedValue>> byPosition = new ConcurrentSkipListMap<>( Long::compareUnsigned );
+
+    public VersionedValue get( String key )
+    {
+        Map<String, VersionedValue> bucket = byPosition.get( NodeIds.key( key ) );
+        return bucket == null ? null : bucket.get( key );
+    }
+
+    /**
+     * Stores the value unless a newer one is stored already.
+     *
+     * @return true if the value was stored
+     */
+    public boolean merge( String key, VersionedValue value )
+    {
+        boolean[] stored = new boolean[1];
+        byPosition.compute( NodeIds.key( key ), ( position, bucket ) -> {
+            stored[0] = bucket == null || value.isNewerThan( bucket.get( key ) );
+            return stored[0] ? with( bucket, key, value ) : bucket;
+        } );
+        return stored[0];
+    }
+
+    /**
+     * Removes the entry only if it still has the given version, so that a newer value isn't lost.
+     */
+    public boolean remove( String key, VersionedValue value )
+    {
+        boolean[] removed = new boolean[1];
+        byPosition.computeIfPresent( NodeIds.key( key ), ( position, bucket ) -> {
+            VersionedValue current = bucket.get( key );
+            removed[0] = current != null && current.getVersion() == value.getVersion();
+            if( !removed[0] )
+            {
+                return bucket;
+            }
+            Map<String, VersionedValue> rest = new HashMap<>( bucket );
+            rest.remove( key );
+            return rest.isEmpty() ? null : Collections.unmodifiableMap( rest );
+        } );
+        return removed[0];
+    }
+
+    /**
+     * @return entries at positions in {@code (from, to]}, going clockwise. The whole ring if both are the same
+     */
+    public Map<String, VersionedValue> range( long from, long to )
+    {
+        Map<String, VersionedValue> entries = new LinkedHashMap<>();
+        if( Long.compareUnsigned( from, to ) < 0 )
+        {
+            collect( byPosition.subMap( from, false, to, true ), entries );
+        }
+        else
+        {
+            collect( byPosition.tailMap( from, false ), entries );
+            collect( byPosition.headMap( to, true ), entries );
+        }
+        return entries;
+    }
+
+    public Map<String, VersionedValue> getEntries()
+    {
+        Map<String, VersionedValue> entries = new LinkedHashMap<>();
+        collect( byPosition, entries );
+        return entries;
+    }
+
+    public int size()
+    {
+        return byPosition.values().stream().mapToInt( Map::size ).sum();
+    }
+
+    public boolean isEmpty()
+    {
+        return byPosition.isEmpty();
+    }
+
+    private static void collect( NavigableMap<Long, Map<String, VersionedValue>> buckets, Map<String, VersionedValue> into )
+    {
+        buckets.values().forEach( into::putAll );
+    }
+
+    private static Map<String, VersionedValue> with( Map<String, VersionedValue> bucket, String key, VersionedValue value )
+    {
+        if( bucket == null )
+        {
+            return Collections.singletonMap( key, value );
+        }
+        Map<String, VersionedValue> updated = new HashMap<>( bucket );
+        updated.put( key, value );
+        return Collections.unmodifiableMap( updated );
+    }
+}
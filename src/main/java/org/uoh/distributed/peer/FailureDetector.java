@@ -0,0 +1,424 @@
+package org.uoh.distributed.peer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.uoh.distributed.utils.Constants;
+import org.uoh.distributed.utils.Futures;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * SWIM failure detector. Every {@link Constants#PROBE_PERIOD_MS} the next peer of a shuffled round robin is probed. If
+ * it doesn't answer within {@link Constants#PROBE_TIMEOUT_MS}, {@link Constants#PROBE_HELPERS} random peers are asked
+ * to probe it for us, and if none of them gets an answer either the peer is suspected. A suspected peer that doesn't
+ * refute the suspicion within {@link Constants#SUSPICION_TIMEOUT_MS} is removed.
+ * <p>
+ * Probes are {@link MembershipGossip} messages, so status changes travel piggybacked on them at no extra cost. Each
+ * node sends one probe per period and is probed about once per period, whatever the size of the cluster.
+ */
+public class FailureDetector
+{
+    private static final Logger logger = LoggerFactory.getLogger( FailureDetector.class );
+
+    private final Node node;
+    private final RoutingTable routingTable;
+    private final ScheduledExecutorService scheduler;
+    private final MembershipGossip gossip = new MembershipGossip();
+
+    /** Guarded by this */
+    private final Map<InetSocketAddress, Member> members = new HashMap<>();
+    /** Recently removed nodes. Guarded by this */
+    private final Map<InetSocketAddress, Member> dead = new HashMap<>();
+    /** Guarded by this */
+    private int incarnation;
+
+    /** Only used by the probing task */
+    private final List<RoutingTableEntry> probeOrder = new ArrayList<>();
+    private int nextProbe;
+
+    public FailureDetector( Node node, ScheduledExecutorService scheduler )
+    {
+        this.node = node;
+        this.routingTable = node.getRoutingTable();
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Tells a few random peers that we joined, the rest will hear about it from them.
+     */
+    public void announce()
+    {
+        synchronized( this )
+        {
+            gossip.add( new MemberUpdate( routingTable.getSelf(), MemberUpdate.Status.ALIVE, incarnation ) );
+        }
+
+        List<RoutingTableEntry> peers = peers();
+        Collections.shuffle( peers, ThreadLocalRandom.current() );
+        for( RoutingTableEntry peer : peers.subList( 0, Math.min( peers.size(), Constants.GOSSIP_FANOUT ) ) )
+        {
+            communicator().gossipAsync( peer.getAddress(), nextUpdates(), Constants.RETRY_TIMEOUT_MS ).whenComplete( ( updates, error ) -> {
+                if( error == null )
+                {
+                    apply( updates );
+                }
+                else
+                {
+                    logger.debug( "Unable to announce myself to {}: {}", peer, error.getMessage() );
+                }
+            } );
+        }
+    }
+
+    /**
+     * Records a node that told us directly that it joined, forgetting whatever we knew about it before.
+     */
+    public synchronized void joined( RoutingTableEntry entry )
+    {
+        dead.remove( entry.getAddress() );
+        Member previous = members.remove( entry.getAddress() );
+        if( previous != null )
+        {
+            previous.cancelTimer();
+        }
+        gossip.add( new MemberUpdate( entry, MemberUpdate.Status.ALIVE, 0 ) );
+    }
+
+    /**
+     * Probes the next peer, asking others to probe it if it doesn't answer.
+     */
+    public void probe()
+    {
+        purgeDead();
+        RoutingTableEntry target = nextTarget();
+        if( target == null )
+        {
+            return;
+        }
+
+        logger.debug( "Probing {}", target );
+        communicator().gossipAsync( target.getAddress(), nextUpdates(), Constants.PROBE_TIMEOUT_MS )
+                      .thenApply( updates -> {
+                          apply( updates );
+                          return true;
+                      } )
+                      .exceptionally( e -> false )
+                      .thenCompose( acked -> acked ? CompletableFuture.completedFuture( true ) : probeIndirectly( target ) )
+                      .thenAccept( acked -> {
+                          if( !acked )
+                          {
+                              logger.warn( "{} didn't answer any probe", target );
+                              suspect( target.getAddress() );
+                          }
+                      } );
+    }
+
+    private CompletableFuture<Boolean> probeIndirectly( RoutingTableEntry target )
+    {
+        List<RoutingTableEntry> helpers = peers();
+        helpers.remove( target );
+        Collections.shuffle( helpers, ThreadLocalRandom.current() );
+        helpers = helpers.subList( 0, Math.min( helpers.size(), Constants.PROBE_HELPERS ) );
+        if( helpers.isEmpty() )
+        {
+            return CompletableFuture.completedFuture( false );
+        }
+
+        logger.debug( "Asking {} to probe {}", helpers, target );
+        long timeout = Math.max( Constants.PROBE_PERIOD_MS - Constants.PROBE_TIMEOUT_MS, Constants.PROBE_TIMEOUT_MS );
+        List<CompletableFuture<List<MemberUpdate>>> requests = helpers.stream()
+                .map( helper -> communicator().probeRequestAsync( helper.getAddress(), target.getAddress(), nextUpdates(), timeout ) )
+                .collect( Collectors.toList() );
+        return Futures.firstK( requests, 1 ).handle( ( answers, error ) -> {
+            if( error != null )
+            {
+                return false;
+            }
+            answers.forEach( this::apply );
+            return true;
+        } );
+    }
+
+    /**
+     * Probes a target on behalf of another node.
+     *
+     * @param updates updates piggybacked on the request
+     * @return future completed with the updates to be piggybacked on the answer, or exceptionally if the target
+     * didn't answer
+     */
+    public CompletableFuture<List<MemberUpdate>> probeFor( InetSocketAddress target, List<MemberUpdate> updates )
+    {
+        apply( updates );
+        return communicator().gossipAsync( target, nextUpdates(), Constants.PROBE_TIMEOUT_MS ).thenApply( answer -> {
+            apply( answer );
+            return nextUpdates();
+        } );
+    }
+
+    /**
+     * Handles membership updates gossiped by a peer.
+     *
+     * @return our own updates, to be piggybacked on the answer
+     */
+    public List<MemberUpdate> onGossip( List<MemberUpdate> updates )
+    {
+        apply( updates );
+        return nextUpdates();
+    }
+
+    /**
+     * Suspects a node, e.g. one that didn't answer a request. It is removed unless it refutes the suspicion in time.
+     */
+    public synchronized void suspect( InetSocketAddress address )
+    {
+        Member member = member( address );
+        if( member != null && member.status == MemberUpdate.Status.ALIVE )
+        {
+            suspect( member, member.incarnation );
+        }
+    }
+
+    /**
+     * @return true if the node was removed recently, in which case hearing about it again is most likely stale
+     */
+    public synchronized boolean isDead( RoutingTableEntry entry )
+    {
+        Member tombstone = dead.get( entry.getAddress() );
+        return tombstone != null && tombstone.entry.equals( entry ) && tombstone.expiresAt > System.currentTimeMillis();
+    }
+
+    public synchronized MemberUpdate.Status statusOf( InetSocketAddress address )
+    {
+        Member member = member( address );
+        return member == null ? MemberUpdate.Status.DEAD : member.status;
+    }
+
+    public synchronized int getIncarnation()
+    {
+        return incarnation;
+    }
+
+    private void apply( List<MemberUpdate> updates )
+    {
+        updates.forEach( this::apply );
+    }
+
+    private synchronized void apply( MemberUpdate update )
+    {
+        RoutingTableEntry entry = update.getEntry();
+        InetSocketAddress address = entry.getAddress();
+        RoutingTableEntry self = routingTable.getSelf();
+        if( self != null && address.equals( self.getAddress() ) )
+        {
+            if( update.getStatus() != MemberUpdate.Status.ALIVE && update.getIncarnation() >= incarnation )
+            {
+                incarnation = update.getIncarnation() + 1;
+                logger.info( "Refuting {}", update );
+                gossip.add( new MemberUpdate( self, MemberUpdate.Status.ALIVE, incarnation ) );
+            }
+            return;
+        }
+
+        Member member = member( address );
+        boolean known = member != null && member.entry.equals( entry );
+        switch( update.getStatus() )
+        {
+            case ALIVE:
+                if( !known )
+                {
+                    Member tombstone = dead.get( address );
+                    if( tombstone != null && tombstone.entry.equals( entry ) && update.getIncarnation() <= tombstone.incarnation )
+                    {
+                        return;
+                    }
+                    dead.remove( address );
+                    if( member == null )
+                    {
+                        routingTable.learn( entry );
+                    }
+                    else
+                    {
+                        member.cancelTimer();
+                        routingTable.addEntry( entry );
+                    }
+                    logger.debug( "Heard that {} has joined", entry );
+                    members.put( address, new Member( entry, MemberUpdate.Status.ALIVE, update.getIncarnation() ) );
+                    gossip.add( update );
+                }
+                else if( update.getIncarnation() > member.incarnation )
+                {
+                    if( member.status == MemberUpdate.Status.SUSPECT )
+                    {
+                        logger.info( "{} is alive after all", entry );
+                    }
+                    member.cancelTimer();
+                    member.status = MemberUpdate.Status.ALIVE;
+                    member.incarnation = update.getIncarnation();
+                    gossip.add( update );
+                }
+                break;
+            case SUSPECT:
+                if( known && ( update.getIncarnation() > member.incarnation
+                        || member.status == MemberUpdate.Status.ALIVE && update.getIncarnation() == member.incarnation ) )
+                {
+                    suspect( member, update.getIncarnation() );
+                }
+                break;
+            case DEAD:
+                if( known && update.getIncarnation() >= member.incarnation )
+                {
+                    remove( member, update.getIncarnation() );
+                }
+                break;
+        }
+    }
+
+    private void suspect( Member member, int incarnation )
+    {
+        logger.info( "Suspecting {}", member.entry );
+        member.cancelTimer();
+        member.status = MemberUpdate.Status.SUSPECT;
+        member.incarnation = incarnation;
+        gossip.add( new MemberUpdate( member.entry, MemberUpdate.Status.SUSPECT, incarnation ) );
+        try
+        {
+            member.timer = scheduler.schedule( () -> confirm( member, incarnation ), Constants.SUSPICION_TIMEOUT_MS, TimeUnit.MILLISECONDS );
+        }
+        catch( RejectedExecutionException e )
+        {
+            logger.debug( "Not confirming suspicion of {}, the node is stopping", member.entry );
+        }
+    }
+
+    private synchronized void confirm( Member member, int incarnation )
+    {
+        if( members.get( member.entry.getAddress() ) == member && member.status == MemberUpdate.Status.SUSPECT
+                && member.incarnation == incarnation )
+        {
+            remove( member, incarnation );
+        }
+    }
+
+    private void remove( Member member, int incarnation )
+    {
+        logger.warn( "Removing {}, it is considered dead", member.entry );
+        member.cancelTimer();
+        InetSocketAddress address = member.entry.getAddress();
+        members.remove( address );
+        Member tombstone = new Member( member.entry, MemberUpdate.Status.DEAD, incarnation );
+        tombstone.expiresAt = System.currentTimeMillis() + Constants.DEAD_MEMBER_TTL_MS;
+        dead.put( address, tombstone );
+        node.forget( member.entry );
+        gossip.add( new MemberUpdate( member.entry, MemberUpdate.Status.DEAD, incarnation ) );
+    }
+
+    /**
+     * @return state of the node at the address, or null if it isn't in the routing table
+     */
+    private Member member( InetSocketAddress address )
+    {
+        RoutingTableEntry current = routingTable.findByAddress( address ).orElse( null );
+        Member member = members.get( address );
+        if( current == null || member == null || !member.entry.equals( current ) )
+        {
+            if( member != null )
+            {
+                member.cancelTimer();
+                members.remove( address );
+            }
+            if( current == null )
+            {
+                return null;
+            }
+            member = new Member( current, MemberUpdate.Status.ALIVE, 0 );
+            members.put( address, member );
+        }
+        return member;
+    }
+
+    private synchronized void purgeDead()
+    {
+        long now = System.currentTimeMillis();
+        dead.values().removeIf( tombstone -> tombstone.expiresAt <= now );
+    }
+
+    private RoutingTableEntry nextTarget()
+    {
+        boolean refilled = false;
+        while( true )
+        {
+            if( nextProbe >= probeOrder.size() )
+            {
+                if( refilled )
+                {
+                    return null;
+                }
+                probeOrder.clear();
+                probeOrder.addAll( peers() );
+                Collections.shuffle( probeOrder, ThreadLocalRandom.current() );
+                nextProbe = 0;
+                refilled = true;
+                continue;
+            }
+
+            RoutingTableEntry candidate = probeOrder.get( nextProbe++ );
+            if( routingTable.findByAddress( candidate.getAddress() ).filter( candidate::equals ).isPresent() )
+            {
+                return candidate;
+            }
+        }
+    }
+
+    private List<RoutingTableEntry> peers()
+    {
+        RoutingTableEntry self = routingTable.getSelf();
+        return routingTable.getEntries().stream().filter( entry -> !entry.equals( self ) ).collect( Collectors.toList() );
+    }
+
+    private List<MemberUpdate> nextUpdates()
+    {
+        return gossip.next( routingTable.size() );
+    }
+
+    private Communicator communicator()
+    {
+        return node.getCommunicationProvider();
+    }
+
+    private static class Member
+    {
+        private final RoutingTableEntry entry;
+        private MemberUpdate.Status status;
+        private int incarnation;
+        private ScheduledFuture<?> timer;
+        private long expiresAt;
+
+        private Member( RoutingTableEntry entry, MemberUpdate.Status status, int incarnation )
+        {
+            this.entry = entry;
+            this.status = status;
+            this.incarnation = incarnation;
+        }
+
+        private void cancelTimer()
+        {
+            if( timer != null )
+            {
+                timer.cancel( false );
+                timer = null;
+            }
+        }
+    }
+}
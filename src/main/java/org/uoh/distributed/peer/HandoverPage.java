@@ -0,0 +1,36 @@
+package org.uoh.distributed.peer;
+
+import java.util.Map;
+
+/**
+ * Page of the entries handed over to a joining node, see {@link org.uoh.distributed.utils.Constants#HANDOVER}.
+ */
+public class HandoverPage
+{
+    private final Map<String, VersionedValue> entries;
+    private final int next;
+
+    public HandoverPage( Map<String, VersionedValue> entries, int next )
+    {
+        this.entries = entries;
+        this.next = next;
+    }
+
+    public Map<String, VersionedValue> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * @return offset of the next page, -1 if this was the last one
+     */
+    public int getNext()
+    {
+        return next;
+    }
+
+    public boolean isLast()
+    {
+        return next < 0;
+    }
+}
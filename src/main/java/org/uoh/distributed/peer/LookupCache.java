@@ -0,0 +1,149 @@
+package org.uoh.distributed.peer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Results of recent lookups, kept as ranges of the ring along with the node responsible for them, so that any key of a
+ * range that was looked up before resolves without a hop. A lookup resolved by node P to its successor S tells that S
+ * owns all of {@code (P, S]}, not only the key looked up.
+ * <p>
+ * Only node ID lookups go through it, i.e. the finger maintenance and the CLI. Puts and gets don't need it: every node
+ * knows the whole membership, so the replicas of a key are read off the local {@link TokenRing} without a hop.
+ * <p>
+ * Holds at most a given number of ranges, dropping the least recently used one first, and each range only for a
+ * while. All of them are dropped once the membership changes, i.e. on any change of the {@link RoutingTable#getVersion()
+ * version} of the routing table.
+ */
+public class LookupCache
+{
+    private final int capacity;
+    private final long ttlMs;
+    /** Ranges by their last position, compared unsigned. Guarded by this */
+    private final TreeMap<Long, CachedRange> byEnd = new TreeMap<>( Long::compareUnsigned );
+    /** Same ranges, least recently used first. Guarded by this */
+    private final Map<Long, CachedRange> byUse = new LinkedHashMap<>( 16, 0.75f, true );
+    /** Version of the routing table the ranges were found at. Guarded by this */
+    private long version;
+    private long hits;
+    private long misses;
+
+    public LookupCache( int capacity, long ttlMs )
+    {
+        this.capacity = capacity;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * @param key     position on the ring
+     * @param version current version of the routing table
+     * @return node responsible for the key, if a range holding it was found recently
+     */
+    public synchronized Optional<RoutingTableEntry> get( long key, long version )
+    {
+        invalidateIfChanged( version );
+        // The range holding the key is the first one ending at or after it, going clockwise
+        Map.Entry<Long, CachedRange> entry = byEnd.ceilingEntry( key );
+        if( entry == null )
+        {
+            entry = byEnd.firstEntry();
+        }
+
+        CachedRange range = entry == null ? null : entry.getValue();
+        if( range != null && range.expiresAt < System.currentTimeMillis() )
+        {
+            remove( entry.getKey() );
+            range = null;
+        }
+        if( range == null || !RoutingTable.inHalfOpenInterval( key, range.from, range.owner.getNodeId() ) )
+        {
+            misses++;
+            return Optional.empty();
+        }
+
+        byUse.get( entry.getKey() );
+        hits++;
+        return Optional.of( range.owner );
+    }
+
+    /**
+     * Remembers that the owner is responsible for the keys in {@code (from, owner]}.
+     *
+     * @param version version of the routing table when the lookup started
+     */
+    public synchronized void put( long from, RoutingTableEntry owner, long version )
+    {
+        invalidateIfChanged( version );
+        if( this.version != version || capacity <= 0 )
+        {
+            // Found before the last membership change, may be stale already
+            return;
+        }
+
+        CachedRange range = new CachedRange( from, owner, System.currentTimeMillis() + ttlMs );
+        byEnd.put( owner.getNodeId(), range );
+        byUse.put( owner.getNodeId(), range );
+        if( byUse.size() > capacity )
+        {
+            remove( byUse.keySet().iterator().next() );
+        }
+    }
+
+    public synchronized void clear()
+    {
+        byEnd.clear();
+        byUse.clear();
+    }
+
+    public synchronized int size()
+    {
+        return byEnd.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "LookupCache{ranges=" + byEnd.size() + ", hits=" + hits + ", misses=" + misses + "}";
+    }
+
+    private void invalidateIfChanged( long version )
+    {
+        if( version > this.version )
+        {
+            clear();
+            this.version = version;
+        }
+    }
+
+    private void remove( long end )
+    {
+        byEnd.remove( end );
+        byUse.remove( end );
+    }
+
+    private static class CachedRange
+    {
+        private final long from;
+        private final RoutingTableEntry owner;
+        private final long expiresAt;
+
+        private CachedRange( long from, RoutingTableEntry owner, long expiresAt )
+        {
+            this.from = from;
+            this.owner = owner;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
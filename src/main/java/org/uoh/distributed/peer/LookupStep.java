@@ -0,0 +1,33 @@
+package org.uoh.distributed.peer;
+
+/**
+ * Answer of a node to a {@link org.uoh.distributed.utils.Constants#FIND_SUCCESSOR} request: either the successor of
+ * the key, or the node to be asked next.
+ */
+public class LookupStep
+{
+    private final boolean found;
+    private final RoutingTableEntry entry;
+
+    public LookupStep( boolean found, RoutingTableEntry entry )
+    {
+        this.found = found;
+        this.entry = entry;
+    }
+
+    public boolean isFound()
+    {
+        return found;
+    }
+
+    public RoutingTableEntry getEntry()
+    {
+        return entry;
+    }
+
+    @Override
+    public String toString()
+    {
+        return ( found ? "found " : "next " ) + entry;
+    }
+}
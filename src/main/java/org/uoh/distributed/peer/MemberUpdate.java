@@ -0,0 +1,45 @@
+package org.uoh.distributed.peer;
+
+/**
+ * What a node believes about another node, as spread by gossip. The incarnation is only ever raised by the node itself,
+ * when it refutes being suspected, so that its refutation overrides the suspicion.
+ */
+public class MemberUpdate
+{
+    public enum Status
+    {
+        ALIVE, SUSPECT, DEAD
+    }
+
+    private final RoutingTableEntry entry;
+    private final Status status;
+    private final int incarnation;
+
+    public MemberUpdate( RoutingTableEntry entry, Status status, int incarnation )
+    {
+        this.entry = entry;
+        this.status = status;
+        this.incarnation = incarnation;
+    }
+
+    public RoutingTableEntry getEntry()
+    {
+        return entry;
+    }
+
+    public Status getStatus()
+    {
+        return status;
+    }
+
+    public int getIncarnation()
+    {
+        return incarnation;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "%s %s (incarnation %d)", status, entry, incarnation );
+    }
+}
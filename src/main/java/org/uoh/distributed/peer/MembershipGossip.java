@@ -0,0 +1,91 @@
+package org.uoh.distributed.peer;
+
+import org.uoh.distributed.utils.Constants;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Membership updates waiting to be spread by gossip. Every gossip message carries a few of them, the ones sent the
+ * least first, and an update is dropped once it has been sent {@link #retransmitLimit(int)} times, i.e.
+ * {@code GOSSIP_RETRANSMIT_MULTIPLIER * ceil(log2(N + 1))} for a cluster of N nodes. Since every node receiving an
+ * update for the first time spreads it too, an update reaches the whole cluster in O(log N) gossip rounds with high
+ * probability.
+ * <p>
+ * Only the latest update about a node is kept, e.g. a node that was suspected and refuted it is only gossiped as alive.
+ * <p>
+ * Thread safe, updates are piggybacked by concurrent probes, acks and responses.
+ */
+public class MembershipGossip
+{
+    private final Map<InetSocketAddress, Pending> updates = new ConcurrentHashMap<>();
+
+    public void add( MemberUpdate update )
+    {
+        updates.put( update.getEntry().getAddress(), new Pending( update ) );
+    }
+
+    public boolean isEmpty()
+    {
+        return updates.isEmpty();
+    }
+
+    public int size()
+    {
+        return updates.size();
+    }
+
+    /**
+     * Picks the updates to be piggybacked on the next gossip message, counting it as a transmission.
+     *
+     * @param clusterSize number of nodes known, which bounds how many times an update is sent
+     * @return updates to be sent, which may be none
+     */
+    public List<MemberUpdate> next( int clusterSize )
+    {
+        List<Pending> candidates = new ArrayList<>( updates.values() );
+        candidates.sort( Comparator.comparingInt( pending -> pending.transmissions.get() ) );
+
+        int limit = retransmitLimit( clusterSize );
+        List<MemberUpdate> next = new ArrayList<>();
+        for( Pending pending : candidates.subList( 0, Math.min( candidates.size(), Constants.GOSSIP_MAX_UPDATES ) ) )
+        {
+            int transmissions = pending.transmissions.incrementAndGet();
+            if( transmissions >= limit )
+            {
+                updates.remove( pending.update.getEntry().getAddress(), pending );
+            }
+            // Unless a concurrent caller sent it often enough in the meantime
+            if( transmissions <= limit )
+            {
+                next.add( pending.update );
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return how many times an update is sent before it is dropped
+     */
+    public static int retransmitLimit( int clusterSize )
+    {
+        int rounds = 32 - Integer.numberOfLeadingZeros( Math.max( clusterSize, 1 ) );
+        return Constants.GOSSIP_RETRANSMIT_MULTIPLIER * rounds;
+    }
+
+    private static class Pending
+    {
+        private final MemberUpdate update;
+        private final AtomicInteger transmissions = new AtomicInteger();
+
+        private Pending( MemberUpdate update )
+        {
+            this.update = update;
+        }
+    }
+}
@@ -3,6 +3,8 @@ package org.uoh.distributed.peer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.uoh.distributed.utils.Constants;
+import org.uoh.distributed.utils.Futures;
+import org.uoh.distributed.utils.ThreadPools;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -11,16 +13,25 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -33,14 +44,42 @@ public class Node
     private final String username;
     private final String ipAddress;
     private final int port;
-    private int nodeId;
+    private long nodeId;
     private final RoutingTable routingTable = new RoutingTable();
+    private final RttTracker rttTracker = new RttTracker();
+    private final LookupCache lookupCache = new LookupCache( Constants.LOOKUP_CACHE_SIZE, Constants.LOOKUP_CACHE_TTL_MS );
 
     private final NodeServer server;
     private final Communicator communicationProvider;   //  Peer communication provider
 
     private ScheduledExecutorService executorService;
     private ScheduledFuture<?> periodicTask;
+    private ScheduledFuture<?> stabilizeTask;
+    private ScheduledFuture<?> syncTask;
+    private ScheduledFuture<?> repairTask;
+    private ScheduledFuture<?> leaseTask;
+    private volatile FailureDetector failureDetector;
+    /** Last routing table sync with each peer, the next sync only asks for what changed since then */
+    private final Map<InetSocketAddress, RoutingDelta> lastSyncs = new ConcurrentHashMap<>();
+
+    private final EntryTable entryTable = new EntryTable();
+    /** Held for reading while storing an entry, for writing while picking the entries to be handed over to a node */
+    private final ReadWriteLock ownershipLock = new ReentrantReadWriteLock();
+    /** Entries being handed over to joining nodes, by joining node */
+    private final Map<InetSocketAddress, OutgoingHandover> handovers = new ConcurrentHashMap<>();
+    /** Versions of the entries written by this node, see {@link #nextVersion()} */
+    private final AtomicLong clock = new AtomicLong();
+    /** Ring as of the last repair of the replicas */
+    private volatile TokenRing repairedRing;
+    /** Whether we hold entries we aren't a replica of */
+    private volatile boolean strayEntries;
+    private final AtomicBoolean repairing = new AtomicBoolean();
+    /** When the bootstrap server last accepted our registration */
+    private volatile long registeredAt;
+    /** Whether a renewal of the lease, or registering again, is in flight */
+    private final AtomicBoolean renewing = new AtomicBoolean();
+    /** Finger to be fixed by the next stabilization round */
+    private int nextFinger;
 
     private BootstrapConnector bootstrapProvider = new BootstrapConnector();
 
@@ -73,28 +112,35 @@ public class Node
         state.checkState( NodeState.IDLE );
         Runtime.getRuntime().addShutdownHook( new Thread( this::stop ) );
 
-        executorService = Executors.newScheduledThreadPool( 3 );
+        executorService = ThreadPools.newScheduledExecutor( 3 );
+        failureDetector = new FailureDetector( this, executorService );
         server.start( this );
         communicationProvider.start( this );
 
 
         logger.debug( "Connecting to the distributed network" );
+        long deadline = System.currentTimeMillis() + Constants.JOIN_TIMEOUT_MS;
+        int attempt = 0;
         while( !state.isState( NodeState.CONNECTING ) )
         {
             if( state.isState( NodeState.REGISTERED ) )
             {
                 unregister();
             }
+            if( attempt++ > 0 && !backOff( attempt, deadline ) )
+            {
+                stop();
+                throw new IllegalStateException( "Unable to join the network within " + Constants.JOIN_TIMEOUT_MS + " ms" );
+            }
 
             List<InetSocketAddress> peers = register();  // Get 2 peers
 
             if( state.isState( NodeState.REGISTERED ) )
             {
-                Set<RoutingTableEntry> entries = connect( peers );
-                // peer size become 0 only when we connected successfully
-                if( peers.size() == 0 || entries.size() > 0 )
+                Optional<Set<RoutingTableEntry>> entries = connect( peers, deadline );
+                if( entries.isPresent() )
                 {
-                    this.updateRoutingTable( entries );
+                    this.updateRoutingTable( entries.get() );
                     state.setState( NodeState.CONNECTING );
                     logger.info( "Successfully connected to the network and created routing table" );
                 }
@@ -103,22 +149,18 @@ public class Node
         }
         // 1. Select a Node Name
         this.nodeId = selectNodeName();
-        logger.info( "Selected node ID -> {}", this.nodeId );
+        logger.info( "Selected node ID -> {}", NodeIds.toString( this.nodeId ) );
 
-        // 2. Add my node to my routing table
-        routingTable.addEntry( new RoutingTableEntry( new InetSocketAddress( ipAddress, port ), this.nodeId ) );
+        // 2. Add my node to my routing table and take my place on the ring
+        routingTable.setSelf( new RoutingTableEntry( new InetSocketAddress( ipAddress, port ), this.nodeId ) );
         logger.info( "My routing table is -> {}", routingTable.getEntries() );
+        logger.info( "My successor is -> {}, predecessor -> {}", routingTable.getSuccessor(), routingTable.getPredecessor() );
         state.setState( NodeState.CONNECTED );
 
 
         configure();
         state.setState( NodeState.CONFIGURED );
 
-        // TODO: 10/24/17 Periodic synchronization
-        /*
-         * 1. Find 2 predecessors of mine.
-         * 2. Then periodically ping them and synchronize with their entry tables.
-         */
         periodicTask = executorService.scheduleAtFixedRate( () -> {
                         try
                         {
@@ -128,7 +170,59 @@ public class Node
                         {
                             logger.error( "Error occurred when running periodic check", e );
                         }
-        }, Constants.HEARTBEAT_INITIAL_DELAY, Constants.HEARTBEAT_FREQUENCY_MS, TimeUnit.MILLISECONDS );
+        }, Constants.PROBE_PERIOD_MS, Constants.PROBE_PERIOD_MS, TimeUnit.MILLISECONDS );
+
+        stabilizeTask = executorService.scheduleAtFixedRate( () -> {
+            try
+            {
+                stabilize();
+                fixNextFinger();
+            }
+            catch( Exception e )
+            {
+                logger.error( "Error occurred when stabilizing", e );
+            }
+        }, Constants.STABILIZE_INITIAL_DELAY_MS, Constants.STABILIZE_PERIOD_MS, TimeUnit.MILLISECONDS );
+
+        syncTask = executorService.scheduleAtFixedRate( () -> {
+            try
+            {
+                syncRoutingTable();
+            }
+            catch( Exception e )
+            {
+                logger.error( "Error occurred when synchronizing routing table", e );
+            }
+        }, Constants.ROUTING_SYNC_PERIOD_MS, Constants.ROUTING_SYNC_PERIOD_MS, TimeUnit.MILLISECONDS );
+
+        repairTask = executorService.scheduleAtFixedRate( () -> {
+            try
+            {
+                repair();
+            }
+            catch( Exception e )
+            {
+                logger.error( "Error occurred when repairing replicas", e );
+            }
+        }, Constants.REPAIR_PERIOD_MS, Constants.REPAIR_PERIOD_MS, TimeUnit.MILLISECONDS );
+
+        long renewPeriod = Constants.BOOTSTRAP_LEASE_MS / 3;
+        // The lease runs from the registration, a slow join may have used up most of it
+        long firstRenewal = Math.max( 0, registeredAt + renewPeriod - System.currentTimeMillis() );
+        // Registering again may block for a while, which would hold up probing on the scheduler
+        leaseTask = executorService.scheduleAtFixedRate( () -> {
+            if( !renewing.compareAndSet( false, true ) )
+            {
+                return;
+            }
+            communicationProvider.runAsync( this::renewLease ).whenComplete( ( done, error ) -> {
+                if( error != null )
+                {
+                    logger.error( "Error occurred when renewing the lease", error );
+                }
+                renewing.set( false );
+            } );
+        }, firstRenewal, renewPeriod, TimeUnit.MILLISECONDS );
     }
 
     /**
@@ -155,6 +249,7 @@ public class Node
         }
         else
         {
+            registeredAt = System.currentTimeMillis();
             state.setState( NodeState.REGISTERED );
             logger.info( "Node ({}:{}) registered successfully. Peers -> {}", ipAddress, port, peers );
         }
@@ -165,55 +260,715 @@ public class Node
 
     private void configure()
     {
-        // Broadcast that I have joined the network to all entries in the routing table
-        this.routingTable.getEntries().parallelStream()
-                         .filter( entry -> entry.getNodeId() != this.nodeId )
-                         .forEach( entry -> {
-                             Object toBeUndertaken = communicationProvider.notifyNewNode( entry.getAddress(), ipAddress, port , this.nodeId );
-                         } );
-        /*
-            Do some specific work
-            1) Load global map
-            2) If need to join to chord then join
-         */
+        // Only the successor is told directly, as it hands over the entries that are mine now. Everyone else hears
+        // about me through gossip, so a join costs the same however large the network is
+        RoutingTableEntry successor = routingTable.getSuccessor();
+        if( successor != null )
+        {
+            try
+            {
+                communicationProvider.notifyNewNodeAsync( successor.getAddress(), ipAddress, port, this.nodeId ).join();
+                logger.debug( "Notified successor {} about joining", successor );
+            }
+            catch( CompletionException e )
+            {
+                logger.warn( "Successor {} was not notified about joining", successor, e.getCause() );
+            }
+        }
+        failureDetector.announce();
+        takeOver();
+    }
+
+    /**
+     * Chord stabilization: adopts the predecessor of our successor if it sits between us, then tells the successor
+     * about us. A successor that doesn't answer is removed by the communicator, which moves the successor on.
+     */
+    private void stabilize()
+    {
+        checkPredecessor();
+
+        RoutingTableEntry successor = routingTable.getSuccessor();
+        if( successor == null )
+        {
+            return;
+        }
+
+        RoutingTableEntry self = routingTable.getSelf();
+        communicationProvider.getPredecessorAsync( successor.getAddress() )
+                             .thenCompose( predecessor -> {
+                                 predecessor.filter( p -> RoutingTable.inOpenInterval( p.getNodeId(), self.getNodeId(), successor.getNodeId() ) )
+                                            .ifPresent( p -> {
+                                                logger.debug( "Found a closer successor -> {}", p );
+                                                routingTable.learn( p );
+                                            } );
+                                 RoutingTableEntry current = routingTable.getSuccessor();
+                                 return current == null ? CompletableFuture.completedFuture( false )
+                                         : communicationProvider.notifyPredecessorAsync( current.getAddress(), self );
+                             } )
+                             .exceptionally( e -> {
+                                 logger.warn( "Unable to stabilize with successor -> {}: {}", successor, e.getMessage() );
+                                 return false;
+                             } );
+    }
 
+    /**
+     * Makes sure the predecessor is still alive, so that a dead one isn't handed out to nodes stabilizing with us.
+     */
+    private void checkPredecessor()
+    {
+        RoutingTableEntry predecessor = routingTable.getPredecessor();
+        if( predecessor != null )
+        {
+            communicationProvider.getPredecessorAsync( predecessor.getAddress() )
+                                 .exceptionally( e -> {
+                                     logger.warn( "Predecessor {} is not responding", predecessor );
+                                     return Optional.empty();
+                                 } );
+        }
+    }
+
+    /**
+     * Refreshes one finger per round, going around the finger table.
+     */
+    private void fixNextFinger()
+    {
+        int index = nextFinger;
+        nextFinger = ( nextFinger + 1 ) % routingTable.getFingerCount();
+        findNodeSuccessor( routingTable.fingerStart( index ) ).whenComplete( ( entry, error ) -> {
+            if( error == null )
+            {
+                routingTable.setFinger( index, entry );
+            }
+            else
+            {
+                logger.debug( "Unable to fix finger {}", index, error );
+            }
+        } );
+    }
+
+    /**
+     * Finds the first node whose node ID is at or after a position of the ring, as used for the finger pointers. This is
+     * not the owner of a key, keys are placed on the virtual nodes of the {@link TokenRing}, see
+     * {@link RoutingTable#ownerOf(long)}. The request goes from finger to finger, each hop at least halving the distance
+     * to the position, so it takes O(log N) hops. Fingers with a lower RTT are preferred where several make enough
+     * progress. Positions in a range looked up recently resolve without a hop, see {@link LookupCache}.
+     *
+     * @param position position on the ring
+     * @return future completed with the node ID successor of the position
+     */
+    public CompletableFuture<RoutingTableEntry> findNodeSuccessor( long position )
+    {
+        RoutingTableEntry self = routingTable.getSelf();
+        RoutingTableEntry successor = routingTable.getSuccessor();
+        if( self == null )
+        {
+            CompletableFuture<RoutingTableEntry> failed = new CompletableFuture<>();
+            failed.completeExceptionally( new IllegalStateException( "Node is not on the ring yet" ) );
+            return failed;
+        }
+        if( successor == null )
+        {
+            return CompletableFuture.completedFuture( self );
+        }
+        if( routingTable.isSuccessorOf( position ) )
+        {
+            return CompletableFuture.completedFuture( successor );
+        }
+
+        long version = routingTable.getVersion();
+        Optional<RoutingTableEntry> cached = lookupCache.get( position, version );
+        if( cached.isPresent() )
+        {
+            return CompletableFuture.completedFuture( cached.get() );
+        }
+
+        RoutingTableEntry next = routingTable.closestPrecedingNode( position, rttTracker );
+        return lookup( position, next.getNodeId() == self.getNodeId() ? successor : next, 1, version );
+    }
+
+    private CompletableFuture<RoutingTableEntry> lookup( long key, RoutingTableEntry hop, int hops, long version )
+    {
+        if( hops > Constants.MAX_LOOKUP_HOPS )
+        {
+            CompletableFuture<RoutingTableEntry> failed = new CompletableFuture<>();
+            failed.completeExceptionally( new IllegalStateException( "Lookup of key " + key + " took more than " + Constants.MAX_LOOKUP_HOPS + " hops" ) );
+            return failed;
+        }
+
+        return communicationProvider.findSuccessorAsync( hop.getAddress(), key ).thenCompose( step -> {
+            routingTable.learn( step.getEntry() );
+            if( step.isFound() )
+            {
+                logger.debug( "Resolved key {} to {} in {} hop(s)", key, step.getEntry(), hops );
+                // The hop answered with its successor, which owns all the keys after the hop unless it fell back to it
+                long from = RoutingTable.inHalfOpenInterval( key, hop.getNodeId(), step.getEntry().getNodeId() ) ? hop.getNodeId() : key - 1;
+                lookupCache.put( from, step.getEntry(), version );
+                return CompletableFuture.completedFuture( step.getEntry() );
+            }
+            return lookup( key, step.getEntry(), hops + 1, version );
+        } );
+    }
+
+    /**
+     * Pulls the routing table changes of a random peer since our last sync with it. The first sync with a peer, or one
+     * that fell too far behind, gets its whole table instead.
+     */
+    private void syncRoutingTable()
+    {
+        List<RoutingTableEntry> peers = routingTable.getEntries().stream()
+                                                    .filter( entry -> entry.getNodeId() != this.nodeId )
+                                                    .collect( Collectors.toList() );
+        if( peers.isEmpty() )
+        {
+            return;
+        }
+
+        InetSocketAddress peer = peers.get( ThreadLocalRandom.current().nextInt( peers.size() ) ).getAddress();
+        RoutingDelta last = lastSyncs.get( peer );
+        long epoch = last == null ? 0 : last.getEpoch();
+        long version = last == null ? 0 : last.getToVersion();
+        communicationProvider.syncRoutingTableAsync( peer, epoch, version ).whenComplete( ( delta, error ) -> {
+            if( error == null )
+            {
+                applyRoutingDelta( delta );
+                lastSyncs.put( peer, delta );
+            }
+            else
+            {
+                logger.debug( "Unable to sync routing table with {}: {}", peer, error.getMessage() );
+                lastSyncs.remove( peer );
+            }
+        } );
+    }
+
+    /**
+     * Applies the changes of a peer's routing table. A full delta only adds entries, as we may know of nodes the peer
+     * doesn't. A node the peer removed is only suspected, so that a stale or wrong peer can't evict live nodes: those
+     * refute the suspicion with a newer incarnation.
+     */
+    private void applyRoutingDelta( RoutingDelta delta )
+    {
+        logger.debug( "Applying routing table {}", delta );
+        RoutingTableEntry self = routingTable.getSelf();
+        FailureDetector detector = this.failureDetector;
+        delta.getRemoved().stream()
+             .filter( entry -> !entry.equals( self ) && routingTable.findByAddress( entry.getAddress() ).filter( entry::equals ).isPresent() )
+             .forEach( entry -> {
+                 if( detector != null )
+                 {
+                     detector.suspect( entry.getAddress() );
+                 }
+                 else
+                 {
+                     forget( entry );
+                 }
+             } );
+        delta.getAdded().stream()
+             .filter( entry -> !failureDetector.isDead( entry ) )
+             .forEach( routingTable::learn );
     }
 
     private void runPeriodically()
     {
-        /*
-           1) ping to other Nodes
-           2) Synchronize Map
-         */
+        failureDetector.probe();
+        long now = System.currentTimeMillis();
+        handovers.values().removeIf( handover -> handover.expiresAt < now );
+    }
+
+    /**
+     * Writes an entry to its replicas, i.e. the owner of its key and the nodes following it on the ring.
+     *
+     * @return future completed once {@link Constants#WRITE_QUORUM} replicas stored the entry
+     */
+    public CompletableFuture<Void> put( String key, String value )
+    {
+        List<RoutingTableEntry> replicas = replicasOf( key );
+        if( replicas.isEmpty() )
+        {
+            return notOnRing();
+        }
 
+        VersionedValue versioned = new VersionedValue( value, nextVersion() );
+        List<CompletableFuture<Boolean>> acks = replicas.stream().map( replica -> isSelf( replica )
+                ? CompletableFuture.completedFuture( storeEntry( key, versioned ) )
+                : communicationProvider.putAsync( replica.getAddress(), key, versioned ) ).collect( Collectors.toList() );
+        return Futures.firstK( acks, Math.min( Constants.WRITE_QUORUM, acks.size() ) ).thenApply( ignored -> null );
     }
 
+    /**
+     * Reads an entry from all of its replicas at once.
+     *
+     * @return future completed with the newest of the first {@link Constants#READ_QUORUM} values that arrive, empty if
+     * enough replicas answered that they don't have the entry
+     */
+    public CompletableFuture<Optional<String>> get( String key )
+    {
+        List<RoutingTableEntry> replicas = replicasOf( key );
+        if( replicas.isEmpty() )
+        {
+            return notOnRing();
+        }
+
+        List<CompletableFuture<Optional<VersionedValue>>> answers = replicas.stream().map( replica -> isSelf( replica )
+                ? CompletableFuture.completedFuture( Optional.ofNullable( entryTable.get( key ) ) )
+                : communicationProvider.getAsync( replica.getAddress(), key ) ).collect( Collectors.toList() );
+        // A replica without the entry, e.g. one that just took over the range, is only believed if no other has it
+        List<CompletableFuture<VersionedValue>> found = answers.stream()
+                                                             .map( answer -> answer.thenApply( value -> value.orElseThrow( NoSuchElementException::new ) ) )
+                                                             .collect( Collectors.toList() );
+        int quorum = Math.min( Constants.READ_QUORUM, answers.size() );
+        return Futures.firstK( found, quorum ).handle( ( values, error ) -> {
+            if( error == null )
+            {
+                return CompletableFuture.completedFuture( newest( values ) );
+            }
+            return CompletableFuture.allOf( answers.toArray( new CompletableFuture<?>[0] ) ).handle( ( done, ignored ) -> {
+                List<Optional<VersionedValue>> answered = answers.stream()
+                                                                 .filter( answer -> !answer.isCompletedExceptionally() )
+                                                                 .map( CompletableFuture::join )
+                                                                 .collect( Collectors.toList() );
+                if( answered.size() < quorum )
+                {
+                    throw new CompletionException( "Only " + answered.size() + " replicas of key " + key + " answered", error );
+                }
+                return newest( answered.stream().flatMap( value -> value.map( Stream::of ).orElseGet( Stream::empty ) ).collect( Collectors.toList() ) );
+            } );
+        } ).thenCompose( result -> result );
+    }
+
+    private static Optional<String> newest( List<VersionedValue> values )
+    {
+        return values.stream().reduce( ( a, b ) -> b.isNewerThan( a ) ? b : a ).map( VersionedValue::getValue );
+    }
 
     /**
-     * Connect to the peers send by BS and fetch their routing tables. This method will later be reused for
-     * synchronization purposes.
+     * Resolved locally from the token ring, without a hop, so puts and gets need neither lookups nor the lookup cache.
+     */
+    private List<RoutingTableEntry> replicasOf( String key )
+    {
+        return routingTable.getSnapshot().getTokenRing().replicasOf( NodeIds.key( key ), Constants.REPLICATION_FACTOR, null );
+    }
+
+    private boolean isReplica( TokenRing ring, String key )
+    {
+        return ring.replicasOf( NodeIds.key( key ), Constants.REPLICATION_FACTOR, null ).contains( routingTable.getSelf() );
+    }
+
+    private static <T> CompletableFuture<T> notOnRing()
+    {
+        CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally( new IllegalStateException( "Node is not on the ring yet" ) );
+        return failed;
+    }
+
+    /**
+     * Versions are ordered by the wall clock of the writer, i.e. the last write wins. The low bits come from our node ID
+     * so that two nodes never hand out the same version.
      *
-     * @param peers peers to be connected
-     * @return true if connecting successful and got at least one entry
+     * @return a version higher than any handed out by this node before
      */
-    private Set<RoutingTableEntry> connect( List<InetSocketAddress> peers )
+    private long nextVersion()
     {
-        logger.debug( "Collecting routing table from peers: {}", peers );
-        Set<RoutingTableEntry> entries = new HashSet<>();
-        for( InetSocketAddress peer : peers )
+        long now = System.currentTimeMillis() << 16;
+        return clock.updateAndGet( last -> Math.max( now, last + ( 1 << 16 ) ) ) | ( nodeId & 0xFFFF );
+    }
+
+    /**
+     * Stores a replica of an entry, unless we have a newer one.
+     *
+     * @return true if stored
+     */
+    boolean storeEntry( String key, VersionedValue value )
+    {
+        ownershipLock.readLock().lock();
+        try
+        {
+            if( !entryTable.merge( key, value ) )
+            {
+                return false;
+            }
+
+            TokenRing ring = routingTable.getSnapshot().getTokenRing();
+            if( !isReplica( ring, key ) )
+            {
+                // Sent by a node that didn't know the ring changed, the next repair copies it to the replicas
+                strayEntries = true;
+            }
+            RoutingTableEntry owner = ring.ownerOf( NodeIds.key( key ) );
+            if( owner != null && handovers.containsKey( owner.getAddress() ) )
+            {
+                // Written after the entries of the owner were picked for the handover
+                communicationProvider.putAsync( owner.getAddress(), key, value );
+            }
+            return true;
+        }
+        finally
+        {
+            ownershipLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Hands the entries a joining node is now responsible for over to it, a page at a time. They are picked when the
+     * first page is asked for, out of the ranges of the ring the node took, so that only the entries moving are looked
+     * at. They are only removed here once the node tells that all pages arrived, if we aren't one of their replicas.
+     *
+     * @param offset offset of the page, -1 once all pages arrived
+     */
+    HandoverPage handOver( RoutingTableEntry joining, int offset )
+    {
+        if( offset < 0 )
+        {
+            release( joining );
+            return new HandoverPage( Collections.emptyMap(), -1 );
+        }
+
+        OutgoingHandover handover = offset == 0 ? null : handovers.get( joining.getAddress() );
+        if( handover == null )
+        {
+            handover = prepareHandover( joining );
+            handovers.put( joining.getAddress(), handover );
+        }
+
+        List<Map.Entry<String, VersionedValue>> entries = handover.entries;
+        int end = Math.min( offset + Constants.HANDOVER_PAGE_SIZE, entries.size() );
+        Map<String, VersionedValue> page = new LinkedHashMap<>();
+        for( int i = offset; i < end; i++ )
+        {
+            page.put( entries.get( i ).getKey(), entries.get( i ).getValue() );
+        }
+        return new HandoverPage( page, end < entries.size() ? end : -1 );
+    }
+
+    private OutgoingHandover prepareHandover( RoutingTableEntry joining )
+    {
+        ownershipLock.writeLock().lock();
+        try
+        {
+            if( !routingTable.findByAddress( joining.getAddress() ).isPresent() )
+            {
+                addNewNode( joining.getAddress().getHostString(), joining.getAddress().getPort(), joining.getNodeId() );
+            }
+
+            List<Map.Entry<String, VersionedValue>> entries = new ArrayList<>();
+            for( long[] range : routingTable.getSnapshot().getTokenRing().rangesOf( joining ) )
+            {
+                entries.addAll( entryTable.range( range[0], range[1] ).entrySet() );
+            }
+            logger.debug( "Handing {} entries over to {}", entries.size(), joining );
+            return new OutgoingHandover( entries, System.currentTimeMillis() + Constants.HANDOVER_TTL_MS );
+        }
+        finally
+        {
+            ownershipLock.writeLock().unlock();
+        }
+    }
+
+    private void release( RoutingTableEntry joining )
+    {
+        OutgoingHandover handover = handovers.remove( joining.getAddress() );
+        if( handover == null )
         {
-            Set<RoutingTableEntry> received = communicationProvider.connect( peer );
-            logger.debug( "Received routing table: {} from -> {}", received, peer );
-            if( received.size() == 0 )
+            return;
+        }
+
+        TokenRing ring = routingTable.getSnapshot().getTokenRing();
+        long released = handover.entries.stream()
+                                        .filter( entry -> !isReplica( ring, entry.getKey() ) )
+                                        .filter( entry -> entryTable.remove( entry.getKey(), entry.getValue() ) )
+                                        .count();
+        logger.info( "Handed {} entries over to {}, released {}", handover.entries.size(), joining, released );
+    }
+
+    /**
+     * Pulls the entries this node is now responsible for from their previous owners, i.e. the nodes following each of
+     * our virtual nodes on the ring. Runs in the background, reads are served by the other replicas in the meantime.
+     * The ranges we only hold a replica of are copied over by their owners, see {@link #repair()}.
+     */
+    private void takeOver()
+    {
+        RoutingTableEntry self = routingTable.getSelf();
+        TokenRing ring = routingTable.getSnapshot().getTokenRing();
+        Set<RoutingTableEntry> previousOwners = ring.rangesOf( self ).stream()
+                                                    .map( range -> ring.ownerOf( range[1], self ) )
+                                                    .filter( Objects::nonNull )
+                                                    .collect( Collectors.toSet() );
+
+        long start = System.currentTimeMillis();
+        previousOwners.forEach( owner -> takeOver( owner, 0, 0 ).whenComplete( ( taken, error ) -> {
+            if( error == null )
+            {
+                logger.info( "Took {} entries over from {} in {} ms", taken, owner, System.currentTimeMillis() - start );
+            }
+            else
+            {
+                logger.warn( "Unable to take entries over from {}: {}", owner, error.getMessage() );
+            }
+        } ) );
+    }
+
+    private CompletableFuture<Integer> takeOver( RoutingTableEntry owner, int offset, int taken )
+    {
+        InetSocketAddress me = routingTable.getSelf().getAddress();
+        return communicationProvider.handOverAsync( owner.getAddress(), me, offset ).thenCompose( page -> {
+            int stored = taken + (int) page.getEntries().entrySet().stream()
+                                           .filter( entry -> entryTable.merge( entry.getKey(), entry.getValue() ) )
+                                           .count();
+            if( !page.isLast() )
+            {
+                return takeOver( owner, page.getNext(), stored );
+            }
+            return communicationProvider.handOverAsync( owner.getAddress(), me, -1 ).handle( ( released, error ) -> stored );
+        } );
+    }
+
+    /**
+     * Stores the entries copied over by another node.
+     *
+     * @return the entries that we had newer values of
+     */
+    Map<String, VersionedValue> takeOver( Map<String, VersionedValue> entries )
+    {
+        Map<String, VersionedValue> rejected = new HashMap<>();
+        entries.forEach( ( key, value ) -> {
+            if( !storeEntry( key, value ) )
             {
-                logger.error( "Failed to obtain routing table from -> {}", peer );
-                entries.clear();
-                break;
+                rejected.put( key, value );
             }
+        } );
+        logger.debug( "Took {} entries over", entries.size() - rejected.size() );
+        return rejected;
+    }
 
-            entries.addAll( received );
+    /**
+     * Restores the replication factor after nodes joined or left. The owner of an entry copies it to the nodes that
+     * became replicas of it since the last repair, and a node that isn't a replica of an entry anymore copies it to
+     * the replicas before dropping it. Nothing is sent as long as the ring doesn't change.
+     */
+    private void repair()
+    {
+        RoutingTableEntry self = routingTable.getSelf();
+        TokenRing ring = routingTable.getSnapshot().getTokenRing();
+        TokenRing previous = repairedRing;
+        if( self == null || ( ring == previous && !strayEntries ) || !repairing.compareAndSet( false, true ) )
+        {
+            return;
+        }
+        strayEntries = false;
+
+        // The flag is cleared once the copies complete, or here if they can't even be started
+        try
+        {
+            Map<RoutingTableEntry, Map<String, VersionedValue>> copies = new HashMap<>();
+            Map<String, VersionedValue> strays = new HashMap<>();
+            entryTable.getEntries().forEach( ( key, value ) -> {
+                long position = NodeIds.key( key );
+                List<RoutingTableEntry> replicas = ring.replicasOf( position, Constants.REPLICATION_FACTOR, null );
+                Stream<RoutingTableEntry> targets = Stream.empty();
+                if( !replicas.contains( self ) )
+                {
+                    strays.put( key, value );
+                    targets = replicas.stream();
+                }
+                else if( replicas.get( 0 ).equals( self ) )
+                {
+                    List<RoutingTableEntry> before = previous == null ? Collections.emptyList()
+                            : previous.replicasOf( position, Constants.REPLICATION_FACTOR, null );
+                    targets = replicas.stream().filter( replica -> !replica.equals( self ) && !before.contains( replica ) );
+                }
+                targets.forEach( replica -> copies.computeIfAbsent( replica, r -> new HashMap<>() ).put( key, value ) );
+            } );
+
+            copyTo( copies ).whenComplete( ( copied, error ) -> {
+                if( error == null && copied )
+                {
+                    repairedRing = ring;
+                    long dropped = strays.entrySet().stream()
+                                         .filter( entry -> !isReplica( routingTable.getSnapshot().getTokenRing(), entry.getKey() ) )
+                                         .filter( entry -> entryTable.remove( entry.getKey(), entry.getValue() ) )
+                                         .count();
+                    if( !copies.isEmpty() || dropped > 0 )
+                    {
+                        logger.info( "Repaired replicas: copied entries to {} nodes, dropped {} entries", copies.size(), dropped );
+                    }
+                }
+                else
+                {
+                    // Everything is copied again on the next round
+                    strayEntries = true;
+                }
+                repairing.set( false );
+            } );
+        }
+        catch( RuntimeException e )
+        {
+            logger.warn( "Unable to repair replicas", e );
+            strayEntries = true;
+            repairing.set( false );
+        }
+    }
+
+    /**
+     * Copies entries to other nodes, a page per message.
+     *
+     * @return future completed with whether every page was delivered
+     */
+    private CompletableFuture<Boolean> copyTo( Map<RoutingTableEntry, Map<String, VersionedValue>> copies )
+    {
+        List<CompletableFuture<Boolean>> pings = new ArrayList<>();
+        copies.forEach( ( target, entries ) -> {
+            Map<String, VersionedValue> page = new HashMap<>();
+            for( Map.Entry<String, VersionedValue> entry : entries.entrySet() )
+            {
+                page.put( entry.getKey(), entry.getValue() );
+                if( page.size() == Constants.HANDOVER_PAGE_SIZE )
+                {
+                    pings.add( copyTo( target, page ) );
+                    page = new HashMap<>();
+                }
+            }
+            if( !page.isEmpty() )
+            {
+                pings.add( copyTo( target, page ) );
+            }
+        } );
+        return Futures.allOf( pings ).thenApply( delivered -> delivered.stream().allMatch( Boolean::booleanValue ) );
+    }
+
+    private CompletableFuture<Boolean> copyTo( RoutingTableEntry target, Map<String, VersionedValue> page )
+    {
+        return communicationProvider.pingAsync( target.getAddress(), page ).handle( ( rejected, error ) -> {
+            if( error != null )
+            {
+                logger.warn( "Unable to copy {} entries to {}", page.size(), target );
+            }
+            return error == null;
+        } );
+    }
+
+    /**
+     * Copies our entries to the nodes that become their replicas once we are gone.
+     */
+    private void handOverAll()
+    {
+        RoutingTableEntry self = routingTable.getSelf();
+        if( self == null || entryTable.isEmpty() )
+        {
+            return;
+        }
+
+        TokenRing ring = routingTable.getSnapshot().getTokenRing();
+        Map<RoutingTableEntry, Map<String, VersionedValue>> copies = new HashMap<>();
+        entryTable.getEntries().forEach( ( key, value ) ->
+            ring.replicasOf( NodeIds.key( key ), Constants.REPLICATION_FACTOR, self )
+                .forEach( replica -> copies.computeIfAbsent( replica, r -> new HashMap<>() ).put( key, value ) ) );
+        if( !copyTo( copies ).join() )
+        {
+            logger.warn( "Some entries couldn't be handed over before leaving, they are lost unless another replica holds them" );
+        }
+    }
+
+    private boolean isSelf( RoutingTableEntry entry )
+    {
+        return entry != null && entry.equals( routingTable.getSelf() );
+    }
+
+
+    /**
+     * Fetches the routing tables of the peers sent by the BS all at once and goes on with the first one that arrives.
+     * The tables of the other peers are merged in whenever they arrive.
+     *
+     * @param peers    peers to be connected
+     * @param deadline time by which the join should be over
+     * @return the first routing table received, empty if none of the peers sent one. No entries at all if there are no
+     * peers, i.e. this is the first node
+     */
+    private Optional<Set<RoutingTableEntry>> connect( List<InetSocketAddress> peers, long deadline )
+    {
+        if( peers.isEmpty() )
+        {
+            return Optional.of( Collections.emptySet() );
+        }
+
+        logger.debug( "Collecting routing table from peers: {}", peers );
+        long timeout = Math.max( 1, deadline - System.currentTimeMillis() );
+        List<CompletableFuture<Set<RoutingTableEntry>>> tables = peers.stream().map( peer ->
+            communicationProvider.connectAsync( peer, timeout ).thenApply( received -> {
+                logger.debug( "Received routing table: {} from -> {}", received, peer );
+                if( received.isEmpty() )
+                {
+                    throw new IllegalStateException( "Empty routing table from " + peer );
+                }
+                return received;
+            } ) ).collect( Collectors.toList() );
+
+        try
+        {
+            Set<RoutingTableEntry> first = Futures.firstK( tables, 1 ).join().get( 0 );
+            tables.forEach( table -> table.thenAccept( received -> {
+                if( received != first )
+                {
+                    updateRoutingTable( received );
+                }
+            } ) );
+            return Optional.of( first );
+        }
+        catch( CompletionException e )
+        {
+            logger.error( "Failed to obtain routing table from any of -> {}", peers, e.getCause() );
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Waits before the next join attempt, exponentially longer every time.
+     *
+     * @return false if the join deadline would pass in the meantime
+     */
+    private boolean backOff( int attempt, long deadline )
+    {
+        long delay = Constants.JOIN_RETRY_DELAY_MS << Math.min( attempt - 2, 10 );
+        delay = ThreadLocalRandom.current().nextLong( delay / 2, delay + 1 );
+        if( System.currentTimeMillis() + delay >= deadline )
+        {
+            return false;
+        }
+
+        try
+        {
+            Thread.sleep( delay );
+            return true;
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Keeps our registration in the bootstrap server alive, so that we keep being handed out to joining nodes. If the
+     * server forgot about us, e.g. because it restarted, we register again.
+     */
+    private void renewLease()
+    {
+        if( !state.isState( NodeState.CONFIGURED ) )
+        {
+            return;
+        }
+
+        try
+        {
+            if( !bootstrapProvider.renew( ipAddress, port, username ) )
+            {
+                logger.warn( "Bootstrap Server doesn't know about us anymore, registering again" );
+                bootstrapProvider.register( ipAddress, port, username );
+            }
+        }
+        catch( IOException e )
+        {
+            logger.warn( "Unable to renew the lease: {}", e.getMessage() );
         }
-        return entries;
     }
 
     /**
@@ -234,18 +989,18 @@ public class Node
     }
 
 
-    private int selectNodeName()
+    /**
+     * The node ID is a hash of our address, so that every node can tell where we and our virtual nodes are on the ring
+     * without asking.
+     */
+    private long selectNodeName()
     {
-        Set<Integer> usedNodes = this.routingTable.getEntries().stream().map( RoutingTableEntry::getNodeId ).collect( Collectors.toSet() );
-        Random random = new Random();
-        while( true )
-        {
-            int candidate = 1 + random.nextInt( Constants.ADDRESS_SPACE_SIZE );
-            if( !usedNodes.contains( candidate ) )
-            {
-                return candidate;
-            }
-        }
+        InetSocketAddress address = new InetSocketAddress( ipAddress, port );
+        long candidate = NodeIds.nodeId( address );
+        routingTable.findByNodeId( candidate )
+                    .filter( entry -> !entry.getAddress().equals( address ) )
+                    .ifPresent( entry -> logger.error( "Node ID {} collides with {}", NodeIds.toString( candidate ), entry ) );
+        return candidate;
     }
 
 
@@ -257,24 +1012,47 @@ public class Node
     public void updateRoutingTable( Set<RoutingTableEntry> entries )
     {
         logger.debug( "Adding routing table entries -> {}", entries );
-        // TODO: 11/2/17 Should we sync? Remove what is not present?
+        // Removals are picked up later by the periodic sync, see syncRoutingTable()
         entries.forEach( routingTable::addEntry );
     }
 
-    public void addNewNode(String ipAddress, int newNodePort, int newNodeId) {
+    public void addNewNode(String ipAddress, int newNodePort, long newNodeId) {
         state.checkState(NodeState.CONNECTED, NodeState.CONFIGURED);
         InetSocketAddress inetSocketAddress = new InetSocketAddress(ipAddress, newNodePort);
         RoutingTableEntry routingTableEntry = new RoutingTableEntry(inetSocketAddress, newNodeId);
         routingTable.addEntry(routingTableEntry);
+        failureDetector.joined(routingTableEntry);
         logger.info( "Added routing table entry -> {} from routing table", inetSocketAddress );
 
     }
 
 
+    /**
+     * Called when a node didn't answer a request. Once on the ring, the node is only suspected and the failure detector
+     * removes it unless it refutes the suspicion.
+     */
     public void removeNode( InetSocketAddress node )
     {
+        FailureDetector detector = this.failureDetector;
+        if( detector != null && routingTable.getSelf() != null )
+        {
+            logger.warn( "{} is not responding, suspecting it", node );
+            detector.suspect( node );
+            return;
+        }
+
         logger.warn( "Attempting to remove routing table entry -> {} from routing table", node );
-        this.routingTable.removeEntry( node );
+        this.routingTable.findByAddress( node ).ifPresent( this::forget );
+    }
+
+    /**
+     * Drops a node that is gone for good.
+     */
+    void forget( RoutingTableEntry entry )
+    {
+        this.routingTable.removeEntry( entry );
+        this.rttTracker.remove( entry.getAddress() );
+        this.lastSyncs.remove( entry.getAddress() );
     }
 
 
@@ -282,20 +1060,26 @@ public class Node
     {
         // TODO: graceful departure
         logger.debug( "Stopping node" );
+        if( leaseTask != null )
+        {
+            leaseTask.cancel( false );
+        }
         if( state.getState().compareTo( NodeState.REGISTERED ) >= 0 )
         {
             if( state.getState().compareTo( NodeState.CONNECTED ) >= 0 )
             {
-                this.routingTable.getEntries().parallelStream().forEach( entry -> {
-                    if( communicationProvider.disconnect( entry.getAddress() ) )
-                    {
-                        logger.debug( "Successfully disconnected from {}", entry );
-                    }
-                    else
-                    {
+                handOverAll();
+                List<CompletableFuture<Boolean>> disconnections = this.routingTable.getEntries().stream().map( entry ->
+                    communicationProvider.disconnectAsync( entry.getAddress() ).handle( ( disconnected, error ) -> {
+                        if( error == null && disconnected )
+                        {
+                            logger.debug( "Successfully disconnected from {}", entry );
+                            return true;
+                        }
                         logger.warn( "Unable to disconnect from {}", entry );
-                    }
-                } );
+                        return false;
+                    } ) ).collect( Collectors.toList() );
+                Futures.allOf( disconnections ).join();
 
                 this.routingTable.clear();
                 state.setState( NodeState.REGISTERED );
@@ -348,15 +1132,48 @@ public class Node
         return state.getState();
     }
 
+    /**
+     * @return round trip time estimates of the peers this node has talked to
+     */
+    public RttTracker getRttTracker()
+    {
+        return rttTracker;
+    }
+
+    public LookupCache getLookupCache()
+    {
+        return lookupCache;
+    }
+
+    public FailureDetector getFailureDetector()
+    {
+        return failureDetector;
+    }
+
     public Communicator getCommunicationProvider()
     {
         return communicationProvider;
     }
 
-    public int getNodeId()
+    public EntryTable getEntryTable()
+    {
+        return entryTable;
+    }
+
+    public long getNodeId()
     {
         return nodeId;
     }
 
+    private static class OutgoingHandover
+    {
+        private final List<Map.Entry<String, VersionedValue>> entries;
+        private final long expiresAt;
 
+        private OutgoingHandover( List<Map.Entry<String, VersionedValue>> entries, long expiresAt )
+        {
+            this.entries = entries;
+            this.expiresAt = expiresAt;
+        }
+    }
 }
@@ -0,0 +1,88 @@
+package org.uoh.distributed.peer;
+
+import org.uoh.distributed.utils.Constants;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Positions on the 64-bit ring. Node IDs and the tokens of their virtual nodes are derived from a SHA-1 hash of
+ * {@code (ip, port, salt)}, so every node computes the same positions for a peer from its address alone. Positions are
+ * unsigned, 0 is never used so that it can stand for "unknown".
+ */
+public class NodeIds
+{
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial( () -> {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-1" );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( "SHA-1 is not available", e );
+        }
+    } );
+
+    private NodeIds()
+    {
+    }
+
+    /**
+     * @return ID of the node at the address, which is also the token of its first virtual node
+     */
+    public static long nodeId( InetSocketAddress address )
+    {
+        return token( address, 0 );
+    }
+
+    /**
+     * @param count number of virtual nodes, {@link Constants#VIRTUAL_NODES} cluster wide
+     * @return tokens of the virtual nodes of the node at the address
+     */
+    public static long[] tokens( InetSocketAddress address, int count )
+    {
+        long[] tokens = new long[Math.max( count, 1 )];
+        for( int i = 0; i < tokens.length; i++ )
+        {
+            tokens[i] = token( address, i );
+        }
+        return tokens;
+    }
+
+    public static long token( InetSocketAddress address, int salt )
+    {
+        InetAddress inetAddress = address.getAddress();
+        // The raw address, so that "localhost" and "127.0.0.1" end up at the same place
+        byte[] host = inetAddress != null ? inetAddress.getAddress() : address.getHostString().getBytes( StandardCharsets.UTF_8 );
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        digest.update( host );
+        digest.update( ByteBuffer.allocate( 8 ).putInt( address.getPort() ).putInt( salt ).array() );
+        return position( digest.digest() );
+    }
+
+    /**
+     * @return position of a key on the ring
+     */
+    public static long key( String key )
+    {
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        return position( digest.digest( key.getBytes( StandardCharsets.UTF_8 ) ) );
+    }
+
+    public static String toString( long position )
+    {
+        return Long.toUnsignedString( position );
+    }
+
+    private static long position( byte[] hash )
+    {
+        long position = ByteBuffer.wrap( hash ).getLong();
+        return position == 0 ? 1 : position;
+    }
+}
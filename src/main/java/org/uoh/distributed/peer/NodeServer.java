@@ -2,38 +2,91 @@ package org.uoh.distributed.peer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.uoh.distributed.utils.BinaryCodec;
+import org.uoh.distributed.utils.BufferPool;
 import org.uoh.distributed.utils.Constants;
+import org.uoh.distributed.utils.MessageView;
+import org.uoh.distributed.utils.PayloadCompressor;
 import org.uoh.distributed.utils.RequestBuilder;
+import org.uoh.distributed.utils.ThreadPools;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 public class NodeServer
 {
 
     private static final Logger logger = LoggerFactory.getLogger( Node.class );
+    private static final ThreadLocal<MessageView> VIEWS = ThreadLocal.withInitial( MessageView::new );
+
+    private static final byte[] GET_ROUTING_TABLE = MessageView.bytes( Constants.GET_ROUTING_TABLE );
+    private static final byte[] NEW_NODE = MessageView.bytes( Constants.NEW_NODE );
+    private static final byte[] PING = MessageView.bytes( Constants.PING );
+    private static final byte[] SYNC = MessageView.bytes( Constants.SYNC );
+    private static final byte[] BATCH = MessageView.bytes( Constants.BATCH );
+    private static final byte[] CHUNK_REQUEST = MessageView.bytes( Constants.CHUNK_REQUEST );
+    private static final byte[] FIND_SUCCESSOR = MessageView.bytes( Constants.FIND_SUCCESSOR );
+    private static final byte[] GET_PREDECESSOR = MessageView.bytes( Constants.GET_PREDECESSOR );
+    private static final byte[] NOTIFY = MessageView.bytes( Constants.NOTIFY );
+    private static final byte[] GOSSIP = MessageView.bytes( Constants.GOSSIP );
+    private static final byte[] PROBE_REQUEST = MessageView.bytes( Constants.PROBE_REQUEST );
+    private static final byte[] PUT = MessageView.bytes( Constants.PUT );
+    private static final byte[] GET = MessageView.bytes( Constants.GET );
+    private static final byte[] HANDOVER = MessageView.bytes( Constants.HANDOVER );
+    private static final byte[] TYPE_ROUTING = MessageView.bytes( Constants.TYPE_ROUTING );
+    private static final byte[] TYPE_ENTRIES = MessageView.bytes( Constants.TYPE_ENTRIES );
+    private static final byte[] BINARY_FLAG = MessageView.bytes( Constants.BINARY_FLAG );
+    private static final byte[] COMPRESSED_FLAG = MessageView.bytes( Constants.COMPRESSED_FLAG );
     private final int numOfRetries = Constants.RETRIES_COUNT;
 
-    private boolean started = false;
+    private volatile boolean started = false;
+    /** Runs the request handlers. Virtual threads when enabled, see {@link ThreadPools} */
     private ExecutorService executorService;
+    /** Runs the receive loops */
+    private ExecutorService loopExecutorService;
     private Node node;
     private final int port;
+    private final int loopThreads;
+    private final BufferPool bufferPool = new BufferPool( Constants.RECEIVE_BUFFER_POOL_SIZE, Constants.MAX_DATAGRAM_SIZE );
+    private final List<DatagramChannel> channels = new CopyOnWriteArrayList<>();
+    /** Chunked responses kept for their fragments to be asked again. Keyed by recipient and request ID */
+    private final Map<String, OutgoingTransfer> transfers = new ConcurrentHashMap<>();
 
 
     public NodeServer( int port )
     {
+        this( port, Constants.NODE_SERVER_LOOP_THREADS );
+    }
+
+    public NodeServer( int port, int loopThreads )
+    {
+        if( loopThreads <= 0 )
+        {
+            throw new IllegalArgumentException( "At least one receive loop is required" );
+        }
         this.port = port;
+        this.loopThreads = loopThreads;
     }
 
     public void start( Node node )
@@ -45,52 +98,146 @@ public class NodeServer
         }
 
         this.node = node;
-        executorService = Executors.newCachedThreadPool();
-        executorService.submit( () -> {
+        executorService = ThreadPools.newTaskExecutor();
+        loopExecutorService = ThreadPools.newLoopExecutor();
+        try
+        {
+            openChannels();
+        }
+        catch( IOException e )
+        {
+            closeChannels();
+            logger.error( "Error occurred when binding to port {}", port, e );
+            throw new IllegalStateException( "Error occurred when listening", e );
+        }
+
+        started = true;
+        for( DatagramChannel channel : channels )
+        {
+            loopExecutorService.submit( () -> {
+                try
+                {
+                    listen( channel );
+                }
+                catch( Exception e )
+                {
+                    logger.error( "Error occurred when listening", e );
+                }
+            } );
+        }
+
+        logger.info( "Server started with {} receive loop(s) on {} threads", channels.size(), ThreadPools.isVirtualThreads() ? "virtual" : "platform" );
+        Runtime.getRuntime().addShutdownHook( new Thread( this::stop ) );
+    }
+
+    /**
+     * Opens one channel per receive loop. Multiple loops are only possible when SO_REUSEPORT is supported, since then
+     * the kernel spreads the incoming datagrams across the sockets bound to the same port.
+     */
+    private void openChannels() throws IOException
+    {
+        DatagramChannel first = DatagramChannel.open( StandardProtocolFamily.INET );
+        boolean reusePort = loopThreads > 1 && first.supportedOptions().contains( StandardSocketOptions.SO_REUSEPORT );
+        if( loopThreads > 1 && !reusePort )
+        {
+            logger.warn( "SO_REUSEPORT is not supported. Falling back to a single receive loop" );
+        }
+
+        int count = reusePort ? loopThreads : 1;
+        channels.add( first );
+        for( int i = 1; i < count; i++ )
+        {
+            channels.add( DatagramChannel.open( StandardProtocolFamily.INET ) );
+        }
+
+        for( DatagramChannel channel : channels )
+        {
+            if( reusePort )
+            {
+                channel.setOption( StandardSocketOptions.SO_REUSEPORT, true );
+            }
+            channel.setOption( StandardSocketOptions.SO_RCVBUF, Constants.SOCKET_RECEIVE_BUFFER_SIZE );
+            channel.configureBlocking( false );
+            channel.bind( new InetSocketAddress( port ) );
+        }
+    }
+
+    private void closeChannels()
+    {
+        for( DatagramChannel channel : channels )
+        {
             try
             {
-                listen();
+                channel.close();
             }
-            catch( Exception e )
+            catch( IOException e )
             {
-                logger.error( "Error occurred when listening", e );
+                logger.warn( "Error occurred when closing channel", e );
             }
-        } );
-
-        started = true;
-        logger.info( "Server started" );
-        Runtime.getRuntime().addShutdownHook( new Thread( this::stop ) );
+        }
+        channels.clear();
     }
 
-    public void listen()
+    private void listen( DatagramChannel channel )
     {
-        try (DatagramSocket datagramSocket = new DatagramSocket( port ))
+        try (Selector selector = Selector.open())
         {
+            channel.register( selector, SelectionKey.OP_READ );
+            // Datagrams that arrive while every pooled buffer is in use are read into this and dropped, since leaving
+            // them in the socket would keep the channel readable. Whatever doesn't fit is discarded by the receive
+            ByteBuffer overflow = ByteBuffer.allocate( 1 );
             logger.debug( "Node is Listening to incoming requests" );
 
             while( started )
             {
-                byte[] buffer = new byte[65536];
-                DatagramPacket incoming = new DatagramPacket( buffer, buffer.length );
-                datagramSocket.receive( incoming );
+                if( selector.select( Constants.SELECT_TIMEOUT_MS ) == 0 )
+                {
+                    continue;
+                }
+                selector.selectedKeys().clear();
 
-                byte[] data = incoming.getData();
-                String request = new String( data, 0, incoming.getLength() );
-                logger.debug( "Received from {}:{} -> {}", incoming.getAddress(), incoming.getPort(), request );
+                // Drain everything that is readable before going back to the selector
+                while( started )
+                {
+                    ByteBuffer buffer = bufferPool.acquire();
+                    if( buffer == null )
+                    {
+                        overflow.clear();
+                        SocketAddress dropped = channel.receive( overflow );
+                        if( dropped == null )
+                        {
+                            break;
+                        }
+                        logger.debug( "Dropping datagram from {} since all receive buffers are in use", dropped );
+                        continue;
+                    }
 
-                executorService.submit( () -> {
+                    SocketAddress sender;
                     try
                     {
-                        handleRequest( request, incoming );
+                        sender = channel.receive( buffer );
+                    }
+                    catch( IOException e )
+                    {
+                        bufferPool.release( buffer );
+                        throw e;
                     }
-                    catch( Exception e )
+
+                    if( sender == null )
                     {
-                        logger.error( "Error occurred when handling request ({})", request, e );
-                        retryOrTimeout( Constants.RESPONSE_FAILURE, new InetSocketAddress( incoming.getAddress(), incoming.getPort() ) );
+                        bufferPool.release( buffer );
+                        break;
                     }
-                } );
+
+                    buffer.flip();
+                    dispatch( buffer, (InetSocketAddress) sender );
+                }
             }
         }
+        catch( ClosedChannelException e )
+        {
+            logger.debug( "Receive loop stopped" );
+        }
         catch( IOException e )
         {
             logger.error( "Error occurred when listening on port {}", port, e );
@@ -99,53 +246,317 @@ public class NodeServer
     }
 
     /**
-     * Handles requests coming to this node.
+     * Hands a received datagram over to a worker. The buffer goes back to the pool once the request has been handled.
+     */
+    private void dispatch( ByteBuffer buffer, InetSocketAddress sender )
+    {
+        try
+        {
+            executorService.submit( () -> {
+                MessageView request = VIEWS.get().wrap( buffer );
+                try
+                {
+                    logger.debug( "Received from {} -> {}", sender, request );
+                    handleRequest( request, sender );
+                }
+                catch( Exception e )
+                {
+                    logger.error( "Error occurred when handling request ({})", request, e );
+                    retryOrTimeout( RequestBuilder.tagRequestId( Constants.RESPONSE_FAILURE, request.requestId() ), sender );
+                }
+                finally
+                {
+                    bufferPool.release( buffer );
+                }
+            } );
+        }
+        catch( RejectedExecutionException e )
+        {
+            bufferPool.release( buffer );
+            logger.debug( "Dropping request from {} since the server is stopping", sender );
+        }
+    }
+
+    /**
+     * Handles requests coming to this node. Dispatches on the command bytes of the message without decoding it.
      *
-     * @param request  Request received
-     * @param incoming incoming datagram packet
+     * @param request   Request received. Its request ID, if any, is echoed back in the response
+     * @param recipient sender of the request, to whom the response goes
      * @throws IOException
      */
-    private void handleRequest( String request, DatagramPacket incoming ) throws IOException
+    private void handleRequest( MessageView request, InetSocketAddress recipient ) throws IOException
     {
-        String[] incomingResult = request.split( Constants.MSG_SEPARATOR, 3 );
-        logger.debug( "Request length -> {}", incomingResult[0] );
-        String command = incomingResult[1];
-        logger.debug( "Command -> {}", command );
+        long requestId = request.requestId();
+        if( request.isCommand( GET_ROUTING_TABLE ) )
+        {
+            // Here, we are purposefully preventing sending a response if I'm not configured yet
+            if( node.getState().compareTo( NodeState.CONNECTED ) < 0 )
+            {
+                logger.warn( "Not responding to request '{}' because I'm at state -> {}", request, node.getState() );
+                return;
+            }
+            if( request.fieldCount() >= 5 && isBinary( request, 2 ) )
+            {
+                provideRoutingDelta( recipient, requestId, request.longField( 3 ), request.longField( 4 ),
+                                     request.fieldEquals( 2, COMPRESSED_FLAG ) );
+            }
+            else
+            {
+                provideRoutingTable( recipient, requestId, isBinary( request, 2 ), request.fieldEquals( 2, COMPRESSED_FLAG ) );
+            }
+        }
+        else if( request.isCommand( NEW_NODE ) )
+        {
+            handleNewNodeRequest( request, recipient );
+        }
+        else if( request.isCommand( SYNC ) )
+        {
+            handleSyncRequest( request, recipient );
+        }
+        else if( request.isCommand( BATCH ) )
+        {
+            handleBatch( request, recipient );
+        }
+        else if( request.isCommand( CHUNK_REQUEST ) )
+        {
+            resendChunks( request, recipient );
+        }
+        else if( request.isCommand( GOSSIP ) || request.isCommand( PROBE_REQUEST ) )
+        {
+            if( node.getState().compareTo( NodeState.CONNECTED ) < 0 )
+            {
+                logger.warn( "Not responding to request '{}' because I'm at state -> {}", request, node.getState() );
+                return;
+            }
 
-        InetSocketAddress recipient = new InetSocketAddress( incoming.getAddress(), incoming.getPort() );
-        switch( command )
+            if( request.isCommand( GOSSIP ) )
+            {
+                handleGossip( request, recipient );
+            }
+            else
+            {
+                handleProbeRequest( request, recipient );
+            }
+        }
+        else if( request.isCommand( FIND_SUCCESSOR ) || request.isCommand( GET_PREDECESSOR ) || request.isCommand( NOTIFY ) )
         {
-            case Constants.GET_ROUTING_TABLE:
-                // Here, we are purposefully preventing sending a response if I'm not configured yet
-                if( node.getState().compareTo( NodeState.CONNECTED ) < 0 )
-                {
-                    logger.warn( "Not responding to request '{}' because I'm at state -> {}", request, node.getState() );
-                    return;
-                }
-                provideRoutingTable( recipient );
-                break;
-            case Constants.NEW_NODE:
-                handleNewNodeRequest( incomingResult[2], recipient );
-                break;
+            // Ring requests need this node to be on the ring already
+            if( node.getRoutingTable().getSelf() == null )
+            {
+                logger.warn( "Not responding to request '{}' because I'm not on the ring yet", request );
+                return;
+            }
 
-            case Constants.PING:
-                respondToPing( incomingResult[2], recipient );
-                break;
-            case Constants.SYNC:
-                handleSyncRequest( incomingResult[2], recipient );
-                break;
-            default:
-                break;
+            if( request.isCommand( FIND_SUCCESSOR ) )
+            {
+                findSuccessor( request, recipient );
+            }
+            else if( request.isCommand( GET_PREDECESSOR ) )
+            {
+                providePredecessor( request, recipient );
+            }
+            else
+            {
+                handleNotify( request, recipient );
+            }
+        }
+        else if( request.isCommand( PUT ) || request.isCommand( GET ) || request.isCommand( HANDOVER ) || request.isCommand( PING ) )
+        {
+            // Entries are placed on the ring, so they need this node to be on it
+            if( node.getRoutingTable().getSelf() == null )
+            {
+                logger.warn( "Not responding to request '{}' because I'm not on the ring yet", request );
+                return;
+            }
+
+            if( request.isCommand( PUT ) )
+            {
+                handlePut( request, recipient );
+            }
+            else if( request.isCommand( GET ) )
+            {
+                handleGet( request, recipient );
+            }
+            else if( request.isCommand( HANDOVER ) )
+            {
+                handleHandover( request, recipient );
+            }
+            else
+            {
+                respondToPing( request, recipient );
+            }
+        }
+    }
+
+    /**
+     * Answers with the successor of the key if it's our successor, otherwise points to the closest finger preceding the
+     * key so that the requester continues from there.
+     */
+    private void findSuccessor( MessageView request, InetSocketAddress recipient )
+    {
+        long key = request.longField( 2 );
+        RoutingTable routingTable = node.getRoutingTable();
+        RoutingTableEntry self = routingTable.getSelf();
+        RoutingTableEntry successor = routingTable.getSuccessor();
+
+        String status = Constants.SUCCESSOR_FOUND;
+        RoutingTableEntry entry;
+        if( successor == null )
+        {
+            entry = self;
         }
+        else if( routingTable.isSuccessorOf( key ) )
+        {
+            entry = successor;
+        }
+        else
+        {
+            // Our RTT to the next hop stands in for the one of the requester, which is usually close to ours
+            entry = routingTable.closestPrecedingNode( key, node.getRttTracker() );
+            if( entry.getNodeId() == self.getNodeId() )
+            {
+                entry = successor;
+            }
+            else
+            {
+                status = Constants.SUCCESSOR_NEXT;
+            }
+        }
+
+        logger.debug( "Successor of key {} asked by {} -> {} {}", key, recipient, status, entry );
+        respond( entryMessage( Constants.SUCCESSOR_MSG_FORMAT, status, entry ), recipient, request.requestId() );
     }
 
-    private void provideRoutingTable( InetSocketAddress recipient ) throws IOException
+    private void providePredecessor( MessageView request, InetSocketAddress recipient )
+    {
+        RoutingTableEntry predecessor = node.getRoutingTable().getPredecessor();
+        String response = predecessor == null
+                ? RequestBuilder.buildRequest( String.format( Constants.PREDECESSOR_MSG_FORMAT, 0, "-", 0 ) )
+                : entryMessage( Constants.PREDECESSOR_MSG_FORMAT, null, predecessor );
+        respond( response, recipient, request.requestId() );
+    }
+
+    private void handleNotify( MessageView request, InetSocketAddress recipient )
+    {
+        RoutingTableEntry candidate = new RoutingTableEntry( new InetSocketAddress( request.fieldAsString( 3 ), request.intField( 4 ) ), request.longField( 2 ) );
+        if( node.getRoutingTable().notifyPredecessor( candidate ) )
+        {
+            logger.info( "Predecessor is now -> {}", candidate );
+        }
+        retryOrTimeout( RequestBuilder.tagRequestId( Constants.RESPONSE_OK, request.requestId() ), recipient );
+    }
+
+    /**
+     * Applies the membership updates gossiped by a peer and answers with our own updates. Also serves as the answer to
+     * a probe of the failure detector.
+     */
+    private void handleGossip( MessageView request, InetSocketAddress recipient )
+    {
+        List<MemberUpdate> updates = BinaryCodec.decodeMemberUpdates( RequestBuilder.decodeBinary( request.fieldBuffer( 2 ) ) );
+        respondWithUpdates( node.getFailureDetector().onGossip( updates ), recipient, request.requestId() );
+    }
+
+    /**
+     * Probes a node on behalf of the sender. Only answered if the node answered, so that the sender times out otherwise.
+     */
+    private void handleProbeRequest( MessageView request, InetSocketAddress recipient )
+    {
+        InetSocketAddress target = new InetSocketAddress( request.fieldAsString( 2 ), request.intField( 3 ) );
+        List<MemberUpdate> updates = BinaryCodec.decodeMemberUpdates( RequestBuilder.decodeBinary( request.fieldBuffer( 4 ) ) );
+        long requestId = request.requestId();
+        node.getFailureDetector().probeFor( target, updates ).whenComplete( ( piggybacked, error ) -> {
+            if( error == null )
+            {
+                respondWithUpdates( piggybacked, recipient, requestId );
+            }
+            else
+            {
+                logger.debug( "{} didn't answer the probe requested by {}", target, recipient );
+            }
+        } );
+    }
+
+    private void respondWithUpdates( List<MemberUpdate> updates, InetSocketAddress recipient, long requestId )
+    {
+        String msg = syncMessage( Constants.TYPE_MEMBERS, BinaryCodec.encodeMemberUpdates( updates ), false );
+        respond( RequestBuilder.buildRequest( msg ), recipient, requestId );
+    }
+
+    /**
+     * Builds a framed message ending with the {@code ${nodeId} ${ip} ${port}} of the entry, preceded by the status if any
+     */
+    private static String entryMessage( String format, String status, RoutingTableEntry entry )
+    {
+        InetSocketAddress address = entry.getAddress();
+        String msg = status == null
+                ? String.format( format, entry.getNodeId(), address.getHostString(), address.getPort() )
+                : String.format( format, status, entry.getNodeId(), address.getHostString(), address.getPort() );
+        return RequestBuilder.buildRequest( msg );
+    }
+
+    /**
+     * Handles the messages packed into a batch one after the other, as if each had arrived on its own.
+     */
+    private void handleBatch( MessageView batch, InetSocketAddress recipient )
+    {
+        int count = batch.intField( 2 );
+        logger.debug( "Unpacking {} messages from batch of {}", count, recipient );
+        MessageView message = new MessageView();
+        int position = batch.fieldStart( 3 );
+        for( int i = 0; i < count; i++ )
+        {
+            position = batch.nextPacked( position, message );
+            try
+            {
+                handleRequest( message, recipient );
+            }
+            catch( Exception e )
+            {
+                logger.error( "Error occurred when handling request ({})", message, e );
+                retryOrTimeout( RequestBuilder.tagRequestId( Constants.RESPONSE_FAILURE, message.requestId() ), recipient );
+            }
+        }
+    }
+
+    /**
+     * @return whether the flag at the index asks for or marks a binary payload, compressed or not
+     */
+    private static boolean isBinary( MessageView request, int flagIndex )
+    {
+        return request.fieldEquals( flagIndex, BINARY_FLAG ) || request.fieldEquals( flagIndex, COMPRESSED_FLAG );
+    }
+
+    /**
+     * Builds a SYNC message carrying a binary payload. The payload is compressed only if the requester accepts it and
+     * compressing pays off, otherwise it goes as it is.
+     */
+    private static String syncMessage( String type, byte[] payload, boolean compressionAccepted )
+    {
+        byte[] compressed = compressionAccepted ? PayloadCompressor.compress( payload ) : null;
+        if( compressed != null )
+        {
+            logger.debug( "Compressed {} payload from {} to {} bytes", type, payload.length, compressed.length );
+            return String.format( Constants.SYNC_COMPRESSED_MSG_FORMAT, type, RequestBuilder.encodeBinary( compressed ) );
+        }
+        return String.format( Constants.SYNC_BINARY_MSG_FORMAT, type, RequestBuilder.encodeBinary( payload ) );
+    }
+
+    private void provideRoutingTable( InetSocketAddress recipient, long requestId, boolean binary, boolean compressionAccepted ) throws IOException
     {
         logger.debug( "Returning routing table to -> {}", recipient );
         String response;
         try
         {
-            String msg = String.format( Constants.SYNC_MSG_FORMAT, Constants.TYPE_ROUTING, RequestBuilder.buildObjectRequest( this.node.getRoutingTable().getEntries() ) );
+            String msg;
+            if( binary )
+            {
+                byte[] payload = BinaryCodec.encodeRoutingEntries( this.node.getRoutingTable().getEntries() );
+                msg = syncMessage( Constants.TYPE_ROUTING, payload, compressionAccepted );
+            }
+            else
+            {
+                msg = String.format( Constants.SYNC_MSG_FORMAT, Constants.TYPE_ROUTING, RequestBuilder.buildObjectRequest( this.node.getRoutingTable().getEntries() ) );
+            }
             response = RequestBuilder.buildRequest( msg );
         }
         catch( IOException e )
@@ -154,15 +565,30 @@ public class NodeServer
             throw e;
         }
 
-        retryOrTimeout( response, recipient );
+        respond( response, recipient, requestId );
         logger.debug( "Routing table entries provided to the recipient: {}", recipient );
     }
 
+    /**
+     * Responds with the routing table changes since the given version, or with the whole table if they are no longer
+     * known.
+     */
+    private void provideRoutingDelta( InetSocketAddress recipient, long requestId, long epoch, long version,
+                                      boolean compressionAccepted )
+    {
+        RoutingDelta delta = this.node.getRoutingTable().changesSince( epoch, version );
+        logger.debug( "Returning routing table {} to -> {}", delta, recipient );
+        String msg = syncMessage( Constants.TYPE_ROUTING_DELTA, BinaryCodec.encodeRoutingDelta( delta ), compressionAccepted );
+        respond( RequestBuilder.buildRequest( msg ), recipient, requestId );
+    }
+
     public void stop()
     {
         if( started )
         {
             started = false;
+            closeChannels();
+            loopExecutorService.shutdownNow();
             executorService.shutdownNow();
             try
             {
@@ -176,73 +602,235 @@ public class NodeServer
         }
     }
 
+    /**
+     * Sends a response tagged with the request ID. Responses that don't fit in {@link Constants#CHUNK_SIZE} are split
+     * into fragments, which are kept for {@link Constants#CHUNK_TRANSFER_TTL_MS} so that the requester can ask for the
+     * ones it lost. Requesters that didn't provide a request ID can't reassemble, so they get the response as is.
+     */
+    private void respond( String response, InetSocketAddress recipient, long requestId )
+    {
+        if( requestId < 0 || response.length() <= Constants.CHUNK_SIZE )
+        {
+            retryOrTimeout( RequestBuilder.tagRequestId( response, requestId ), recipient );
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        transfers.values().removeIf( t -> t.expiresAt < now );
+
+        List<String> chunks = RequestBuilder.buildChunks( response, requestId, Constants.CHUNK_SIZE );
+        transfers.put( transferKey( recipient, requestId ), new OutgoingTransfer( chunks, now + Constants.CHUNK_TRANSFER_TTL_MS ) );
+        logger.debug( "Sending response of {} characters in {} chunks to {}", response.length(), chunks.size(), recipient );
+        for( String chunk : chunks )
+        {
+            retryOrTimeout( chunk, recipient );
+        }
+    }
+
+    /**
+     * Resends the fragments of a chunked response that the requester reports as missing.
+     */
+    private void resendChunks( MessageView request, InetSocketAddress recipient )
+    {
+        long requestId = request.requestId();
+        OutgoingTransfer transfer = transfers.get( transferKey( recipient, requestId ) );
+        if( transfer == null || transfer.expiresAt < System.currentTimeMillis() )
+        {
+            logger.warn( "Chunked transfer #{} to {} is no longer available", requestId, recipient );
+            retryOrTimeout( RequestBuilder.tagRequestId( Constants.RESPONSE_FAILURE, requestId ), recipient );
+            return;
+        }
+
+        logger.debug( "Resending chunks {} of transfer #{} to {}", request, requestId, recipient );
+        for( String sequence : request.fieldAsString( 2 ).trim().split( "," ) )
+        {
+            int index = Integer.parseInt( sequence );
+            if( index >= 0 && index < transfer.chunks.size() )
+            {
+                retryOrTimeout( transfer.chunks.get( index ), recipient );
+            }
+        }
+    }
+
+    private static String transferKey( InetSocketAddress recipient, long requestId )
+    {
+        return recipient + Constants.REQUEST_ID_PREFIX + requestId;
+    }
+
+    /**
+     * Sends a response through the server's own channel, so that the response comes from the port the request was sent
+     * to and no socket is opened per response.
+     */
     private boolean retryOrTimeout( String response, InetSocketAddress peer )
     {
-        int retriesLeft = numOfRetries;
-        while( retriesLeft > 0 && started )
+        int attempts = 0;
+        ByteBuffer data = ByteBuffer.wrap( response.getBytes( StandardCharsets.UTF_8 ) );
+        while( attempts < numOfRetries && started )
         {
-            Future<Void> task = executorService.submit( () -> {
-                try (DatagramSocket datagramSocket = new DatagramSocket())
+            try
+            {
+                // A non-blocking channel sends nothing when the socket buffer is full
+                if( channels.get( 0 ).send( data.duplicate(), peer ) > 0 )
                 {
-                    RequestBuilder.sendResponse( datagramSocket, response, peer.getAddress(), peer.getPort() );
-                    return null;
+                    logger.debug( "Datagram packet sent to {}", peer );
+                    return true;
                 }
-            } );
+            }
+            catch( Exception e )
+            {
+                logger.error( "Error occurred when completing response({}) to peer- {}. Error: {}", response, peer, e );
+            }
 
+            attempts++;
+            if( attempts >= numOfRetries )
+            {
+                break;
+            }
             try
             {
-                task.get( Constants.RETRY_TIMEOUT_MS, TimeUnit.MILLISECONDS );
-                return true;
+                Thread.sleep( node.getRttTracker().backOffDelay( peer, attempts ) );
             }
-            catch( Exception e )
+            catch( InterruptedException e )
             {
-                logger.error( "Error occurred when completing response({}) to peer- {}. Error: {}", response, peer, e );
-                task.cancel( true );
-                retriesLeft--;
+                Thread.currentThread().interrupt();
+                break;
             }
         }
         logger.error( "RESPONSE FAILED !!! ({} -> {})", response, peer );
         return false;
     }
 
-    private void handleNewNodeRequest( String request, InetSocketAddress recipient ) throws IOException
+    private void handleNewNodeRequest( MessageView request, InetSocketAddress recipient ) throws IOException
     {
-        String[] parts = request.split( Constants.MSG_SEPARATOR );
-        String ipAddress = parts[0];
-        int port = Integer.parseInt( parts[1] );
-        int newNodeId = Integer.parseInt( parts[2] );
+        String ipAddress = request.fieldAsString( 2 );
+        int port = request.intField( 3 );
+        long newNodeId = request.longField( 4 );
 
         this.node.addNewNode( ipAddress, port, newNodeId );
 
-        String msg = String.format( Constants.SYNC_MSG_FORMAT, Constants.TYPE_ENTRIES, RequestBuilder.buildObjectRequest( "OK" ) );
+        // The new node asks for its entries itself, see HANDOVER
+
+        String msg;
+        if( isBinary( request, 5 ) )
+        {
+            byte[] payload = BinaryCodec.encodeEntryTable( Collections.emptyMap() );
+            msg = syncMessage( Constants.TYPE_ENTRIES, payload, request.fieldEquals( 5, COMPRESSED_FLAG ) );
+        }
+        else
+        {
+            msg = String.format( Constants.SYNC_MSG_FORMAT, Constants.TYPE_ENTRIES, RequestBuilder.buildObjectRequest( "OK" ) );
+        }
         String response = RequestBuilder.buildRequest( msg );
-        retryOrTimeout( response, recipient );
+        respond( response, recipient, request.requestId() );
     }
 
-    private void handleSyncRequest( String request, InetSocketAddress recipient )
+    private void handleSyncRequest( MessageView request, InetSocketAddress recipient )
     {
         logger.debug( "Received sync request -> {}", request );
-        String[] parts = request.split( Constants.MSG_SEPARATOR );
 
-        Object obj = RequestBuilder.base64StringToObject( parts[1] );
-        switch( parts[0] )
+        boolean binary = isBinary( request, 4 );
+        boolean compressed = request.fieldEquals( 4, COMPRESSED_FLAG );
+        Object obj;
+        if( request.fieldEquals( 2, TYPE_ENTRIES ) )
         {
-            case Constants.TYPE_ENTRIES:
-                logger.debug( "Received characters to be taken over -> {}", obj );
-                break;
-            case Constants.TYPE_ROUTING:
-                logger.debug( "Received routing table -> {}", obj );
-                break;
+            obj = binary ? BinaryCodec.decodeEntryTable( RequestBuilder.decodeBinary( request.fieldBuffer( 3 ), compressed ) ) : RequestBuilder.base64StringToObject( request.fieldAsString( 3 ) );
+            logger.debug( "Received characters to be taken over -> {}", obj );
+        }
+        else if( request.fieldEquals( 2, TYPE_ROUTING ) )
+        {
+            obj = binary ? BinaryCodec.decodeRoutingEntries( RequestBuilder.decodeBinary( request.fieldBuffer( 3 ), compressed ) ) : RequestBuilder.base64StringToObject( request.fieldAsString( 3 ) );
+            logger.debug( "Received routing table -> {}", obj );
         }
 
-        retryOrTimeout( Constants.RESPONSE_OK, recipient );
+        retryOrTimeout( RequestBuilder.tagRequestId( Constants.RESPONSE_OK, request.requestId() ), recipient );
     }
 
-    private void respondToPing( String request, InetSocketAddress recipient ) throws IOException
+    /**
+     * Stores a replica of an entry. Answers OK even if we had a newer value, the writer only needs to know that the
+     * replica holds the entry.
+     */
+    private void handlePut( MessageView request, InetSocketAddress recipient )
+    {
+        String key = RequestBuilder.decodeText( request.fieldAsString( 2 ) );
+        String value = RequestBuilder.decodeText( request.fieldAsString( 3 ) );
+        node.storeEntry( key, new VersionedValue( value, request.longField( 4 ) ) );
+        retryOrTimeout( RequestBuilder.tagRequestId( Constants.RESPONSE_OK, request.requestId() ), recipient );
+    }
+
+    private void handleGet( MessageView request, InetSocketAddress recipient )
+    {
+        VersionedValue value = node.getEntryTable().get( RequestBuilder.decodeText( request.fieldAsString( 2 ) ) );
+        String response = value == null
+                ? RequestBuilder.buildRequest( Constants.NOT_FOUND )
+                : RequestBuilder.buildRequest( String.format( Constants.VALUE_MSG_FORMAT, RequestBuilder.encodeText( value.getValue() ), value.getVersion() ) );
+        respond( response, recipient, request.requestId() );
+    }
+
+    /**
+     * Answers a joining node with a page of the entries it is now responsible for, followed by the offset of the next
+     * page.
+     */
+    private void handleHandover( MessageView request, InetSocketAddress recipient )
     {
-        logger.debug( "Responding to ping with my table entries to -> {}", request );
-        /*
-              Need to implement what we need to share
-         */
+        InetSocketAddress address = new InetSocketAddress( request.fieldAsString( 2 ), request.intField( 3 ) );
+        RoutingTableEntry joining = new RoutingTableEntry( address, NodeIds.nodeId( address ) );
+        HandoverPage page = node.handOver( joining, request.intField( 4 ) );
+
+        String msg = syncMessage( Constants.TYPE_ENTRIES, BinaryCodec.encodeVersionedEntries( page.getEntries() ), request.fieldEquals( 5, COMPRESSED_FLAG ) );
+        respond( RequestBuilder.buildRequest( msg + Constants.MSG_SEPARATOR + page.getNext() ), recipient, request.requestId() );
+    }
+
+    /**
+     * Takes over the entries copied over by another node, answering with the ones we had newer values of.
+     */
+    private void respondToPing( MessageView request, InetSocketAddress recipient )
+    {
+        Map<String, VersionedValue> entries = isBinary( request, 4 )
+                ? BinaryCodec.decodeVersionedEntries( RequestBuilder.decodeBinary( request.fieldBuffer( 3 ), request.fieldEquals( 4, COMPRESSED_FLAG ) ) )
+                : versionedEntries( RequestBuilder.base64StringToObject( request.fieldAsString( 3 ) ), recipient );
+        Map<String, VersionedValue> rejected = entries.isEmpty() ? Collections.emptyMap() : node.takeOver( entries );
+        logger.debug( "Responding to ping of {} with the entries not taken over -> {}", recipient, rejected );
+
+        String msg = syncMessage( Constants.TYPE_ENTRIES, BinaryCodec.encodeVersionedEntries( rejected ), false );
+        respond( RequestBuilder.buildRequest( msg ), recipient, request.requestId() );
+    }
+
+    /**
+     * Picks the versioned entries out of a Java serialized map. Anything else, e.g. plain values from a peer of another
+     * version, is skipped rather than cast blindly.
+     */
+    private static Map<String, VersionedValue> versionedEntries( Object obj, InetSocketAddress sender )
+    {
+        if( !( obj instanceof Map ) )
+        {
+            logger.warn( "Ignoring entries of an unknown format from {}", sender );
+            return Collections.emptyMap();
+        }
+
+        Map<String, VersionedValue> entries = new HashMap<>();
+        for( Map.Entry<?, ?> entry : ( (Map<?, ?>) obj ).entrySet() )
+        {
+            if( entry.getKey() instanceof String && entry.getValue() instanceof VersionedValue )
+            {
+                entries.put( (String) entry.getKey(), (VersionedValue) entry.getValue() );
+            }
+        }
+        if( entries.size() < ( (Map<?, ?>) obj ).size() )
+        {
+            logger.warn( "Ignoring {} unversioned entries from {}", ( (Map<?, ?>) obj ).size() - entries.size(), sender );
+        }
+        return entries;
+    }
+
+    private static class OutgoingTransfer
+    {
+        private final List<String> chunks;
+        private final long expiresAt;
+
+        private OutgoingTransfer( List<String> chunks, long expiresAt )
+        {
+            this.chunks = chunks;
+            this.expiresAt = expiresAt;
+        }
     }
 }
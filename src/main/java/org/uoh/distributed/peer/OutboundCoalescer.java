@@ -0,0 +1,181 @@
+package org.uoh.distributed.peer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.uoh.distributed.utils.RequestBuilder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues outgoing messages per peer and packs the messages sent to the same peer within a short window into a single
+ * {@link org.uoh.distributed.utils.Constants#BATCH} datagram. A queue is flushed when the window elapses or when the
+ * next message would push the datagram over the size threshold.
+ */
+public class OutboundCoalescer
+{
+    private static final Logger logger = LoggerFactory.getLogger( OutboundCoalescer.class );
+    /** Room left for the length prefix, command and message count of a batch */
+    private static final int BATCH_HEADER_SIZE = 24;
+
+    private final Sender sender;
+    private final ScheduledExecutorService scheduler;
+    private final long flushWindowMicros;
+    private final int maxBatchSize;
+    private final Map<InetSocketAddress, PeerQueue> queues = new ConcurrentHashMap<>();
+
+    public OutboundCoalescer( Sender sender, ScheduledExecutorService scheduler, long flushWindowMicros, int maxBatchSize )
+    {
+        this.sender = sender;
+        this.scheduler = scheduler;
+        this.flushWindowMicros = flushWindowMicros;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Queues a framed message to be sent to the peer.
+     *
+     * @param message message built with {@link RequestBuilder#buildRequest(String)}
+     * @param peer    recipient
+     */
+    public void send( String message, InetSocketAddress peer )
+    {
+        int size = entrySize( message );
+        if( BATCH_HEADER_SIZE + size > maxBatchSize )
+        {
+            // Too big to share a datagram. Flush what is queued first to keep the order
+            flush( peer );
+            transmit( message, peer );
+            return;
+        }
+
+        PeerQueue queue = queues.computeIfAbsent( peer, p -> new PeerQueue() );
+        List<String> full = null;
+        boolean first;
+        synchronized( queue )
+        {
+            if( queue.size + size > maxBatchSize )
+            {
+                full = queue.drain();
+            }
+            first = queue.messages.isEmpty();
+            queue.messages.add( message );
+            queue.size += size;
+        }
+
+        if( full != null )
+        {
+            transmit( full, peer );
+        }
+
+        if( first )
+        {
+            try
+            {
+                scheduler.schedule( () -> flush( peer ), flushWindowMicros, TimeUnit.MICROSECONDS );
+            }
+            catch( RejectedExecutionException e )
+            {
+                flush( peer );
+            }
+        }
+    }
+
+    /**
+     * Sends whatever is queued for the peer right away.
+     */
+    public void flush( InetSocketAddress peer )
+    {
+        PeerQueue queue = queues.get( peer );
+        if( queue == null )
+        {
+            return;
+        }
+
+        List<String> messages;
+        synchronized( queue )
+        {
+            messages = queue.drain();
+        }
+        transmit( messages, peer );
+    }
+
+    public void flushAll()
+    {
+        queues.keySet().forEach( this::flush );
+    }
+
+    /**
+     * Drops the queue of a peer that is no longer talked to.
+     */
+    public void remove( InetSocketAddress peer )
+    {
+        flush( peer );
+        queues.remove( peer );
+    }
+
+    private static int entrySize( String message )
+    {
+        int length = RequestBuilder.utf8Length( message );
+        return String.valueOf( length ).length() + 1 + length;
+    }
+
+    private void transmit( List<String> messages, InetSocketAddress peer )
+    {
+        if( messages.isEmpty() )
+        {
+            return;
+        }
+
+        if( messages.size() == 1 )
+        {
+            transmit( messages.get( 0 ), peer );
+            return;
+        }
+
+        logger.debug( "Coalescing {} messages to {}", messages.size(), peer );
+        transmit( RequestBuilder.buildBatch( messages ), peer );
+    }
+
+    private void transmit( String message, InetSocketAddress peer )
+    {
+        try
+        {
+            sender.send( message.getBytes( StandardCharsets.UTF_8 ), peer );
+        }
+        catch( IOException e )
+        {
+            logger.error( "Error occurred when sending to {}", peer, e );
+        }
+    }
+
+    /**
+     * Puts a datagram on the wire
+     */
+    public interface Sender
+    {
+        void send( byte[] data, InetSocketAddress peer ) throws IOException;
+    }
+
+    private static class PeerQueue
+    {
+        private List<String> messages = new ArrayList<>();
+        private int size = BATCH_HEADER_SIZE;
+
+        private List<String> drain()
+        {
+            List<String> drained = messages;
+            messages = new ArrayList<>();
+            size = BATCH_HEADER_SIZE;
+            return drained;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.uoh.distributed.peer;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Changes of a routing table between two of its versions. A full delta carries the whole table, which is what a peer
+ * gets when it has never synced or when the changes it missed are no longer in the change log.
+ * <p>
+ * Versions only make sense within an epoch. A table gets a new epoch whenever it is created, e.g. when the node
+ * restarts.
+ */
+public class RoutingDelta
+{
+    private final long epoch;
+    private final long fromVersion;
+    private final long toVersion;
+    private final boolean full;
+    private final Collection<RoutingTableEntry> added;
+    private final Collection<RoutingTableEntry> removed;
+
+    public RoutingDelta( long epoch, long fromVersion, long toVersion, boolean full, Collection<RoutingTableEntry> added,
+                         Collection<RoutingTableEntry> removed )
+    {
+        this.epoch = epoch;
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.full = full;
+        this.added = Collections.unmodifiableCollection( added );
+        this.removed = Collections.unmodifiableCollection( removed );
+    }
+
+    public static RoutingDelta full( long epoch, long version, Collection<RoutingTableEntry> entries )
+    {
+        return new RoutingDelta( epoch, 0, version, true, entries, Collections.emptyList() );
+    }
+
+    public long getEpoch()
+    {
+        return epoch;
+    }
+
+    public long getFromVersion()
+    {
+        return fromVersion;
+    }
+
+    public long getToVersion()
+    {
+        return toVersion;
+    }
+
+    public boolean isFull()
+    {
+        return full;
+    }
+
+    public Collection<RoutingTableEntry> getAdded()
+    {
+        return added;
+    }
+
+    public Collection<RoutingTableEntry> getRemoved()
+    {
+        return removed;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "%s %d..%d (epoch %d) +%s -%s", full ? "full" : "delta", fromVersion, toVersion, epoch, added, removed );
+    }
+}
@@ -5,56 +5,190 @@ package org.uoh.distributed.peer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.uoh.distributed.utils.Constants;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 
 
+/**
+ * Nodes known to this node, along with its view of the ring of node IDs: the successor, the predecessor and a Chord
+ * finger table where finger {@code i} is the first node succeeding {@code self + 2^i}. Lookups only need the ring
+ * pointers, see {@link #closestPrecedingNode(long)}. The ring spans all 64-bit values, which are compared unsigned.
+ * <p>
+ * Keys are placed on the virtual nodes of the known nodes instead, see {@link #ownerOf(long)}, which spreads them
+ * evenly however the node IDs happen to fall.
+ * <p>
+ * Entries are indexed by address and by node ID. Writes are serialized and bump the {@link #getVersion() version},
+ * reads never lock: single lookups go to the indexes and whole-table reads get an immutable {@link Snapshot}, which is
+ * built once per version and shared by all readers until the next write.
+ * <p>
+ * The last {@link Constants#ROUTING_CHANGE_LOG_SIZE} changes are logged, so that a peer that synced at some version
+ * only needs the changes since then, see {@link #changesSince(long, long)}.
+ */
 public class RoutingTable
 {
     private static final Logger logger = LoggerFactory.getLogger( RoutingTable.class );
-    private final Set<RoutingTableEntry> entries = new HashSet<>();
 
+    private final Map<InetSocketAddress, RoutingTableEntry> byAddress = new ConcurrentHashMap<>();
+    private final Map<Long, RoutingTableEntry> byNodeId = new ConcurrentHashMap<>();
+    /** Node IDs in ring order, for moving the ring pointers off a removed node. Guarded by this */
+    private final TreeMap<Long, RoutingTableEntry> ring = new TreeMap<>( Long::compareUnsigned );
+    /** Virtual node tokens of the entries, hashing is too slow to be redone on every change */
+    private final Map<RoutingTableEntry, long[]> tokens = new ConcurrentHashMap<>();
+    private volatile long version;
+    private volatile Snapshot snapshot = new Snapshot( 0, Collections.emptySet(), this::tokensOf );
+    /** Identifies this table, versions of different tables can't be compared */
+    private final long epoch = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+    /** Change that led to version {@code v} is at {@code v % length}. Guarded by this */
+    private final Change[] changeLog = new Change[Constants.ROUTING_CHANGE_LOG_SIZE];
+    /** Changes after this version are in the log */
+    private long oldestLoggedVersion;
+
+    private static final int FINGER_COUNT = 64;
+    /** Replaced as a whole on every change, never modified in place */
+    private volatile RoutingTableEntry[] fingers;
+    private volatile RoutingTableEntry self;
+    private volatile RoutingTableEntry successor;
+    private volatile RoutingTableEntry predecessor;
+
+    public RoutingTable()
+    {
+        this.fingers = new RoutingTableEntry[FINGER_COUNT];
+    }
+
+    /**
+     * @return immutable view of the entries. Doesn't copy anything unless the table changed since the last read
+     */
     public Set<RoutingTableEntry> getEntries()
     {
-        return new HashSet<>( entries );
+        return getSnapshot().getEntries();
     }
 
-    public synchronized void addEntry( RoutingTableEntry entry )
+    /**
+     * @return immutable view of the table at its current version
+     */
+    public Snapshot getSnapshot()
+    {
+        Snapshot current = snapshot;
+        if( current.version == version )
+        {
+            return current;
+        }
+
+        synchronized( this )
+        {
+            if( snapshot.version != version )
+            {
+                snapshot = new Snapshot( version, Collections.unmodifiableSet( new HashSet<>( byAddress.values() ) ), this::tokensOf );
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * @return version of the table, bumped by every change
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public long getEpoch()
+    {
+        return epoch;
+    }
+
+    public int size()
+    {
+        return byAddress.size();
+    }
+
+    /**
+     * Collects the changes made since a version of this table. Entries both added and removed in between are left out.
+     *
+     * @param epoch   epoch of the table the version belongs to
+     * @param version version the requester is at
+     * @return the changes, or the whole table when the version is of another epoch or no longer in the change log
+     */
+    public synchronized RoutingDelta changesSince( long epoch, long version )
     {
-        List<RoutingTableEntry> duplicates = this.entries.stream()
-                                                         .filter( e -> e.getAddress().equals( entry.getAddress() ) )
-                                                         .collect( Collectors.toList() );
+        if( epoch != this.epoch || version < oldestLoggedVersion || version > this.version )
+        {
+            Snapshot current = getSnapshot();
+            return RoutingDelta.full( this.epoch, current.getVersion(), current.getEntries() );
+        }
+
+        // Removals are applied before additions, so an entry replaced at the same address shows up in both
+        Map<InetSocketAddress, RoutingTableEntry> added = new LinkedHashMap<>();
+        Map<InetSocketAddress, RoutingTableEntry> removed = new LinkedHashMap<>();
+        for( long v = version + 1; v <= this.version; v++ )
+        {
+            Change change = changeLog[(int) ( v % changeLog.length )];
+            InetSocketAddress address = change.entry.getAddress();
+            if( change.added )
+            {
+                added.put( address, change.entry );
+            }
+            else if( change.entry.equals( added.get( address ) ) )
+            {
+                // Added and removed since the requested version, the requester never saw it
+                added.remove( address );
+            }
+            else
+            {
+                removed.putIfAbsent( address, change.entry );
+            }
+        }
+
+        return new RoutingDelta( this.epoch, version, this.version, false, new ArrayList<>( added.values() ),
+                                 new ArrayList<>( removed.values() ) );
+    }
 
-        if( duplicates.size() == 0 )
+    public synchronized void addEntry( RoutingTableEntry entry )
+    {
+        RoutingTableEntry existing = byAddress.get( entry.getAddress() );
+        if( existing == null )
         {
             logger.debug( "Adding entry: {} to the routing table", entry );
-            this.entries.add( entry );
+            put( entry );
+            consider( entry );
         }
-        else if( duplicates.stream().filter( e -> e.getNodeId() == entry.getNodeId() ).count() == 1 )
+        else if( existing.getNodeId() == entry.getNodeId() )
         {
             logger.warn( "Entry : {} already exists", entry );
         }
         else
         {
             // Found an erroneous entry. Correct it.
-            RoutingTableEntry e = duplicates.get( 0 );
-            e.setNodeId( entry.getNodeId() );
-            logger.warn( "Correcting entry {} to {}", e, entry );
+            logger.warn( "Correcting entry {} to {}", existing, entry );
+            remove( existing );
+            RoutingTableEntry corrected = new RoutingTableEntry( entry.getAddress(), entry.getNodeId() );
+            put( corrected );
+            unlink( existing );
+            consider( corrected );
         }
     }
 
     public synchronized boolean removeEntry( RoutingTableEntry e )
     {
-        if( this.entries.remove( e ) )
+        if( e.equals( byAddress.get( e.getAddress() ) ) )
         {
+            remove( e );
             logger.info("Removed entry -> {}", e);
+            unlink( e );
             return true;
         }
         return false;
@@ -62,15 +196,12 @@ public class RoutingTable
 
     public synchronized boolean removeEntry( InetSocketAddress node )
     {
-        Optional<RoutingTableEntry> entry = this.entries.stream()
-                                                        .filter( e -> e.getAddress().getAddress().equals( node.getAddress() ) &&
-                                                                e.getAddress().getPort() == node.getPort() )
-                                                        .findFirst();
-
-        if( entry.isPresent() )
+        RoutingTableEntry entry = byAddress.get( node );
+        if( entry != null )
         {
-            this.entries.remove( entry.get() );
+            remove( entry );
             logger.info("Removed entry -> {}", entry);
+            unlink( entry );
             return true;
         }
         return false;
@@ -81,7 +212,16 @@ public class RoutingTable
      */
     public synchronized void clear()
     {
-        this.entries.clear();
+        this.byAddress.clear();
+        this.byNodeId.clear();
+        this.ring.clear();
+        this.self = null;
+        this.successor = null;
+        this.predecessor = null;
+        this.fingers = new RoutingTableEntry[FINGER_COUNT];
+        this.tokens.clear();
+        version++;
+        oldestLoggedVersion = version;
     }
 
     /**
@@ -90,11 +230,474 @@ public class RoutingTable
      * @param nodeId ID of the node of which IP-port info is required to be found
      * @return Optional of {@link InetSocketAddress}
      */
-    public Optional<RoutingTableEntry> findByNodeId( int nodeId )
+    public Optional<RoutingTableEntry> findByNodeId( long nodeId )
+    {
+        return Optional.ofNullable( byNodeId.get( nodeId ) );
+    }
+
+    public Optional<RoutingTableEntry> findByAddress( InetSocketAddress address )
+    {
+        return Optional.ofNullable( byAddress.get( address ) );
+    }
+
+    /**
+     * Places this node on the ring and derives the ring pointers from the nodes known so far.
+     */
+    public synchronized void setSelf( RoutingTableEntry self )
+    {
+        this.self = self;
+        include( self );
+        rebuildRing();
+    }
+
+    public RoutingTableEntry getSelf()
+    {
+        return self;
+    }
+
+    /**
+     * @return the next node on the ring, or null if this node is alone
+     */
+    public RoutingTableEntry getSuccessor()
+    {
+        return successor;
+    }
+
+    /**
+     * @return the previous node on the ring, or null if not known yet
+     */
+    public RoutingTableEntry getPredecessor()
     {
-        return this.entries.stream()
-                           .filter( e -> e.getNodeId() == nodeId )
-                           .findFirst();
+        return predecessor;
     }
 
+    /**
+     * Handles a node telling that it might be the predecessor of this node.
+     *
+     * @return true if it became the predecessor
+     */
+    public synchronized boolean notifyPredecessor( RoutingTableEntry candidate )
+    {
+        if( self == null || candidate.getNodeId() == self.getNodeId() )
+        {
+            return false;
+        }
+
+        include( candidate );
+        if( predecessor == null || inOpenInterval( candidate.getNodeId(), predecessor.getNodeId(), self.getNodeId() ) )
+        {
+            logger.debug( "Predecessor changed from {} to {}", predecessor, candidate );
+            predecessor = candidate;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Learns a node found by stabilization or by a lookup. Unlike {@link #addEntry(RoutingTableEntry)} a node that is
+     * already known is silently ignored.
+     */
+    public void learn( RoutingTableEntry entry )
+    {
+        if( byAddress.containsKey( entry.getAddress() ) )
+        {
+            return;
+        }
+
+        synchronized( this )
+        {
+            if( include( entry ) )
+            {
+                consider( entry );
+            }
+        }
+    }
+
+    public synchronized void setFinger( int index, RoutingTableEntry entry )
+    {
+        include( entry );
+        RoutingTableEntry[] updated = fingers.clone();
+        updated[index] = entry.getNodeId() == self.getNodeId() ? null : entry;
+        fingers = updated;
+        if( index == 0 && updated[0] != null )
+        {
+            successor = updated[0];
+        }
+    }
+
+    /**
+     * @return the fingers, with null where no node is known
+     */
+    public List<RoutingTableEntry> getFingers()
+    {
+        return new ArrayList<>( Arrays.asList( fingers ) );
+    }
+
+    public int getFingerCount()
+    {
+        return FINGER_COUNT;
+    }
+
+    /**
+     * @return the position on the ring finger {@code index} should succeed
+     */
+    public long fingerStart( int index )
+    {
+        return self.getNodeId() + ( 1L << index );
+    }
+
+    /**
+     * @return the node responsible for the key among the known nodes, or null if none is known
+     */
+    public RoutingTableEntry ownerOf( long key )
+    {
+        return getSnapshot().getTokenRing().ownerOf( key );
+    }
+
+    /**
+     * @return true if the key falls between this node and its successor, i.e. the successor is responsible for it
+     */
+    public boolean isSuccessorOf( long key )
+    {
+        RoutingTableEntry me = self;
+        RoutingTableEntry next = successor;
+        return me != null && next != null && inHalfOpenInterval( key, me.getNodeId(), next.getNodeId() );
+    }
+
+    /**
+     * @return the known node closest to the key without passing it, or this node when no finger gets closer
+     */
+    public RoutingTableEntry closestPrecedingNode( long key )
+    {
+        RoutingTableEntry me = self;
+        RoutingTableEntry[] current = fingers;
+        for( int i = current.length - 1; i >= 0; i-- )
+        {
+            RoutingTableEntry finger = current[i];
+            if( finger != null && inOpenInterval( finger.getNodeId(), me.getNodeId(), key ) )
+            {
+                return finger;
+            }
+        }
+
+        RoutingTableEntry next = successor;
+        if( next != null && inOpenInterval( next.getNodeId(), me.getNodeId(), key ) )
+        {
+            return next;
+        }
+        return me;
+    }
+
+    /**
+     * Like {@link #closestPrecedingNode(long)}, but weighs the round trip time to the candidates against the progress
+     * they make. Only the nodes at least halving the distance to the key are candidates, so that a lookup still takes
+     * O(log N) hops. Each is scored by its RTT plus the hops expected to be left from it, about {@code log2(n d) / 2}
+     * for a distance d to the key as a share of the ring and n nodes, each hop costing the mean RTT of the candidates.
+     * Falls back to the closest node while no RTT is known.
+     *
+     * @param rtt RTT estimates of this node, a node whose RTT is unknown counts at the mean
+     */
+    public RoutingTableEntry closestPrecedingNode( long key, RttTracker rtt )
+    {
+        RoutingTableEntry me = self;
+        RoutingTableEntry closest = closestPrecedingNode( key );
+        if( closest.equals( me ) )
+        {
+            return closest;
+        }
+
+        long half = distance( me.getNodeId(), key ) >>> 1;
+        List<RoutingTableEntry> candidates = new ArrayList<>();
+        candidates.add( closest );
+        for( RoutingTableEntry finger : fingers )
+        {
+            if( finger != null && !candidates.contains( finger ) && inOpenInterval( finger.getNodeId(), me.getNodeId(), key )
+                    && Long.compareUnsigned( distance( finger.getNodeId(), key ), half ) <= 0 )
+            {
+                candidates.add( finger );
+            }
+        }
+
+        double mean = candidates.stream().mapToDouble( c -> rtt.getSrtt( c.getAddress() ) ).filter( srtt -> srtt >= 0 ).average().orElse( -1 );
+        if( candidates.size() == 1 || mean < 0 )
+        {
+            return closest;
+        }
+
+        int nodes = Math.max( byAddress.size(), 1 );
+        RoutingTableEntry best = closest;
+        double bestCost = Double.MAX_VALUE;
+        for( RoutingTableEntry candidate : candidates )
+        {
+            double srtt = rtt.getSrtt( candidate.getAddress() );
+            double cost = ( srtt < 0 ? mean : srtt ) + mean * expectedHops( distance( candidate.getNodeId(), key ), nodes );
+            // The closest node comes first and wins ties
+            if( cost < bestCost )
+            {
+                best = candidate;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    private static double expectedHops( long distance, int nodes )
+    {
+        // Nodes expected between the candidate and the key
+        double between = ( distance >>> 1 ) / 0x1p63 * nodes;
+        return between <= 1 ? 0 : Math.log( between ) / Math.log( 2 ) / 2;
+    }
+
+    /**
+     * @return clockwise distance from one position of the ring to another, an unsigned value
+     */
+    public static long distance( long from, long to )
+    {
+        // Wraps around at 2^64 by itself
+        return to - from;
+    }
+
+    /**
+     * @return true if {@code x} lies strictly between {@code from} and {@code to} going clockwise
+     */
+    public static boolean inOpenInterval( long x, long from, long to )
+    {
+        long d = distance( from, x );
+        return from == to ? d != 0 : d != 0 && Long.compareUnsigned( d, distance( from, to ) ) < 0;
+    }
+
+    /**
+     * @return true if {@code x} lies in {@code (from, to]} going clockwise. The whole ring when both ends are the same
+     */
+    public static boolean inHalfOpenInterval( long x, long from, long to )
+    {
+        long d = distance( from, x );
+        return from == to || ( d != 0 && Long.compareUnsigned( d, distance( from, to ) ) <= 0 );
+    }
+
+    private void put( RoutingTableEntry entry )
+    {
+        byAddress.put( entry.getAddress(), entry );
+        byNodeId.put( entry.getNodeId(), entry );
+        ring.put( entry.getNodeId(), entry );
+        log( new Change( true, entry ) );
+    }
+
+    private void remove( RoutingTableEntry entry )
+    {
+        byAddress.remove( entry.getAddress() );
+        byNodeId.remove( entry.getNodeId(), entry );
+        ring.remove( entry.getNodeId(), entry );
+        tokens.remove( entry );
+        log( new Change( false, entry ) );
+    }
+
+    private void log( Change change )
+    {
+        long next = version + 1;
+        changeLog[(int) ( next % changeLog.length )] = change;
+        oldestLoggedVersion = Math.max( oldestLoggedVersion, next - changeLog.length );
+        version = next;
+    }
+
+    /**
+     * Adds the entry if no entry with the same address is known.
+     *
+     * @return true if it was added
+     */
+    private boolean include( RoutingTableEntry entry )
+    {
+        if( byAddress.containsKey( entry.getAddress() ) )
+        {
+            return false;
+        }
+        put( entry );
+        return true;
+    }
+
+    /**
+     * Moves the ring pointers to the entry wherever it is closer than the current one.
+     */
+    private void consider( RoutingTableEntry entry )
+    {
+        if( self == null || entry.getNodeId() == self.getNodeId() )
+        {
+            return;
+        }
+
+        long id = entry.getNodeId();
+        if( successor == null || inOpenInterval( id, self.getNodeId(), successor.getNodeId() ) )
+        {
+            successor = entry;
+        }
+        if( predecessor == null || inOpenInterval( id, predecessor.getNodeId(), self.getNodeId() ) )
+        {
+            predecessor = entry;
+        }
+
+        RoutingTableEntry[] updated = null;
+        for( int i = 0; i < FINGER_COUNT; i++ )
+        {
+            long start = fingerStart( i );
+            RoutingTableEntry finger = fingers[i];
+            if( finger == null || Long.compareUnsigned( distance( start, id ), distance( start, finger.getNodeId() ) ) < 0 )
+            {
+                if( updated == null )
+                {
+                    updated = fingers.clone();
+                }
+                updated[i] = entry;
+            }
+        }
+        if( updated != null )
+        {
+            fingers = updated;
+        }
+    }
+
+    private void rebuildRing()
+    {
+        successor = null;
+        predecessor = null;
+        fingers = new RoutingTableEntry[FINGER_COUNT];
+        byAddress.values().forEach( this::consider );
+    }
+
+    /**
+     * Moves the ring pointers off a removed entry, each to the next known node in its direction. Only the pointers to
+     * the entry change, and each is found in O(log N), instead of deriving the whole ring again.
+     */
+    private void unlink( RoutingTableEntry removed )
+    {
+        if( self == null )
+        {
+            return;
+        }
+
+        long me = self.getNodeId();
+        if( removed.equals( successor ) )
+        {
+            successor = atOrAfter( me + 1 );
+        }
+        if( removed.equals( predecessor ) )
+        {
+            predecessor = atOrBefore( me - 1 );
+        }
+
+        RoutingTableEntry[] updated = null;
+        for( int i = 0; i < FINGER_COUNT; i++ )
+        {
+            if( removed.equals( fingers[i] ) )
+            {
+                if( updated == null )
+                {
+                    updated = fingers.clone();
+                }
+                updated[i] = atOrAfter( fingerStart( i ) );
+            }
+        }
+        if( updated != null )
+        {
+            fingers = updated;
+        }
+    }
+
+    /**
+     * @return first node other than this one at or after the position going clockwise, null if there is none
+     */
+    private RoutingTableEntry atOrAfter( long position )
+    {
+        Map.Entry<Long, RoutingTableEntry> next = ring.ceilingEntry( position );
+        for( int i = 0; i < 2; i++ )
+        {
+            if( next == null )
+            {
+                next = ring.firstEntry();
+            }
+            if( next == null || next.getKey() != self.getNodeId() )
+            {
+                break;
+            }
+            next = ring.higherEntry( next.getKey() );
+        }
+        return next == null || next.getKey() == self.getNodeId() ? null : next.getValue();
+    }
+
+    /**
+     * @return first node other than this one at or before the position going counterclockwise, null if there is none
+     */
+    private RoutingTableEntry atOrBefore( long position )
+    {
+        Map.Entry<Long, RoutingTableEntry> previous = ring.floorEntry( position );
+        for( int i = 0; i < 2; i++ )
+        {
+            if( previous == null )
+            {
+                previous = ring.lastEntry();
+            }
+            if( previous == null || previous.getKey() != self.getNodeId() )
+            {
+                break;
+            }
+            previous = ring.lowerEntry( previous.getKey() );
+        }
+        return previous == null || previous.getKey() == self.getNodeId() ? null : previous.getValue();
+    }
+
+    private long[] tokensOf( RoutingTableEntry entry )
+    {
+        return tokens.computeIfAbsent( entry, e -> NodeIds.tokens( e.getAddress(), Constants.VIRTUAL_NODES ) );
+    }
+
+    private static class Change
+    {
+        private final boolean added;
+        private final RoutingTableEntry entry;
+
+        private Change( boolean added, RoutingTableEntry entry )
+        {
+            this.added = added;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Immutable view of the routing table at a version.
+     */
+    public static class Snapshot
+    {
+        private final long version;
+        private final Set<RoutingTableEntry> entries;
+        private final Function<RoutingTableEntry, long[]> tokens;
+        /** Built on first use, not all readers need it */
+        private volatile TokenRing tokenRing;
+
+        private Snapshot( long version, Set<RoutingTableEntry> entries, Function<RoutingTableEntry, long[]> tokens )
+        {
+            this.version = version;
+            this.entries = entries;
+            this.tokens = tokens;
+        }
+
+        public TokenRing getTokenRing()
+        {
+            TokenRing ring = tokenRing;
+            if( ring == null )
+            {
+                ring = new TokenRing( entries, tokens );
+                tokenRing = ring;
+            }
+            return ring;
+        }
+
+        public long getVersion()
+        {
+            return version;
+        }
+
+        public Set<RoutingTableEntry> getEntries()
+        {
+            return entries;
+        }
+    }
 }
@@ -9,19 +9,19 @@ import java.net.InetSocketAddress;
 import java.util.Objects;
 
 /**
- * Represents an entry in the routing table. Consists of IP, port and Node name.
+ * Represents an entry in the routing table. Consists of IP, port and Node name, an unsigned position on the ring.
  */
 @XmlRootElement
 public class RoutingTableEntry implements Serializable
 {
 
     private InetSocketAddress address;
-    private int nodeId;
+    private long nodeId;
 
     public RoutingTableEntry() { }
 
-    public RoutingTableEntry( InetSocketAddress address, int nodeId) {
-        if (address == null || nodeId <= 0) {
+    public RoutingTableEntry( InetSocketAddress address, long nodeId) {
+        if (address == null || nodeId == 0) {
             throw new IllegalArgumentException( "Address and Node name should not be null");
         }
 
@@ -33,11 +33,11 @@ public class RoutingTableEntry implements Serializable
         return address;
     }
 
-    public int getNodeId() {
+    public long getNodeId() {
         return nodeId;
     }
 
-    public void setNodeId(int nodeId) {
+    public void setNodeId(long nodeId) {
         this.nodeId = nodeId;
     }
 
@@ -67,6 +67,6 @@ public class RoutingTableEntry implements Serializable
 
     @Override
     public String toString() {
-        return String.format( "[%d -> %s]", nodeId, address);
+        return String.format( "[%s -> %s]", NodeIds.toString( nodeId ), address);
     }
 }
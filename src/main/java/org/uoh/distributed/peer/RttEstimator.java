@@ -0,0 +1,79 @@
+package org.uoh.distributed.peer;
+
+import org.uoh.distributed.utils.Constants;
+
+/**
+ * Round trip time estimator of a single peer as described in RFC 6298. Samples must follow Karn's rule, i.e. only
+ * responses to requests that were transmitted once are measured, since the response to a retransmitted request can't
+ * be tied to a particular transmission.
+ */
+public class RttEstimator
+{
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+
+    private double srtt = -1;
+    private double rttVar;
+    private long rto = Constants.INITIAL_RTO_MS;
+    private long samples;
+
+    /**
+     * Feeds a new round trip time measurement.
+     *
+     * @param rttMs measured round trip time in milliseconds
+     */
+    public synchronized void sample( double rttMs )
+    {
+        if( srtt < 0 )
+        {
+            srtt = rttMs;
+            rttVar = rttMs / 2;
+        }
+        else
+        {
+            rttVar = ( 1 - BETA ) * rttVar + BETA * Math.abs( srtt - rttMs );
+            srtt = ( 1 - ALPHA ) * srtt + ALPHA * rttMs;
+        }
+
+        samples++;
+        rto = clamp( (long) Math.ceil( srtt + Math.max( 1, K * rttVar ) ) );
+    }
+
+    /**
+     * @return current retransmission timeout in milliseconds
+     */
+    public synchronized long getRto()
+    {
+        return rto;
+    }
+
+    /**
+     * @return smoothed round trip time in milliseconds, or -1 if nothing has been measured yet
+     */
+    public synchronized double getSrtt()
+    {
+        return srtt;
+    }
+
+    public synchronized double getRttVar()
+    {
+        return rttVar;
+    }
+
+    public synchronized long getSamples()
+    {
+        return samples;
+    }
+
+    private static long clamp( long rto )
+    {
+        return Math.max( Constants.MIN_RTO_MS, Math.min( Constants.MAX_RTO_MS, rto ) );
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format( "[srtt=%.1fms, rttvar=%.1fms, rto=%dms]", srtt, rttVar, rto );
+    }
+}
@@ -0,0 +1,84 @@
+package org.uoh.distributed.peer;
+
+import org.uoh.distributed.utils.Constants;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps a {@link RttEstimator} per peer and derives jittered retransmission timeouts from them. Shared by the request
+ * and response paths of a node and readable by the routing layer.
+ */
+public class RttTracker
+{
+    private final Map<InetSocketAddress, RttEstimator> estimators = new ConcurrentHashMap<>();
+
+    public void sample( InetSocketAddress peer, double rttMs )
+    {
+        estimatorOf( peer ).sample( rttMs );
+    }
+
+    /**
+     * Timeout to wait for a response from the peer before retransmitting. Doubled for every timeout the request has
+     * already had, so that only the request that lost a packet backs off and not everything else in flight to the
+     * peer. Randomized by {@link Constants#RTO_JITTER} so that requests timing out together don't retransmit in
+     * lockstep.
+     *
+     * @param peer     peer the request is sent to
+     * @param backOffs number of times the request has timed out so far
+     * @return timeout in milliseconds
+     */
+    public long timeout( InetSocketAddress peer, int backOffs )
+    {
+        long rto = Math.min( estimatorOf( peer ).getRto() << Math.min( backOffs, 16 ), Constants.MAX_RTO_MS );
+        double jitter = 1 + ThreadLocalRandom.current().nextDouble( -Constants.RTO_JITTER, Constants.RTO_JITTER );
+        return Math.max( 1, Math.round( rto * jitter ) );
+    }
+
+    /**
+     * Delay before the given retry when there is nothing to measure, e.g. a local send failure. Grows exponentially
+     * from the current timeout of the peer.
+     *
+     * @param peer    peer the message is sent to
+     * @param attempt number of attempts made so far, starting from 1
+     * @return delay in milliseconds
+     */
+    public long backOffDelay( InetSocketAddress peer, int attempt )
+    {
+        long delay = Math.min( estimatorOf( peer ).getRto() << Math.min( Math.max( attempt - 1, 0 ), 16 ), Constants.MAX_RTO_MS );
+        return ThreadLocalRandom.current().nextLong( delay / 2, delay + 1 );
+    }
+
+    public Optional<RttEstimator> getEstimate( InetSocketAddress peer )
+    {
+        return Optional.ofNullable( estimators.get( peer ) );
+    }
+
+    /**
+     * @return smoothed RTT of the peer in milliseconds, or -1 if unknown
+     */
+    public double getSrtt( InetSocketAddress peer )
+    {
+        RttEstimator estimator = estimators.get( peer );
+        return estimator == null ? -1 : estimator.getSrtt();
+    }
+
+    public Map<InetSocketAddress, RttEstimator> getEstimates()
+    {
+        return Collections.unmodifiableMap( estimators );
+    }
+
+    public void remove( InetSocketAddress peer )
+    {
+        estimators.remove( peer );
+    }
+
+    private RttEstimator estimatorOf( InetSocketAddress peer )
+    {
+        return estimators.computeIfAbsent( peer, p -> new RttEstimator() );
+    }
+}
@@ -0,0 +1,175 @@
+package org.uoh.distributed.peer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Immutable consistent hashing ring of the virtual nodes of a set of nodes. A key belongs to the node of the first
+ * token at or after it, going clockwise. With V virtual nodes per node, the share of the ring owned by each node
+ * deviates from the mean by about {@code 1 / sqrt(V)}.
+ */
+public class TokenRing
+{
+    /** Sorted as unsigned values */
+    private final long[] tokens;
+    private final RoutingTableEntry[] owners;
+
+    /**
+     * @param entries nodes on the ring
+     * @param tokens  tokens of the virtual nodes of a node
+     */
+    public TokenRing( Collection<RoutingTableEntry> entries, Function<RoutingTableEntry, long[]> tokens )
+    {
+        int size = 0;
+        long[][] all = new long[entries.size()][];
+        RoutingTableEntry[] nodes = entries.toArray( new RoutingTableEntry[0] );
+        for( int i = 0; i < nodes.length; i++ )
+        {
+            all[i] = tokens.apply( nodes[i] );
+            size += all[i].length;
+        }
+
+        // Sort the tokens along with the index of their owner
+        long[][] pairs = new long[size][];
+        int n = 0;
+        for( int i = 0; i < nodes.length; i++ )
+        {
+            for( long token : all[i] )
+            {
+                pairs[n++] = new long[]{ token, i };
+            }
+        }
+        Arrays.sort( pairs, ( a, b ) -> Long.compareUnsigned( a[0], b[0] ) );
+
+        this.tokens = new long[size];
+        this.owners = new RoutingTableEntry[size];
+        for( int i = 0; i < size; i++ )
+        {
+            this.tokens[i] = pairs[i][0];
+            this.owners[i] = nodes[(int) pairs[i][1]];
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        return tokens.length == 0;
+    }
+
+    /**
+     * @return the node responsible for the key, or null if the ring is empty
+     */
+    public RoutingTableEntry ownerOf( long key )
+    {
+        if( tokens.length == 0 )
+        {
+            return null;
+        }
+        int index = ceiling( key );
+        return owners[index == tokens.length ? 0 : index];
+    }
+
+    /**
+     * Skips the tokens of a node, e.g. to find out who owned a key before the node joined, or who will own it once the
+     * node is gone.
+     *
+     * @return the node responsible for the key if the given node wasn't on the ring, null if there is no other node
+     */
+    public RoutingTableEntry ownerOf( long key, RoutingTableEntry excluded )
+    {
+        int start = ceiling( key );
+        for( int i = 0; i < tokens.length; i++ )
+        {
+            RoutingTableEntry owner = owners[( start + i ) % tokens.length];
+            if( !owner.equals( excluded ) )
+            {
+                return owner;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Walks the ring clockwise from the key, skipping the virtual nodes of the nodes already picked.
+     *
+     * @param count    number of replicas
+     * @param excluded node left out, e.g. one leaving, or null
+     * @return the nodes holding a replica of the key, the owner first. Fewer if there aren't enough nodes
+     */
+    public List<RoutingTableEntry> replicasOf( long key, int count, RoutingTableEntry excluded )
+    {
+        List<RoutingTableEntry> replicas = new ArrayList<>( count );
+        int start = ceiling( key );
+        for( int i = 0; i < tokens.length && replicas.size() < count; i++ )
+        {
+            RoutingTableEntry owner = owners[( start + i ) % tokens.length];
+            if( !owner.equals( excluded ) && !replicas.contains( owner ) )
+            {
+                replicas.add( owner );
+            }
+        }
+        return replicas;
+    }
+
+    /**
+     * @return the {@code (from, to]} ranges of the ring owned by the node, one per virtual node
+     */
+    public List<long[]> rangesOf( RoutingTableEntry owner )
+    {
+        List<long[]> ranges = new ArrayList<>();
+        for( int i = 0; i < tokens.length; i++ )
+        {
+            if( owners[i].equals( owner ) )
+            {
+                ranges.add( new long[]{ tokens[i == 0 ? tokens.length - 1 : i - 1], tokens[i] } );
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return share of the ring owned by each node, adding up to 1
+     */
+    public Map<RoutingTableEntry, Double> ownership()
+    {
+        Map<RoutingTableEntry, Double> shares = new HashMap<>();
+        for( int i = 0; i < tokens.length; i++ )
+        {
+            // Token i owns the keys after the previous token up to itself
+            long previous = tokens[i == 0 ? tokens.length - 1 : i - 1];
+            long span = tokens[i] - previous;
+            double share = tokens.length == 1 ? 1 : unsigned( span ) / 0x1p64;
+            shares.merge( owners[i], share, Double::sum );
+        }
+        return shares;
+    }
+
+    private int ceiling( long key )
+    {
+        int low = 0;
+        int high = tokens.length;
+        while( low < high )
+        {
+            int mid = ( low + high ) >>> 1;
+            if( Long.compareUnsigned( tokens[mid], key ) < 0 )
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static double unsigned( long value )
+    {
+        double d = (double) ( value >>> 1 ) * 2;
+        return d + ( value & 1 );
+    }
+}
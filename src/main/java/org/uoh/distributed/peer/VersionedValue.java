@@ -0,0 +1,42 @@
+package org.uoh.distributed.peer;
+
+import java.io.Serializable;
+
+/**
+ * Value of an entry along with the version it was written at. Replicas keep the value with the highest version, i.e.
+ * the last write wins.
+ */
+public class VersionedValue implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String value;
+    private final long version;
+
+    public VersionedValue( String value, long version )
+    {
+        this.value = value;
+        this.version = version;
+    }
+
+    public String getValue()
+    {
+        return value;
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public boolean isNewerThan( VersionedValue other )
+    {
+        return other == null || version > other.version;
+    }
+
+    @Override
+    public String toString()
+    {
+        return value + " (version " + version + ")";
+    }
+}
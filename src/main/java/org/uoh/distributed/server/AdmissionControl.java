@@ -0,0 +1,104 @@
+package org.uoh.distributed.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Token bucket per source address, so that one host restarting all its nodes at once can't crowd out the rest. A source
+ * may send up to {@code burst} registrations at once and {@code rate} per second after that, a registration that finds
+ * the bucket empty is told when to try again.
+ * <p>
+ * The nodes turned away are spread out over the time it takes to serve them: each one is counted as waiting, and told
+ * to come back once the ones turned away before it had their turn. The waiting count drains at the same rate as the
+ * bucket fills, so a storm of registrations turns into a steady stream at the rate of the bucket.
+ * <p>
+ * Shared by the receive loops of the server.
+ */
+class AdmissionControl
+{
+    private final double tokensPerNano;
+    private final double burst;
+    private final long maxRetryAfterMs;
+    private final ConcurrentMap<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * @param rate            registrations per second each source is allowed, 0 or less admits everything
+     * @param burst           registrations a source may send at once
+     * @param maxRetryAfterMs upper bound of the time a node is told to wait
+     */
+    AdmissionControl( double rate, int burst, long maxRetryAfterMs )
+    {
+        this.tokensPerNano = rate / 1e9;
+        this.burst = Math.max( 1, burst );
+        this.maxRetryAfterMs = maxRetryAfterMs;
+    }
+
+    /**
+     * Takes a token of the source, if there is one.
+     *
+     * @return 0 if admitted, otherwise how many milliseconds the node should wait before trying again
+     */
+    long admit( InetAddress source, long nowNanos )
+    {
+        if( tokensPerNano <= 0 )
+        {
+            return 0;
+        }
+        return buckets.computeIfAbsent( source, s -> new Bucket( burst, nowNanos ) ).take( nowNanos );
+    }
+
+    /**
+     * Forgets the sources whose bucket filled up again, they start over with a full one anyway.
+     */
+    void evictIdle( long nowNanos )
+    {
+        buckets.values().removeIf( bucket -> bucket.isFull( nowNanos ) );
+    }
+
+    int size()
+    {
+        return buckets.size();
+    }
+
+    private class Bucket
+    {
+        private double tokens;
+        /** Nodes told to come back that haven't had their turn yet */
+        private double waiting;
+        private long updated;
+
+        private Bucket( double tokens, long nowNanos )
+        {
+            this.tokens = tokens;
+            this.updated = nowNanos;
+        }
+
+        private synchronized long take( long nowNanos )
+        {
+            refill( nowNanos );
+            if( tokens >= 1 )
+            {
+                tokens--;
+                return 0;
+            }
+            waiting++;
+            long retryAfterMs = (long) Math.ceil( ( waiting - tokens ) / tokensPerNano / 1e6 );
+            return Math.max( 1, Math.min( retryAfterMs, maxRetryAfterMs ) );
+        }
+
+        private synchronized boolean isFull( long nowNanos )
+        {
+            refill( nowNanos );
+            return tokens >= burst && waiting == 0;
+        }
+
+        private void refill( long nowNanos )
+        {
+            double refilled = ( nowNanos - updated ) * tokensPerNano;
+            tokens = Math.min( burst, tokens + refilled );
+            waiting = Math.max( 0, waiting - refilled );
+            updated = nowNanos;
+        }
+    }
+}
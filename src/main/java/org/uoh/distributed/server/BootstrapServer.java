@@ -1,28 +1,96 @@
 package org.uoh.distributed.server;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.uoh.distributed.utils.BufferPool;
 import org.uoh.distributed.utils.Constants;
+import org.uoh.distributed.utils.MessageView;
+import org.uoh.distributed.utils.RequestBuilder;
+import org.uoh.distributed.utils.ThreadPools;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.util.ArrayList;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
-import java.util.Random;
 import java.util.StringJoiner;
-import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the nodes in the network and hands a few of them to every joining node. Datagrams are received into
+ * pooled buffers by one or more receive loops and handled by a pool of workers sharing the {@link Registry}, the same
+ * way as in {@link org.uoh.distributed.peer.NodeServer}. Every request is logged at debug level only, the logger of
+ * this package is asynchronous, see {@code log4j2.xml}.
+ * <p>
+ * Registrations are leases the nodes renew with {@link Constants#RENEW}, the ones that lapsed are dropped every
+ * {@link Constants#BOOTSTRAP_LEASE_TICK_MS}.
+ * <p>
+ * With {@link Constants#BOOTSTRAP_DATA_DIR} set, the registry is persisted in a {@link RegistryLog} and recovered from it
+ * on start. The log is written out to disk every tick and compacted every {@link Constants#BOOTSTRAP_COMPACTION_PERIOD_MS}.
+ * <p>
+ * Registrations are admitted by the receive loops, so that a join storm is turned away before it takes up a worker. Each
+ * source address gets a token bucket, see {@link AdmissionControl}, and at most {@link Constants#BOOTSTRAP_QUEUE_SIZE}
+ * requests wait for a worker. A registration that isn't admitted is answered with {@link Constants#E9995} and the
+ * milliseconds to wait before trying again, other requests are dropped once the queue is full.
+ */
 public class BootstrapServer
 {
+    private static final Logger logger = LoggerFactory.getLogger( BootstrapServer.class );
+
+    private static final byte[] REG = MessageView.bytes( Constants.REG );
+    private static final byte[] UNREG = MessageView.bytes( Constants.UNREG );
+    private static final byte[] ECHO = MessageView.bytes( Constants.ECHO );
+    private static final byte[] RENEW = MessageView.bytes( Constants.RENEW );
+    private static final ThreadLocal<MessageView> VIEWS = ThreadLocal.withInitial( MessageView::new );
 
     private int port;
-    private boolean started = false;
+    private final int loopThreads;
+    private final int workerThreads;
+    private volatile boolean started = false;
+    /** Runs the request handlers */
     private ExecutorService executorService;
+    /** Runs the receive loops */
+    private ExecutorService loopExecutorService;
+    /** Drops the registrations whose lease lapsed and persists the registry */
+    private ScheduledExecutorService expiryExecutorService;
+    private final BufferPool bufferPool = new BufferPool( Constants.BOOTSTRAP_BUFFER_POOL_SIZE, Constants.BOOTSTRAP_MAX_MESSAGE_SIZE );
+    private final List<DatagramChannel> channels = new CopyOnWriteArrayList<>();
+    private final Registry registry = new Registry( Constants.BOOTSTRAP_PEERS, Constants.BOOTSTRAP_LEASE_MS, Constants.BOOTSTRAP_LEASE_TICK_MS );
+    private final AdmissionControl admissionControl = new AdmissionControl( Constants.BOOTSTRAP_SOURCE_RATE, Constants.BOOTSTRAP_SOURCE_BURST,
+                                                                           Constants.BOOTSTRAP_MAX_RETRY_AFTER_MS );
+    /** Null unless the registry is persisted */
+    private RegistryLog registryLog;
 
     public BootstrapServer( int port )
     {
+        this( port, Constants.BOOTSTRAP_LOOP_THREADS, Constants.BOOTSTRAP_WORKER_THREADS );
+    }
+
+    public BootstrapServer( int port, int loopThreads, int workerThreads )
+    {
+        if( loopThreads <= 0 || workerThreads <= 0 )
+        {
+            throw new IllegalArgumentException( "At least one receive loop and one worker are required" );
+        }
         this.port = port;
+        this.loopThreads = loopThreads;
+        this.workerThreads = workerThreads;
     }
 
     public void start()
@@ -32,186 +100,350 @@ public class BootstrapServer
             throw new IllegalStateException( "Server already running" );
         }
 
+        if( Constants.BOOTSTRAP_DATA_DIR != null && registryLog == null )
+        {
+            recover( Paths.get( Constants.BOOTSTRAP_DATA_DIR ) );
+        }
+
+        executorService = new ThreadPoolExecutor( workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                                                  new ArrayBlockingQueue<>( Constants.BOOTSTRAP_QUEUE_SIZE ) );
+        loopExecutorService = ThreadPools.newLoopExecutor();
+        try
+        {
+            openChannels();
+        }
+        catch( IOException e )
+        {
+            closeChannels();
+            logger.error( "Error occurred when binding to port {}", port, e );
+            throw new IllegalStateException( "Error occurred when listening", e );
+        }
+
         started = true;
-        executorService = Executors.newSingleThreadExecutor();
-        executorService.submit( () -> {
-            try
-            {
-                doProcessing();
-            }
-            catch( Exception e )
-            {
-                e.printStackTrace();
-            }
-        } );
+        for( DatagramChannel channel : channels )
+        {
+            loopExecutorService.submit( () -> {
+                try
+                {
+                    listen( channel );
+                }
+                catch( Exception e )
+                {
+                    logger.error( "Error occurred when listening", e );
+                }
+            } );
+        }
 
+        expiryExecutorService = Executors.newSingleThreadScheduledExecutor();
+        expiryExecutorService.scheduleAtFixedRate( this::expireLeases, Constants.BOOTSTRAP_LEASE_TICK_MS, Constants.BOOTSTRAP_LEASE_TICK_MS, TimeUnit.MILLISECONDS );
+        if( registryLog != null )
+        {
+            expiryExecutorService.scheduleWithFixedDelay( this::compact, Constants.BOOTSTRAP_COMPACTION_PERIOD_MS, Constants.BOOTSTRAP_COMPACTION_PERIOD_MS, TimeUnit.MILLISECONDS );
+        }
+
+        logger.info( "Bootstrap Server created at {} with {} receive loop(s) and {} worker(s). Waiting for incoming data...",
+                     port, channels.size(), workerThreads );
         Runtime.getRuntime().addShutdownHook( new Thread( this::stop ) );  // Server shutdown when there is any exit or user interrupt
     }
 
+    private void recover( Path directory )
+    {
+        long start = System.nanoTime();
+        try
+        {
+            registryLog = new RegistryLog( directory, Constants.BOOTSTRAP_LOG_SIZE, registry::writeTo );
+            int recovered = registry.recoverFrom( registryLog );
+            logger.info( "Recovered {} registration(s) from {} in {} ms", recovered, directory, ( System.nanoTime() - start ) / 1_000_000 );
+        }
+        catch( IOException e )
+        {
+            registryLog = null;
+            logger.error( "Error occurred when recovering the registry from {}", directory, e );
+            throw new IllegalStateException( "Error occurred when recovering the registry", e );
+        }
+    }
+
     /**
-     * Server starting listing to join other Nodes
+     * Opens one channel per receive loop. Multiple loops are only possible when SO_REUSEPORT is supported, since then
+     * the kernel spreads the incoming datagrams across the sockets bound to the same port.
      */
-    private void doProcessing()
+    private void openChannels() throws IOException
     {
-        DatagramSocket sock = null;
-        String s;
-        List<Neighbour> nodes = new ArrayList<>();  // List of Joined nodes
-
-        try
+        DatagramChannel first = DatagramChannel.open( StandardProtocolFamily.INET );
+        boolean reusePort = loopThreads > 1 && first.supportedOptions().contains( StandardSocketOptions.SO_REUSEPORT );
+        if( loopThreads > 1 && !reusePort )
         {
-            sock = new DatagramSocket( port );
+            logger.warn( "SO_REUSEPORT is not supported. Falling back to a single receive loop" );
+        }
 
-            echo( "Bootstrap Server created at 55555. Waiting for incoming data..." );
+        int count = reusePort ? loopThreads : 1;
+        channels.add( first );
+        for( int i = 1; i < count; i++ )
+        {
+            channels.add( DatagramChannel.open( StandardProtocolFamily.INET ) );
+        }
 
-            while( started )
+        for( DatagramChannel channel : channels )
+        {
+            if( reusePort )
             {
-                byte[] buffer = new byte[65536];
-                DatagramPacket incoming = new DatagramPacket( buffer, buffer.length );
-                sock.receive( incoming );
-
-                byte[] data = incoming.getData();
-                s = new String( data, 0, incoming.getLength() );
+                channel.setOption( StandardSocketOptions.SO_REUSEPORT, true );
+            }
+            channel.setOption( StandardSocketOptions.SO_RCVBUF, Constants.SOCKET_RECEIVE_BUFFER_SIZE );
+            channel.configureBlocking( false );
+            channel.bind( new InetSocketAddress( port ) );
+        }
+    }
 
-                //echo the details of incoming data - client ip : client port - client message
-                echo( incoming.getAddress().getHostAddress() + " : " + incoming.getPort() + " - " + s );
+    private void closeChannels()
+    {
+        for( DatagramChannel channel : channels )
+        {
+            try
+            {
+                channel.close();
+            }
+            catch( IOException e )
+            {
+                logger.warn( "Error occurred when closing channel", e );
+            }
+        }
+        channels.clear();
+    }
 
-                StringTokenizer st = new StringTokenizer( s, Constants.MSG_SEPARATOR );
+    private void listen( DatagramChannel channel )
+    {
+        try (Selector selector = Selector.open())
+        {
+            channel.register( selector, SelectionKey.OP_READ );
+            // Datagrams that arrive while every pooled buffer is in use are read into this and dropped, since leaving
+            // them in the socket would keep the channel readable. Whatever doesn't fit is discarded by the receive
+            ByteBuffer overflow = ByteBuffer.allocate( 1 );
 
-                String length = st.nextToken();
-                String command = st.nextToken();
+            while( started )
+            {
+                if( selector.select( Constants.SELECT_TIMEOUT_MS ) == 0 )
+                {
+                    continue;
+                }
+                selector.selectedKeys().clear();
 
-                if( Constants.REG.equals( command ) )
+                // Drain everything that is readable before going back to the selector
+                while( started )
                 {
-                    StringJoiner replyJoiner = new StringJoiner( Constants.MSG_SEPARATOR);
-                    replyJoiner.add( Constants.REGOK );
+                    ByteBuffer buffer = bufferPool.acquire();
+                    if( buffer == null )
+                    {
+                        overflow.clear();
+                        SocketAddress dropped = channel.receive( overflow );
+                        if( dropped == null )
+                        {
+                            break;
+                        }
+                        logger.debug( "Dropping datagram from {} since all receive buffers are in use", dropped );
+                        continue;
+                    }
 
-                    String ip = st.nextToken();
-                    int port = Integer.parseInt( st.nextToken() );
-                    String username = st.nextToken();
-                    if( nodes.size() == 0 )  // If there is only one node
+                    SocketAddress sender;
+                    try
                     {
-                        replyJoiner.add( String.valueOf( Constants.E0000 ) );
-                        nodes.add( new Neighbour( ip, port, username ) );
+                        sender = channel.receive( buffer );
                     }
-                    else // If there are many nodes
+                    catch( IOException e )
                     {
-                        boolean valid = true;
-                        // Validate port and Node username uniqueness
-                        for( Neighbour node : nodes )
-                        {
-                            if( node.getPort() == port )
-                            {
-                                if( node.getUsername().equals( username ) )
-                                {
-                                    replyJoiner.add( String.valueOf( Constants.E9998 ) );  // Same username with same port
-                                }
-                                else
-                                {
-                                    replyJoiner.add( ( String.valueOf( Constants.E9997 ) ) );  // Same port
-                                }
-                                valid = false;
-                            }
-                        }
-                        if( valid )
-                        {
-                            if( nodes.size() == 1 )
-                            {
-                                replyJoiner.add( String.valueOf( Constants.E0001 ) ).add( nodes.get( 0 ).getIp() ).add( String.valueOf( ( nodes.get( 0 ).getPort() ) ) );
-                            }
-                            else if( nodes.size() == 2 )
-                            {
-                                replyJoiner.add( String.valueOf( Constants.E0002 ) ).add( nodes.get( 0 ).getIp() ).add( String.valueOf( nodes.get( 0 ).getPort() ) ).add( nodes.get( 1 ).getIp() ).add(
-                                        String.valueOf( nodes.get( 1 ).getPort() ) );
-                            }
-                            else
-                            {
-                                // TODO need to update
-                                Random r = new Random();
-                                int Low = 0;
-                                int High = nodes.size();
-                                int random_1 = r.nextInt( High - Low ) + Low;
-                                int random_2 = r.nextInt( High - Low ) + Low;
-                                while( random_1 == random_2 )
-                                {
-                                    random_2 = r.nextInt( High - Low ) + Low;
-                                }
-                                echo( random_1 + " " + random_2 );
-                                replyJoiner.add( String.valueOf( Constants.E0002 ) ).add( nodes.get( random_1 ).getIp() ).add( String.valueOf( nodes.get( random_1 ).getPort() ) ).add(
-                                        nodes.get( random_2 ).getIp() )
-                                           .add( String.valueOf( nodes.get( random_2 ).getPort() ) );
-                            }
-                            nodes.add( new Neighbour( ip, port, username ) );
-                        }
+                        bufferPool.release( buffer );
+                        throw e;
                     }
 
-                    String reply = replyJoiner.toString();
-                    reply = String.format( "%04d", reply.length() + 5 ) + Constants.MSG_SEPARATOR + reply;
+                    if( sender == null )
+                    {
+                        bufferPool.release( buffer );
+                        break;
+                    }
 
-                    DatagramPacket dpReply = new DatagramPacket( reply.getBytes(), reply.getBytes().length, incoming.getAddress(), incoming.getPort() );
-                    sock.send( dpReply );
+                    buffer.flip();
+                    dispatch( channel, buffer, (InetSocketAddress) sender );
                 }
-                else if( Constants.UNREG.equals( command ) )
-                {
-                    String ip = st.nextToken();
-                    int port = Integer.parseInt( st.nextToken() );
-                    String username = st.nextToken();
-                    for( int i = 0; i < nodes.size(); i++ )
-                    {
-                        if( nodes.get( i ).getPort() == port )
-                        {
-                            nodes.remove( i );
+            }
+        }
+        catch( ClosedChannelException e )
+        {
+            logger.debug( "Receive loop stopped" );
+        }
+        catch( IOException e )
+        {
+            logger.error( "Error occurred when listening on port {}", port, e );
+            throw new IllegalStateException( "Error occurred when listening", e );
+        }
+    }
 
-                            String reply = Constants.UNREGOK;
-                            reply = String.format( "%04d", reply.length() + 5 ) + Constants.MSG_SEPARATOR + reply;
+    /**
+     * Hands a received datagram over to a worker, unless it is a registration that isn't admitted. The buffer goes back
+     * to the pool once the request has been handled.
+     */
+    private void dispatch( DatagramChannel channel, ByteBuffer buffer, InetSocketAddress sender )
+    {
+        boolean registration = VIEWS.get().wrap( buffer ).isCommand( REG );
+        if( registration )
+        {
+            long retryAfterMs = admissionControl.admit( sender.getAddress(), System.nanoTime() );
+            if( retryAfterMs > 0 )
+            {
+                bufferPool.release( buffer );
+                logger.debug( "Telling {} to register again in {} ms", sender, retryAfterMs );
+                retryLater( channel, retryAfterMs, sender );
+                return;
+            }
+        }
 
-                            DatagramPacket dpReply = new DatagramPacket( reply.getBytes(), reply.getBytes().length, incoming.getAddress(), incoming.getPort() );
-                            sock.send( dpReply );
-                        }
-                    }
+        try
+        {
+            executorService.execute( () -> {
+                MessageView request = VIEWS.get().wrap( buffer );
+                try
+                {
+                    //echo the details of incoming data - client ip : client port - client message
+                    logger.debug( "{} : {} - {}", sender.getAddress().getHostAddress(), sender.getPort(), request );
+                    handleRequest( channel, request, sender );
                 }
-                else if( Constants.ECHO.equals( command ) )
+                catch( Exception e )
                 {
-                    for( int i = 0; i < nodes.size(); i++ )
-                    {
-                        echo( nodes.get( i ).getIp() + Constants.MSG_SEPARATOR+ nodes.get( i ).getPort() + Constants.MSG_SEPARATOR+ nodes.get( i ).getUsername() );
-                    }
+                    logger.error( "Error occurred when handling request ({}) from {}", request, sender, e );
+                }
+                finally
+                {
+                    bufferPool.release( buffer );
+                }
+            } );
+        }
+        catch( RejectedExecutionException e )
+        {
+            bufferPool.release( buffer );
+            if( !started )
+            {
+                logger.debug( "Dropping request from {} since the server is stopping", sender );
+            }
+            else if( registration )
+            {
+                retryLater( channel, Constants.BOOTSTRAP_BUSY_RETRY_AFTER_MS, sender );
+            }
+            else
+            {
+                logger.debug( "Dropping request from {} since the request queue is full", sender );
+            }
+        }
+    }
 
-                    String reply = Constants.ECHOOK;
-                    reply = String.format( "%04d", reply.length() + 5 ) + Constants.MSG_SEPARATOR + reply;
+    private void handleRequest( DatagramChannel channel, MessageView request, InetSocketAddress sender ) throws IOException
+    {
+        if( request.isCommand( REG ) )
+        {
+            if( request.fieldLength( 2 ) > Constants.BOOTSTRAP_MAX_FIELD_LENGTH || request.fieldLength( 4 ) > Constants.BOOTSTRAP_MAX_FIELD_LENGTH )
+            {
+                logger.warn( "Rejecting registration from {}, the address or username is longer than {} bytes", sender,
+                             Constants.BOOTSTRAP_MAX_FIELD_LENGTH );
+                reply( channel, Constants.REGOK + Constants.MSG_SEPARATOR + Constants.E9999, sender );
+                return;
+            }
+            Neighbour node = new Neighbour( request.fieldAsString( 2 ), request.intField( 3 ), request.fieldAsString( 4 ) );
+            Registry.Registration registration = registry.register( node );
 
-                    DatagramPacket dpReply = new DatagramPacket( reply.getBytes(), reply.getBytes().length, incoming.getAddress(), incoming.getPort() );
-                    sock.send( dpReply );
-                }
+            StringJoiner replyJoiner = new StringJoiner( Constants.MSG_SEPARATOR );
+            replyJoiner.add( Constants.REGOK ).add( String.valueOf( registration.getCode() ) );
+            for( Neighbour peer : registration.getPeers() )
+            {
+                replyJoiner.add( peer.getIp() ).add( String.valueOf( peer.getPort() ) );
             }
+            reply( channel, replyJoiner.toString(), sender );
         }
-        catch( IOException e )
+        else if( request.isCommand( UNREG ) )
         {
-            System.err.println( "IOException " + e );
+            // Answered even if the node wasn't registered, so that a node whose first answer got lost isn't left waiting
+            String ip = request.fieldAsString( 2 );
+            int port = request.intField( 3 );
+            if( !registry.unregister( ip, port ) )
+            {
+                logger.debug( "Node at {}:{} wasn't registered", ip, port );
+            }
+            reply( channel, Constants.UNREGOK, sender );
         }
-        finally
+        else if( request.isCommand( RENEW ) )
         {
-            if( sock != null )
+            // Unknown nodes are told so, they register again
+            boolean renewed = registry.renew( request.fieldAsString( 2 ), request.intField( 3 ) );
+            reply( channel, Constants.RENEWOK + Constants.MSG_SEPARATOR + ( renewed ? Constants.E0000 : Constants.E9999 ), sender );
+        }
+        else if( request.isCommand( ECHO ) )
+        {
+            for( Neighbour node : registry.getNodes() )
             {
-                sock.close();
+                logger.info( String.join( Constants.MSG_SEPARATOR, node.getIp(), String.valueOf( node.getPort() ), node.getUsername() ) );
             }
+            reply( channel, Constants.ECHOOK, sender );
         }
     }
 
-    public void stop()
+    private void expireLeases()
     {
-        if( started )
+        try
         {
-            started = false;
-            executorService.shutdownNow();
+            for( Neighbour node : registry.expire( System.currentTimeMillis() ) )
+            {
+                logger.info( "Lease of {}:{} ({}) lapsed", node.getIp(), node.getPort(), node.getUsername() );
+            }
+            registry.flush();
+            admissionControl.evictIdle( System.nanoTime() );
+        }
+        catch( Exception e )
+        {
+            logger.error( "Error occurred when expiring leases", e );
+        }
+    }
+
+    private void compact()
+    {
+        try
+        {
+            registry.compact();
+        }
+        catch( Exception e )
+        {
+            logger.error( "Error occurred when compacting the registry log", e );
         }
     }
 
     /**
-     * simple function to echo data to terminal Otherwise add to a logger
+     * Tells a node to register again later. Sent by a receive loop, which mustn't stop over a single failed reply.
      */
-    private void echo( String msg )
+    private void retryLater( DatagramChannel channel, long retryAfterMs, InetSocketAddress recipient )
+    {
+        try
+        {
+            reply( channel, String.join( Constants.MSG_SEPARATOR, Constants.REGOK, String.valueOf( Constants.E9995 ), String.valueOf( retryAfterMs ) ),
+                   recipient );
+        }
+        catch( IOException e )
+        {
+            logger.warn( "Error occurred when telling {} to register again later", recipient, e );
+        }
+    }
+
+    private void reply( DatagramChannel channel, String reply, InetSocketAddress recipient ) throws IOException
     {
-        System.out.println( msg );
+        channel.send( ByteBuffer.wrap( RequestBuilder.buildRequest( reply ).getBytes( StandardCharsets.UTF_8 ) ), recipient );
+    }
+
+    public void stop()
+    {
+        if( started )
+        {
+            started = false;
+            closeChannels();
+            loopExecutorService.shutdownNow();
+            executorService.shutdownNow();
+            expiryExecutorService.shutdownNow();
+            registry.flush();
+        }
     }
 
     public int getPort()
@@ -229,8 +461,20 @@ public class BootstrapServer
         return started;
     }
 
+    /**
+     * Usage: {@code BootstrapServer [peers] [dataDir]}, where peers is the number of peers handed to a registering node
+     * and dataDir is where the registry is persisted.
+     */
     public static void main( String[] args )
     {
+        if( args.length > 0 )
+        {
+            Constants.BOOTSTRAP_PEERS = Integer.parseInt( args[0] );
+        }
+        if( args.length > 1 )
+        {
+            Constants.BOOTSTRAP_DATA_DIR = args[1];
+        }
         BootstrapServer server = new BootstrapServer( Constants.BOOTSTRAP_PORT );
         server.start();
 
@@ -248,5 +492,3 @@ public class BootstrapServer
         server.stop();
     }
 }
-
-
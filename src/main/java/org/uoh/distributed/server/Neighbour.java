@@ -8,6 +8,10 @@ class Neighbour
     private String ip;
     private int port;
     private String username;
+    /** Index of the node in the {@link Registry} */
+    private int slot;
+    /** Expiry of the registration, unless renewed */
+    private TimingWheel.Timer<Neighbour> lease;
 
     public Neighbour( String ip, int port, String username) {
         this.ip = ip;
@@ -26,4 +30,20 @@ class Neighbour
     public int getPort() {
         return this.port;
     }
+
+    int getSlot() {
+        return this.slot;
+    }
+
+    void setSlot( int slot ) {
+        this.slot = slot;
+    }
+
+    TimingWheel.Timer<Neighbour> getLease() {
+        return this.lease;
+    }
+
+    void setLease( TimingWheel.Timer<Neighbour> lease ) {
+        this.lease = lease;
+    }
 }
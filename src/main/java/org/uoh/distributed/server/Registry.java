@@ -0,0 +1,311 @@
+package org.uoh.distributed.server;
+
+import org.uoh.distributed.utils.Constants;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Nodes registered with the bootstrap server, keyed by their IP and port. The nodes are also kept densely packed in an
+ * array, a node being removed is replaced by the last one, so that registering, unregistering and picking k random
+ * peers take O(1), O(1) and O(k) however many nodes are registered.
+ * <p>
+ * A registration is a lease, which lapses unless the node renews it in time, so that nodes that crashed without
+ * unregistering are no longer handed out. Leases are kept in a {@link TimingWheel}, renewing one is O(1) and dropping
+ * the lapsed ones costs O(lapsed).
+ * <p>
+ * Optionally every change is written ahead to a {@link RegistryLog}, which the registry is recovered from on start.
+ * Renewals aren't logged, recovered nodes get a fresh lease instead.
+ * <p>
+ * Shared by the workers of the server, every operation is atomic.
+ */
+class Registry
+{
+    private final int peerCount;
+    private final long leaseMs;
+    /** Guarded by this */
+    private final TimingWheel<Neighbour> leases;
+    /** Guarded by this */
+    private final Map<String, Neighbour> byAddress = new HashMap<>();
+    /** Node at {@link Neighbour#getSlot()} of each node, the first {@link #size} are used. Guarded by this */
+    private Neighbour[] nodes = new Neighbour[16];
+    private int size;
+    /** Null unless persisted. Guarded by this */
+    private RegistryLog log;
+
+    /**
+     * @param peerCount number of peers handed to a registering node
+     * @param leaseMs   how long a registration lasts unless renewed
+     * @param tickMs    granularity of the lease expiry
+     */
+    Registry( int peerCount, long leaseMs, long tickMs )
+    {
+        if( peerCount <= 0 )
+        {
+            throw new IllegalArgumentException( "At least one peer has to be handed out" );
+        }
+        this.peerCount = peerCount;
+        this.leaseMs = leaseMs;
+        this.leases = new TimingWheel<>( tickMs, System.currentTimeMillis() );
+    }
+
+    /**
+     * Registers a node, unless its IP and port are taken by another username. A node registering again, e.g. because our
+     * answer got lost, has its lease renewed and is handed a fresh sample of peers.
+     *
+     * @return the code answered to the node along with the peers it may join through
+     */
+    synchronized Registration register( Neighbour node )
+    {
+        Neighbour registered = byAddress.get( keyOf( node.getIp(), node.getPort() ) );
+        if( registered != null )
+        {
+            // Same username with same address, or only the same address
+            if( registered.getUsername().equals( node.getUsername() ) )
+            {
+                leases.reschedule( registered.getLease(), System.currentTimeMillis() + leaseMs );
+                List<Neighbour> peers = sample( Math.min( peerCount + 1, size ) );
+                peers.remove( registered );
+                if( peers.size() > peerCount )
+                {
+                    peers.remove( peerCount );
+                }
+                return new Registration( peers.size(), peers );
+            }
+            return new Registration( Constants.E9997, Collections.emptyList() );
+        }
+
+        if( log != null )
+        {
+            log.appendRegister( node.getIp(), node.getPort(), node.getUsername() );
+        }
+        List<Neighbour> peers = sample( Math.min( peerCount, size ) );
+        add( node );
+        return new Registration( peers.size(), peers );
+    }
+
+    /**
+     * Recovers the nodes persisted in the log, each with a fresh lease, and logs every change from now on.
+     *
+     * @return number of nodes recovered
+     */
+    synchronized int recoverFrom( RegistryLog log ) throws IOException
+    {
+        log.replay( new RegistryLog.Records()
+        {
+            @Override
+            public void register( String ip, int port, String username )
+            {
+                Neighbour registered = byAddress.get( keyOf( ip, port ) );
+                if( registered == null || !registered.getUsername().equals( username ) )
+                {
+                    unregister( ip, port );
+                    add( new Neighbour( ip, port, username ) );
+                }
+            }
+
+            @Override
+            public void unregister( String ip, int port )
+            {
+                Neighbour node = byAddress.get( keyOf( ip, port ) );
+                if( node != null )
+                {
+                    leases.cancel( node.getLease() );
+                    remove( node );
+                }
+            }
+        } );
+        this.log = log;
+        return size;
+    }
+
+    /**
+     * Writes the registered nodes to a snapshot and starts a new log, if anything was logged since the last time.
+     * Blocks the registry while the snapshot is written.
+     */
+    synchronized void compact() throws IOException
+    {
+        if( log != null && log.position() > 0 )
+        {
+            log.compact( this::writeTo );
+        }
+    }
+
+    /**
+     * Writes what was logged out to disk.
+     */
+    synchronized void flush()
+    {
+        if( log != null )
+        {
+            log.force();
+        }
+    }
+
+    /**
+     * Extends the lease of a node.
+     *
+     * @return false if the node isn't registered, e.g. because its lease lapsed
+     */
+    synchronized boolean renew( String ip, int port )
+    {
+        Neighbour node = byAddress.get( keyOf( ip, port ) );
+        if( node == null )
+        {
+            return false;
+        }
+        leases.reschedule( node.getLease(), System.currentTimeMillis() + leaseMs );
+        return true;
+    }
+
+    /**
+     * Drops the nodes whose lease lapsed.
+     *
+     * @return the nodes dropped
+     */
+    synchronized List<Neighbour> expire( long now )
+    {
+        List<Neighbour> expired = leases.advance( now );
+        expired.forEach( this::remove );
+        if( log != null )
+        {
+            // Logged after the fact, a lapsed node that didn't make it into the log lapses again after a restart
+            expired.forEach( node -> log.appendUnregister( node.getIp(), node.getPort() ) );
+        }
+        return expired;
+    }
+
+    /**
+     * @return true if a node was registered at the address
+     */
+    synchronized boolean unregister( String ip, int port )
+    {
+        Neighbour node = byAddress.get( keyOf( ip, port ) );
+        if( node == null )
+        {
+            return false;
+        }
+        if( log != null )
+        {
+            log.appendUnregister( ip, port );
+        }
+        leases.cancel( node.getLease() );
+        remove( node );
+        return true;
+    }
+
+    private void add( Neighbour node )
+    {
+        if( size == nodes.length )
+        {
+            nodes = Arrays.copyOf( nodes, size * 2 );
+        }
+        node.setSlot( size );
+        nodes[size++] = node;
+        byAddress.put( keyOf( node.getIp(), node.getPort() ), node );
+        node.setLease( leases.schedule( node, System.currentTimeMillis() + leaseMs ) );
+    }
+
+    private void remove( Neighbour node )
+    {
+        byAddress.remove( keyOf( node.getIp(), node.getPort() ) );
+        Neighbour last = nodes[--size];
+        nodes[size] = null;
+        if( last != node )
+        {
+            last.setSlot( node.getSlot() );
+            nodes[node.getSlot()] = last;
+        }
+    }
+
+    /**
+     * Writes every registered node. Called with the lock held, also by the log once it is full.
+     */
+    void writeTo( RegistryLog.Records records )
+    {
+        for( int i = 0; i < size; i++ )
+        {
+            records.register( nodes[i].getIp(), nodes[i].getPort(), nodes[i].getUsername() );
+        }
+    }
+
+    synchronized List<Neighbour> getNodes()
+    {
+        return new ArrayList<>( Arrays.asList( nodes ).subList( 0, size ) );
+    }
+
+    synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * Picks k distinct nodes with Floyd's algorithm, which draws exactly k random numbers.
+     */
+    private List<Neighbour> sample( int k )
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] picked = new int[k];
+        for( int i = 0, j = size - k; i < k; i++, j++ )
+        {
+            int candidate = random.nextInt( j + 1 );
+            picked[i] = contains( picked, i, candidate ) ? j : candidate;
+        }
+
+        List<Neighbour> peers = new ArrayList<>( k );
+        for( int slot : picked )
+        {
+            peers.add( nodes[slot] );
+        }
+        return peers;
+    }
+
+    private static boolean contains( int[] values, int length, int value )
+    {
+        for( int i = 0; i < length; i++ )
+        {
+            if( values[i] == value )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String keyOf( String ip, int port )
+    {
+        return ip + ':' + port;
+    }
+
+    /**
+     * Outcome of a registration: the number of peers handed out along with the peers, {@link Constants#E0000} if there
+     * are none yet, or an error code.
+     */
+    static class Registration
+    {
+        private final int code;
+        private final List<Neighbour> peers;
+
+        Registration( int code, List<Neighbour> peers )
+        {
+            this.code = code;
+            this.peers = peers;
+        }
+
+        int getCode()
+        {
+            return code;
+        }
+
+        List<Neighbour> getPeers()
+        {
+            return peers;
+        }
+    }
+}
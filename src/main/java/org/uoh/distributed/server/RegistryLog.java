@@ -0,0 +1,345 @@
+package org.uoh.distributed.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.uoh.distributed.utils.Constants;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Makes the registry of the bootstrap server survive a restart. Every registration and unregistration is appended to a
+ * log in a memory mapped file, which costs a memory copy, and survives a crash of the process as soon as it is written.
+ * The page cache is written out by {@link #force()}, so a crash of the machine loses what came after the last call.
+ * <p>
+ * Once the log fills up, or on {@link #compact(Consumer)}, the live registrations are written to a snapshot and the
+ * log starts over. On start the snapshot and then the log are replayed. Replaying is idempotent, so a crash between
+ * writing the snapshot and starting the new log loses nothing.
+ * <p>
+ * Records are framed as {@code length, crc32, payload}, a torn record at the end of the log fails its checksum and
+ * ends the replay. Not thread safe, the {@link Registry} guards it.
+ */
+public class RegistryLog implements Closeable
+{
+    private static final Logger logger = LoggerFactory.getLogger( RegistryLog.class );
+
+    private static final String LOG_FILE = "registry.log";
+    private static final String SNAPSHOT_FILE = "registry.snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x52454753;
+    private static final byte REGISTER = 1;
+    private static final byte UNREGISTER = 2;
+    private static final int HEADER_SIZE = 8;
+
+    /** Receives the records of the log, or writes them */
+    public interface Records
+    {
+        void register( String ip, int port, String username );
+
+        void unregister( String ip, int port );
+    }
+
+    private final Path directory;
+    private final int size;
+    private final Consumer<Records> liveRegistrations;
+    private final CRC32 crc = new CRC32();
+    /** Largest record: type, address, port and username */
+    private final ByteBuffer payload = ByteBuffer.allocate( 1 + 2 * ( 2 + Constants.BOOTSTRAP_MAX_FIELD_LENGTH ) + 4 );
+    private MappedByteBuffer log;
+    private boolean dirty;
+
+    /**
+     * @param directory         where the log and the snapshot are kept, created if missing
+     * @param size              size of the log file
+     * @param liveRegistrations writes the live registrations, called when the log is full
+     */
+    public RegistryLog( Path directory, int size, Consumer<Records> liveRegistrations ) throws IOException
+    {
+        this.directory = Files.createDirectories( directory );
+        this.size = size;
+        this.liveRegistrations = liveRegistrations;
+    }
+
+    /**
+     * Replays the snapshot, then the log, and gets ready to append after the last complete record.
+     *
+     * @return number of records replayed
+     */
+    public int replay( Records records ) throws IOException
+    {
+        int count = 0;
+        Path snapshot = directory.resolve( SNAPSHOT_FILE );
+        if( Files.exists( snapshot ) )
+        {
+            ByteBuffer buffer = map( snapshot, FileChannel.MapMode.READ_ONLY, Files.size( snapshot ) );
+            if( buffer.remaining() < 4 || buffer.getInt() != SNAPSHOT_MAGIC )
+            {
+                throw new IOException( "Not a registry snapshot: " + snapshot );
+            }
+            count += replay( buffer, records );
+        }
+
+        Path logFile = directory.resolve( LOG_FILE );
+        if( Files.exists( logFile ) && Files.size( logFile ) == size )
+        {
+            log = map( logFile, FileChannel.MapMode.READ_WRITE, size );
+            count += replay( log, records );
+        }
+        else
+        {
+            log = newLog();
+        }
+        return count;
+    }
+
+    public void appendRegister( String ip, int port, String username )
+    {
+        encodeRegister( ip, port, username );
+        append();
+    }
+
+    public void appendUnregister( String ip, int port )
+    {
+        payload.clear();
+        payload.put( UNREGISTER );
+        putString( ip );
+        payload.putInt( port );
+        append();
+    }
+
+    /**
+     * Writes the live registrations to a new snapshot and starts a new log.
+     */
+    public void compact( Consumer<Records> registrations ) throws IOException
+    {
+        long start = System.nanoTime();
+        Path temporary = directory.resolve( SNAPSHOT_FILE + ".tmp" );
+        int[] count = { 0 };
+        try (FileChannel channel = FileChannel.open( temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                     StandardOpenOption.WRITE ))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate( 1 << 20 );
+            buffer.putInt( SNAPSHOT_MAGIC );
+            registrations.accept( new Records()
+            {
+                @Override
+                public void register( String ip, int port, String username )
+                {
+                    writeRegister( ip, port, username, buffer, channel );
+                    count[0]++;
+                }
+
+                @Override
+                public void unregister( String ip, int port )
+                {
+                    throw new UnsupportedOperationException( "A snapshot only holds registrations" );
+                }
+            } );
+            buffer.flip();
+            write( channel, buffer );
+            channel.force( true );
+        }
+        catch( UncheckedIOException e )
+        {
+            throw e.getCause();
+        }
+        Files.move( temporary, directory.resolve( SNAPSHOT_FILE ), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+
+        log = newLog();
+        dirty = false;
+        logger.info( "Compacted the registry log into a snapshot of {} registrations in {} ms", count[0],
+                     ( System.nanoTime() - start ) / 1_000_000 );
+    }
+
+    /**
+     * Writes the log out to disk, if anything was appended since the last call.
+     */
+    public void force()
+    {
+        if( dirty )
+        {
+            log.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * @return bytes of the log in use
+     */
+    public int position()
+    {
+        return log.position();
+    }
+
+    @Override
+    public void close()
+    {
+        force();
+    }
+
+    private void append()
+    {
+        payload.flip();
+        if( log.remaining() < HEADER_SIZE + payload.remaining() )
+        {
+            ByteBuffer record = ByteBuffer.allocate( payload.remaining() ).put( payload );
+            try
+            {
+                compact( liveRegistrations );
+            }
+            catch( IOException e )
+            {
+                throw new UncheckedIOException( "Unable to compact the registry log", e );
+            }
+            record.flip();
+            payload.clear();
+            payload.put( record ).flip();
+        }
+
+        crc.reset();
+        crc.update( payload.duplicate() );
+        // The length goes last, so that a record is never seen before it is complete
+        int start = log.position();
+        log.position( start + 4 );
+        log.putInt( (int) crc.getValue() );
+        log.put( payload );
+        log.putInt( start, log.position() - start - HEADER_SIZE );
+        dirty = true;
+    }
+
+    private void writeRegister( String ip, int port, String username, ByteBuffer buffer, FileChannel channel )
+    {
+        encodeRegister( ip, port, username );
+        payload.flip();
+
+        if( buffer.remaining() < HEADER_SIZE + payload.remaining() )
+        {
+            buffer.flip();
+            try
+            {
+                write( channel, buffer );
+            }
+            catch( IOException e )
+            {
+                throw new UncheckedIOException( e );
+            }
+            buffer.clear();
+        }
+        crc.reset();
+        crc.update( payload.duplicate() );
+        buffer.putInt( payload.remaining() );
+        buffer.putInt( (int) crc.getValue() );
+        buffer.put( payload );
+    }
+
+    private int replay( ByteBuffer buffer, Records records )
+    {
+        int count = 0;
+        while( buffer.remaining() >= HEADER_SIZE )
+        {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if( length <= 0 || length > buffer.remaining() )
+            {
+                buffer.position( start );
+                break;
+            }
+
+            int limit = buffer.limit();
+            buffer.limit( start + HEADER_SIZE + length );
+            crc.reset();
+            crc.update( buffer );
+            buffer.limit( limit );
+            if( (int) crc.getValue() != checksum )
+            {
+                logger.warn( "Dropping torn record at offset {} of the registry log", start );
+                buffer.position( start );
+                break;
+            }
+
+            buffer.position( start + HEADER_SIZE );
+            byte type = buffer.get();
+            String ip = getString( buffer );
+            int port = buffer.getInt();
+            if( type == REGISTER )
+            {
+                records.register( ip, port, getString( buffer ) );
+            }
+            else
+            {
+                records.unregister( ip, port );
+            }
+            buffer.position( start + HEADER_SIZE + length );
+            count++;
+        }
+        return count;
+    }
+
+    private MappedByteBuffer newLog() throws IOException
+    {
+        // A new file is all zeroes, i.e. ends at its first record
+        Path temporary = directory.resolve( LOG_FILE + ".tmp" );
+        Files.deleteIfExists( temporary );
+        MappedByteBuffer mapped = map( temporary, FileChannel.MapMode.READ_WRITE, size );
+        Files.move( temporary, directory.resolve( LOG_FILE ), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        return mapped;
+    }
+
+    private static MappedByteBuffer map( Path file, FileChannel.MapMode mode, long size ) throws IOException
+    {
+        StandardOpenOption[] options = mode == FileChannel.MapMode.READ_ONLY
+                ? new StandardOpenOption[]{ StandardOpenOption.READ }
+                : new StandardOpenOption[]{ StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE };
+        // The mapping stays valid once the channel is closed
+        try (FileChannel channel = FileChannel.open( file, options ))
+        {
+            return channel.map( mode, 0, size );
+        }
+    }
+
+    private static void write( FileChannel channel, ByteBuffer buffer ) throws IOException
+    {
+        while( buffer.hasRemaining() )
+        {
+            channel.write( buffer );
+        }
+    }
+
+    private void encodeRegister( String ip, int port, String username )
+    {
+        payload.clear();
+        payload.put( REGISTER );
+        putString( ip );
+        payload.putInt( port );
+        putString( username );
+    }
+
+    private void putString( String value )
+    {
+        byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+        if( bytes.length > Constants.BOOTSTRAP_MAX_FIELD_LENGTH )
+        {
+            throw new IllegalArgumentException( "Field of " + bytes.length + " bytes is too long for the registry log" );
+        }
+        payload.putShort( (short) bytes.length );
+        payload.put( bytes );
+    }
+
+    private static String getString( ByteBuffer buffer )
+    {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+}
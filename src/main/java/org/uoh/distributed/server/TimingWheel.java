@@ -0,0 +1,189 @@
+package org.uoh.distributed.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel, after Varghese and Lauck. Level 0 has a slot per tick for the next 64 ticks, level 1 a
+ * slot per 64 ticks for the next 64^2 ticks and so on, timers far away sit in a coarse slot and move down a level each
+ * time the level below wraps around. Scheduling and cancelling are O(1), advancing the wheel costs O(1) per tick plus
+ * O(1) per timer expiring or moving down, however many timers are scheduled.
+ * <p>
+ * Not thread safe, the {@link Registry} guards it.
+ *
+ * @param <T> item the timers are for
+ */
+class TimingWheel<T>
+{
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    /** Timers further away wait in the last level and are placed again once they get there */
+    private static final long MAX_DELAY_TICKS = ( 1L << ( BITS * LEVELS ) ) - 1;
+
+    private final long tickMs;
+    /** Heads of the circular lists of timers of each slot */
+    private final Timer<T>[][] slots;
+    /** Last tick whose timers were expired */
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    TimingWheel( long tickMs, long nowMs )
+    {
+        this.tickMs = tickMs;
+        this.currentTick = nowMs / tickMs;
+        this.slots = new Timer[LEVELS][SLOTS];
+        for( Timer<T>[] level : slots )
+        {
+            for( int i = 0; i < SLOTS; i++ )
+            {
+                level[i] = new Timer<>( null );
+            }
+        }
+    }
+
+    /**
+     * @return the timer, to be rescheduled or cancelled
+     */
+    Timer<T> schedule( T item, long deadlineMs )
+    {
+        Timer<T> timer = new Timer<>( item );
+        timer.deadlineTick = tickOf( deadlineMs );
+        place( timer, currentTick + 1 );
+        size++;
+        return timer;
+    }
+
+    /**
+     * Schedules the timer again, even if it expired already.
+     */
+    void reschedule( Timer<T> timer, long deadlineMs )
+    {
+        if( timer.next != null )
+        {
+            unlink( timer );
+        }
+        else
+        {
+            size++;
+        }
+        timer.deadlineTick = tickOf( deadlineMs );
+        place( timer, currentTick + 1 );
+    }
+
+    void cancel( Timer<T> timer )
+    {
+        if( timer.next != null )
+        {
+            unlink( timer );
+            size--;
+        }
+    }
+
+    /**
+     * Moves the wheel up to the given time.
+     *
+     * @return the items whose timers expired, which are no longer scheduled
+     */
+    List<T> advance( long nowMs )
+    {
+        List<T> expired = new ArrayList<>();
+        long target = nowMs / tickMs;
+        while( currentTick < target )
+        {
+            currentTick++;
+            // Once a level wraps around, the next slot of the level above comes down
+            for( int level = 1; level < LEVELS && ( currentTick & ( ( 1L << ( BITS * level ) ) - 1 ) ) == 0; level++ )
+            {
+                cascade( slots[level][index( currentTick, level )] );
+            }
+
+            Timer<T> head = slots[0][index( currentTick, 0 )];
+            while( head.next != head )
+            {
+                Timer<T> timer = head.next;
+                unlink( timer );
+                size--;
+                expired.add( timer.item );
+            }
+        }
+        return expired;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    private void cascade( Timer<T> head )
+    {
+        while( head.next != head )
+        {
+            Timer<T> timer = head.next;
+            unlink( timer );
+            // The slot of the current tick is yet to be expired
+            place( timer, currentTick );
+        }
+    }
+
+    /**
+     * @param earliest first tick whose slot is yet to be expired, a timer that is due already goes there
+     */
+    private void place( Timer<T> timer, long earliest )
+    {
+        long deadline = Math.max( timer.deadlineTick, earliest );
+        long delay = Math.min( deadline - currentTick, MAX_DELAY_TICKS );
+        int level = 0;
+        while( delay >= ( 1L << ( BITS * ( level + 1 ) ) ) )
+        {
+            level++;
+        }
+
+        long slotTick = delay == MAX_DELAY_TICKS ? currentTick + MAX_DELAY_TICKS : deadline;
+        Timer<T> head = slots[level][index( slotTick, level )];
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+    }
+
+    private void unlink( Timer<T> timer )
+    {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    private long tickOf( long ms )
+    {
+        // Rounded up, so that a timer never expires early
+        return ( ms + tickMs - 1 ) / tickMs;
+    }
+
+    private static int index( long tick, int level )
+    {
+        return (int) ( tick >>> ( BITS * level ) ) & MASK;
+    }
+
+    static class Timer<T>
+    {
+        private final T item;
+        private long deadlineTick;
+        private Timer<T> prev;
+        private Timer<T> next;
+
+        private Timer( T item )
+        {
+            this.item = item;
+            // A head points to itself while its slot is empty
+            if( item == null )
+            {
+                prev = this;
+                next = this;
+            }
+        }
+    }
+}
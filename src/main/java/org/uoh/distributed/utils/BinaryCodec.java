@@ -0,0 +1,393 @@
+package org.uoh.distributed.utils;
+
+import org.uoh.distributed.peer.MemberUpdate;
+import org.uoh.distributed.peer.RoutingDelta;
+import org.uoh.distributed.peer.RoutingTableEntry;
+import org.uoh.distributed.peer.VersionedValue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Schema driven binary codec for the payloads exchanged between peers. Replaces Java serialization for routing table
+ * entries and entry table payloads.
+ * <p>
+ * Layout: {@code [version:1][kind:1][count:varint]} followed by {@code count} records.
+ * <ul>
+ * <li>Routing entry: {@code [nodeId:varint][family:1][address:4|16 or length:varint + host][port:2]}</li>
+ * <li>Entry table record: {@code [keyLength:varint][key][valueLength:varint][value]}</li>
+ * <li>Versioned entry: an entry table record followed by {@code [version:varint]}</li>
+ * <li>Member update: {@code [status:1][incarnation:varint]} followed by a routing entry</li>
+ * </ul>
+ * Routing deltas have their own header instead: {@code [version:1][kind:1][epoch:varint][from:varint][to:varint]
+ * [full:1]} followed by the added and the removed routing entries, each prefixed with their count.
+ */
+public class BinaryCodec
+{
+    public static final byte VERSION = 1;
+
+    private static final byte KIND_ROUTING_ENTRIES = 1;
+    private static final byte KIND_ENTRY_TABLE = 2;
+    private static final byte KIND_ROUTING_DELTA = 3;
+    private static final byte KIND_MEMBER_UPDATES = 4;
+    private static final byte KIND_VERSIONED_ENTRIES = 5;
+
+    private static final MemberUpdate.Status[] STATUSES = MemberUpdate.Status.values();
+
+    private static final byte FAMILY_UNRESOLVED = 0;
+    private static final byte FAMILY_IPV4 = 4;
+    private static final byte FAMILY_IPV6 = 6;
+
+    private BinaryCodec()
+    {
+    }
+
+    public static byte[] encodeRoutingEntries( Collection<RoutingTableEntry> entries )
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 2 + 5 + entries.size() * 28 );
+        buffer.put( VERSION ).put( KIND_ROUTING_ENTRIES );
+        buffer = writeRoutingEntries( buffer, entries );
+        return toArray( buffer );
+    }
+
+    public static Set<RoutingTableEntry> decodeRoutingEntries( byte[] data )
+    {
+        return decodeRoutingEntries( ByteBuffer.wrap( data ) );
+    }
+
+    public static Set<RoutingTableEntry> decodeRoutingEntries( ByteBuffer buffer )
+    {
+        checkHeader( buffer, KIND_ROUTING_ENTRIES );
+        return new HashSet<>( readRoutingEntries( buffer ) );
+    }
+
+    public static byte[] encodeRoutingDelta( RoutingDelta delta )
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 2 + 3 * 10 + 1 + 10 + ( delta.getAdded().size() + delta.getRemoved().size() ) * 28 );
+        buffer.put( VERSION ).put( KIND_ROUTING_DELTA );
+        writeVarLong( buffer, delta.getEpoch() );
+        writeVarLong( buffer, delta.getFromVersion() );
+        writeVarLong( buffer, delta.getToVersion() );
+        buffer.put( (byte) ( delta.isFull() ? 1 : 0 ) );
+        buffer = writeRoutingEntries( buffer, delta.getAdded() );
+        buffer = writeRoutingEntries( buffer, delta.getRemoved() );
+        return toArray( buffer );
+    }
+
+    public static RoutingDelta decodeRoutingDelta( byte[] data )
+    {
+        return decodeRoutingDelta( ByteBuffer.wrap( data ) );
+    }
+
+    public static RoutingDelta decodeRoutingDelta( ByteBuffer buffer )
+    {
+        checkHeader( buffer, KIND_ROUTING_DELTA );
+        long epoch = readVarLong( buffer );
+        long from = readVarLong( buffer );
+        long to = readVarLong( buffer );
+        boolean full = buffer.get() != 0;
+        List<RoutingTableEntry> added = readRoutingEntries( buffer );
+        List<RoutingTableEntry> removed = readRoutingEntries( buffer );
+        return new RoutingDelta( epoch, from, to, full, added, removed );
+    }
+
+    public static byte[] encodeMemberUpdates( Collection<MemberUpdate> updates )
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 2 + 5 + updates.size() * 32 );
+        buffer.put( VERSION ).put( KIND_MEMBER_UPDATES );
+        writeVarLong( buffer, updates.size() );
+        for( MemberUpdate update : updates )
+        {
+            buffer = ensureCapacity( buffer, 1 + 5 );
+            buffer.put( (byte) update.getStatus().ordinal() );
+            writeVarLong( buffer, update.getIncarnation() );
+            buffer = writeRoutingEntry( buffer, update.getEntry() );
+        }
+        return toArray( buffer );
+    }
+
+    public static List<MemberUpdate> decodeMemberUpdates( byte[] data )
+    {
+        return decodeMemberUpdates( ByteBuffer.wrap( data ) );
+    }
+
+    public static List<MemberUpdate> decodeMemberUpdates( ByteBuffer buffer )
+    {
+        checkHeader( buffer, KIND_MEMBER_UPDATES );
+        int count = readLength( buffer );
+        List<MemberUpdate> updates = new ArrayList<>( count );
+        for( int i = 0; i < count; i++ )
+        {
+            int status = buffer.get();
+            if( status < 0 || status >= STATUSES.length )
+            {
+                throw new IllegalArgumentException( "Unknown member status: " + status );
+            }
+            int incarnation = (int) readVarLong( buffer );
+            updates.add( new MemberUpdate( readRoutingEntry( buffer ), STATUSES[status], incarnation ) );
+        }
+        return updates;
+    }
+
+    public static byte[] encodeEntryTable( Map<String, String> table )
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 2 + 5 + table.size() * 32 );
+        buffer.put( VERSION ).put( KIND_ENTRY_TABLE );
+        writeVarLong( buffer, table.size() );
+        for( Map.Entry<String, String> entry : table.entrySet() )
+        {
+            buffer = writeString( buffer, entry.getKey() );
+            buffer = writeString( buffer, entry.getValue() );
+        }
+        return toArray( buffer );
+    }
+
+    public static Map<String, String> decodeEntryTable( byte[] data )
+    {
+        return decodeEntryTable( ByteBuffer.wrap( data ) );
+    }
+
+    public static Map<String, String> decodeEntryTable( ByteBuffer buffer )
+    {
+        checkHeader( buffer, KIND_ENTRY_TABLE );
+        int count = readLength( buffer );
+        Map<String, String> table = new HashMap<>( count * 2 );
+        for( int i = 0; i < count; i++ )
+        {
+            table.put( readString( buffer ), readString( buffer ) );
+        }
+        return table;
+    }
+
+    public static byte[] encodeVersionedEntries( Map<String, VersionedValue> entries )
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 2 + 5 + entries.size() * 40 );
+        buffer.put( VERSION ).put( KIND_VERSIONED_ENTRIES );
+        writeVarLong( buffer, entries.size() );
+        for( Map.Entry<String, VersionedValue> entry : entries.entrySet() )
+        {
+            buffer = writeString( buffer, entry.getKey() );
+            buffer = writeString( buffer, entry.getValue().getValue() );
+            buffer = ensureCapacity( buffer, 10 );
+            writeVarLong( buffer, entry.getValue().getVersion() );
+        }
+        return toArray( buffer );
+    }
+
+    public static Map<String, VersionedValue> decodeVersionedEntries( byte[] data )
+    {
+        return decodeVersionedEntries( ByteBuffer.wrap( data ) );
+    }
+
+    public static Map<String, VersionedValue> decodeVersionedEntries( ByteBuffer buffer )
+    {
+        checkHeader( buffer, KIND_VERSIONED_ENTRIES );
+        int count = readLength( buffer );
+        Map<String, VersionedValue> entries = new HashMap<>( count * 2 );
+        for( int i = 0; i < count; i++ )
+        {
+            String key = readString( buffer );
+            String value = readString( buffer );
+            entries.put( key, new VersionedValue( value, readVarLong( buffer ) ) );
+        }
+        return entries;
+    }
+
+    /**
+     * Writes an unsigned LEB128 variable length integer.
+     */
+    public static void writeVarLong( ByteBuffer buffer, long value )
+    {
+        while( ( value & ~0x7FL ) != 0 )
+        {
+            buffer.put( (byte) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+        buffer.put( (byte) value );
+    }
+
+    public static long readVarLong( ByteBuffer buffer )
+    {
+        long value = 0;
+        for( int shift = 0; shift < 64; shift += 7 )
+        {
+            byte b = buffer.get();
+            value |= (long) ( b & 0x7F ) << shift;
+            if( ( b & 0x80 ) == 0 )
+            {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException( "Malformed varint" );
+    }
+
+    public static void writeAddress( ByteBuffer buffer, InetSocketAddress address )
+    {
+        InetAddress inetAddress = address.getAddress();
+        if( inetAddress == null )
+        {
+            byte[] host = address.getHostString().getBytes( StandardCharsets.UTF_8 );
+            buffer.put( FAMILY_UNRESOLVED );
+            writeVarLong( buffer, host.length );
+            buffer.put( host );
+        }
+        else
+        {
+            byte[] raw = inetAddress.getAddress();
+            buffer.put( raw.length == 4 ? FAMILY_IPV4 : FAMILY_IPV6 );
+            buffer.put( raw );
+        }
+        buffer.putShort( (short) address.getPort() );
+    }
+
+    public static InetSocketAddress readAddress( ByteBuffer buffer )
+    {
+        byte family = buffer.get();
+        byte[] raw;
+        switch( family )
+        {
+            case FAMILY_IPV4:
+                raw = new byte[4];
+                break;
+            case FAMILY_IPV6:
+                raw = new byte[16];
+                break;
+            case FAMILY_UNRESOLVED:
+                byte[] host = new byte[readLength( buffer )];
+                buffer.get( host );
+                int port = Short.toUnsignedInt( buffer.getShort() );
+                return new InetSocketAddress( new String( host, StandardCharsets.UTF_8 ), port );
+            default:
+                throw new IllegalArgumentException( "Unknown address family: " + family );
+        }
+        buffer.get( raw );
+        int port = Short.toUnsignedInt( buffer.getShort() );
+        try
+        {
+            return new InetSocketAddress( InetAddress.getByAddress( raw ), port );
+        }
+        catch( UnknownHostException e )
+        {
+            throw new IllegalArgumentException( "Invalid address: " + Arrays.toString( raw ), e );
+        }
+    }
+
+    private static ByteBuffer writeRoutingEntries( ByteBuffer buffer, Collection<RoutingTableEntry> entries )
+    {
+        buffer = ensureCapacity( buffer, 10 );
+        writeVarLong( buffer, entries.size() );
+        for( RoutingTableEntry entry : entries )
+        {
+            buffer = writeRoutingEntry( buffer, entry );
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer writeRoutingEntry( ByteBuffer buffer, RoutingTableEntry entry )
+    {
+        buffer = ensureCapacity( buffer, 10 + 1 + 5 + 255 + 2 );
+        writeVarLong( buffer, entry.getNodeId() );
+        writeAddress( buffer, entry.getAddress() );
+        return buffer;
+    }
+
+    private static List<RoutingTableEntry> readRoutingEntries( ByteBuffer buffer )
+    {
+        int count = readLength( buffer );
+        List<RoutingTableEntry> entries = new ArrayList<>( count );
+        for( int i = 0; i < count; i++ )
+        {
+            entries.add( readRoutingEntry( buffer ) );
+        }
+        return entries;
+    }
+
+    private static RoutingTableEntry readRoutingEntry( ByteBuffer buffer )
+    {
+        long nodeId = readVarLong( buffer );
+        return new RoutingTableEntry( readAddress( buffer ), nodeId );
+    }
+
+    private static ByteBuffer writeString( ByteBuffer buffer, String value )
+    {
+        byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+        buffer = ensureCapacity( buffer, 5 + bytes.length );
+        writeVarLong( buffer, bytes.length );
+        buffer.put( bytes );
+        return buffer;
+    }
+
+    private static String readString( ByteBuffer buffer )
+    {
+        int length = readLength( buffer );
+        if( buffer.hasArray() )
+        {
+            String value = new String( buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8 );
+            buffer.position( buffer.position() + length );
+            return value;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Reads a count or a length in bytes. Every element takes at least a byte, so neither can exceed the bytes left,
+     * which keeps a malformed payload from making us allocate more than it is long.
+     */
+    private static int readLength( ByteBuffer buffer )
+    {
+        long length = readVarLong( buffer );
+        if( length < 0 || length > buffer.remaining() )
+        {
+            throw new IllegalArgumentException( "Length " + length + " exceeds the " + buffer.remaining() + " bytes left" );
+        }
+        return (int) length;
+    }
+
+    private static void checkHeader( ByteBuffer buffer, byte kind )
+    {
+        try
+        {
+            byte version = buffer.get();
+            byte actual = buffer.get();
+            if( version != VERSION || actual != kind )
+            {
+                throw new IllegalArgumentException( String.format( "Unexpected payload header (version: %d, kind: %d)", version, actual ) );
+            }
+        }
+        catch( BufferUnderflowException e )
+        {
+            throw new IllegalArgumentException( "Payload too short", e );
+        }
+    }
+
+    private static ByteBuffer ensureCapacity( ByteBuffer buffer, int required )
+    {
+        if( buffer.remaining() >= required )
+        {
+            return buffer;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate( Math.max( buffer.capacity() * 2, buffer.position() + required ) );
+        buffer.flip();
+        return bigger.put( buffer );
+    }
+
+    private static byte[] toArray( ByteBuffer buffer )
+    {
+        return Arrays.copyOf( buffer.array(), buffer.position() );
+    }
+}
@@ -0,0 +1,69 @@
+package org.uoh.distributed.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed size pool of direct {@link ByteBuffer}s. All buffers are allocated up front so that receiving datagrams does
+ * not create garbage. When the pool runs dry {@link #acquire()} returns nothing rather than waiting, so that a receive
+ * loop never stalls its selector on workers and can drop the datagram instead.
+ */
+public class BufferPool
+{
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final int bufferSize;
+
+    public BufferPool( int poolSize, int bufferSize )
+    {
+        if( poolSize <= 0 || bufferSize <= 0 )
+        {
+            throw new IllegalArgumentException( "Pool size and buffer size should be positive" );
+        }
+
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>( poolSize );
+        for( int i = 0; i < poolSize; i++ )
+        {
+            buffers.add( ByteBuffer.allocateDirect( bufferSize ) );
+        }
+    }
+
+    /**
+     * Takes a cleared buffer from the pool without waiting.
+     *
+     * @return buffer ready to be written into, or null if every buffer is in use
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = buffers.poll();
+        if( buffer != null )
+        {
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire()} back to the pool.
+     *
+     * @param buffer buffer to be recycled
+     */
+    public void release( ByteBuffer buffer )
+    {
+        if( buffer == null || buffer.capacity() != bufferSize || !buffers.offer( buffer ) )
+        {
+            throw new IllegalArgumentException( "Buffer does not belong to this pool" );
+        }
+    }
+
+    public int available()
+    {
+        return buffers.size();
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+}
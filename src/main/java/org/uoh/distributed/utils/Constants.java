@@ -7,6 +7,8 @@ public class Constants
   /** Need to set the bootstrap IP and Port here */
   public static int BOOTSTRAP_PORT = 55555;
   public static String BOOTSTRAP_IP = "127.0.0.1";
+  /** Run request handling, retries and periodic tasks on virtual threads (JDK 21+). -Ddistsys.virtualThreads=true */
+  public static boolean VIRTUAL_THREADS = Boolean.getBoolean( "distsys.virtualThreads" );
 
   /** Message format to be used when sending a request to the bootstrap server. ${length} ${msg} */
   public static final String MSG_SEPARATOR = "~";
@@ -17,10 +19,16 @@ public class Constants
   public static final String UNREGOK = "UNREGOK";
   public static final String ECHO = "ECHO";
   public static final String ECHOOK = "ECHOOK";
+  public static final String RENEW = "RENEW";
+  public static final String RENEWOK = "RENEWOK";
 
   /** Types of syncs */
   public static final String TYPE_ROUTING = "RTBL";
   public static final String TYPE_ENTRIES = "ETBL";
+  /** Routing table changes since a version, see {@link #GET_ROUTING_TABLE_DELTA_FORMAT} */
+  public static final String TYPE_ROUTING_DELTA = "RTBLD";
+  /** Membership updates, see {@link #GOSSIP} */
+  public static final String TYPE_MEMBERS = "MEMB";
 
   /** Message commands to be used in client server communications **/
   public static final String GET_ROUTING_TABLE = "GETRTBL";
@@ -36,13 +44,107 @@ public class Constants
   public static final String REG_MSG_FORMAT = (REG+"?%s?%d?%s").replace( "?", MSG_SEPARATOR );
   /** UNREG ${ip} ${port} ${username} */
   public static final String UNREG_MSG_FORMAT = (UNREG+"?%s?%d?%s").replace( "?", MSG_SEPARATOR );
+  /** RENEW ${ip} ${port} ${username} - Extends the lease of a registration, answered with RENEWOK ${code} */
+  public static final String RENEW_MSG_FORMAT = (RENEW+"?%s?%d?%s").replace( "?", MSG_SEPARATOR );
   /** NEWNODE ${ip} ${port} ${nodeId} */
   public static final String NEWNODE_MSG_FORMAT = (NEW_NODE +"?%s?%d?%d").replace( "?", MSG_SEPARATOR );
-  /** PING - Pings and gets the entries of the corresponding node */
+  /** PING ${nodeId} ${serialized_object} - Hands entries over to a node now holding a replica of them */
   public static final String PING_MSG_FORMAT = (PING+"?%d?%s").replace( "?", MSG_SEPARATOR );
   /** SYNC ${type} ${serialized_object} - For syncing table entries and routing tables */
   public static final String SYNC_MSG_FORMAT = (SYNC+"?%s?%s").replace( "?", MSG_SEPARATOR );
 
+  /**
+   * Trailing flag advertising/marking the {@link BinaryCodec} payload encoding. A requester appends it to say it can
+   * decode binary payloads, a responder appends it when the payload is binary. Nodes without support ignore it.
+   */
+  public static final String BINARY_FLAG = "B";
+  /** GETRTBL B */
+  public static final String GET_ROUTING_TABLE_BINARY = GET_ROUTING_TABLE + MSG_SEPARATOR + BINARY_FLAG;
+  /** NEWNODE ${ip} ${port} ${nodeId} B */
+  public static final String NEWNODE_BINARY_MSG_FORMAT = NEWNODE_MSG_FORMAT + MSG_SEPARATOR + BINARY_FLAG;
+  /** PING ${nodeId} ${binary_payload} B */
+  public static final String PING_BINARY_MSG_FORMAT = PING_MSG_FORMAT + MSG_SEPARATOR + BINARY_FLAG;
+  /** SYNC ${type} ${binary_payload} B */
+  public static final String SYNC_BINARY_MSG_FORMAT = SYNC_MSG_FORMAT + MSG_SEPARATOR + BINARY_FLAG;
+
+  /**
+   * Like {@link #BINARY_FLAG}, but a requester appending it also accepts payloads compressed by
+   * {@link PayloadCompressor}, and a responder appends it when the payload is compressed.
+   */
+  public static final String COMPRESSED_FLAG = "Z";
+  /** GETRTBL Z */
+  public static final String GET_ROUTING_TABLE_COMPRESSED = GET_ROUTING_TABLE + MSG_SEPARATOR + COMPRESSED_FLAG;
+  /**
+   * GETRTBL Z ${epoch} ${version} - Asks for the routing table changes since the given version, answered with a
+   * {@link #TYPE_ROUTING_DELTA} sync. Nodes unaware of deltas ignore the trailing fields and send the whole table
+   */
+  public static final String GET_ROUTING_TABLE_DELTA_FORMAT = GET_ROUTING_TABLE_COMPRESSED + "?%d?%d".replace( "?", MSG_SEPARATOR );
+  /** NEWNODE ${ip} ${port} ${nodeId} Z */
+  public static final String NEWNODE_COMPRESSED_MSG_FORMAT = NEWNODE_MSG_FORMAT + MSG_SEPARATOR + COMPRESSED_FLAG;
+  /** SYNC ${type} ${compressed_payload} Z */
+  public static final String SYNC_COMPRESSED_MSG_FORMAT = SYNC_MSG_FORMAT + MSG_SEPARATOR + COMPRESSED_FLAG;
+
+  /** BATCH ${count} ${length1} ${msg1}${length2} ${msg2}... - Several messages to the same peer in one datagram */
+  public static final String BATCH = "BATCH";
+  public static final String BATCH_MSG_FORMAT = (BATCH+"?%d?%s").replace( "?", MSG_SEPARATOR );
+
+  /** CHUNK ${sequence} ${total} ${data} - Fragment of a response too big for a single datagram */
+  public static final String CHUNK = "CHUNK";
+  public static final String CHUNK_MSG_FORMAT = (CHUNK+"?%d?%d?%s").replace( "?", MSG_SEPARATOR );
+  /** CHUNKREQ ${sequence},${sequence}... - Asks for the fragments of a chunked response which haven't arrived */
+  public static final String CHUNK_REQUEST = "CHUNKREQ";
+  public static final String CHUNK_REQUEST_MSG_FORMAT = (CHUNK_REQUEST+"?%s").replace( "?", MSG_SEPARATOR );
+
+  /** FINDSUCC ${key} - Asks a node to resolve the successor of a key on the ring, or to point to a node closer to it */
+  public static final String FIND_SUCCESSOR = "FINDSUCC";
+  public static final String FIND_SUCCESSOR_MSG_FORMAT = (FIND_SUCCESSOR+"?%d").replace( "?", MSG_SEPARATOR );
+  /** SUCC ${FOUND|NEXT} ${nodeId} ${ip} ${port} - FOUND carries the successor of the key, NEXT the node to ask next */
+  public static final String SUCCESSOR = "SUCC";
+  public static final String SUCCESSOR_FOUND = "FOUND";
+  public static final String SUCCESSOR_NEXT = "NEXT";
+  public static final String SUCCESSOR_MSG_FORMAT = (SUCCESSOR+"?%s?%d?%s?%d").replace( "?", MSG_SEPARATOR );
+  /** GETPRED - Asks a node for its predecessor on the ring */
+  public static final String GET_PREDECESSOR = "GETPRED";
+  /** PRED ${nodeId} ${ip} ${port} - Node ID is 0 when the predecessor isn't known */
+  public static final String PREDECESSOR = "PRED";
+  public static final String PREDECESSOR_MSG_FORMAT = (PREDECESSOR+"?%d?%s?%d").replace( "?", MSG_SEPARATOR );
+  /** NOTIFY ${nodeId} ${ip} ${port} - Tells a node that the sender might be its predecessor */
+  public static final String NOTIFY = "NOTIFY";
+  public static final String NOTIFY_MSG_FORMAT = (NOTIFY+"?%d?%s?%d").replace( "?", MSG_SEPARATOR );
+  /**
+   * GOSSIP ${binary_payload} B - Membership updates, which doubles as the failure detector's probe. Answered with a
+   * {@link #TYPE_MEMBERS} SYNC carrying the updates of the receiver
+   */
+  public static final String GOSSIP = "GOSSIP";
+  public static final String GOSSIP_MSG_FORMAT = (GOSSIP+"?%s?"+BINARY_FLAG).replace( "?", MSG_SEPARATOR );
+  /**
+   * PROBEREQ ${ip} ${port} ${binary_payload} B - Asks a node to probe another one on our behalf. Answered like
+   * {@link #GOSSIP} if the target answered, not at all otherwise
+   */
+  public static final String PROBE_REQUEST = "PROBEREQ";
+  public static final String PROBE_REQUEST_MSG_FORMAT = (PROBE_REQUEST+"?%s?%d?%s?"+BINARY_FLAG).replace( "?", MSG_SEPARATOR );
+
+  /** PUT ${key} ${value} ${version} - Stores a replica of an entry. Keys and values are Base64 encoded. Answered with OK */
+  public static final String PUT = "PUT";
+  public static final String PUT_MSG_FORMAT = (PUT+"?%s?%s?%d").replace( "?", MSG_SEPARATOR );
+  /** GET ${key} - Reads the replica of an entry. Answered with {@link #VALUE} or {@link #NOT_FOUND} */
+  public static final String GET = "GET";
+  public static final String GET_MSG_FORMAT = (GET+"?%s").replace( "?", MSG_SEPARATOR );
+  /** VALUE ${value} ${version} */
+  public static final String VALUE = "VALUE";
+  public static final String VALUE_MSG_FORMAT = (VALUE+"?%s?%d").replace( "?", MSG_SEPARATOR );
+  public static final String NOT_FOUND = "NOTFOUND";
+  /**
+   * HANDOVER ${ip} ${port} ${offset} Z - Asks for a page of the entries the sender, a joining node, is now responsible
+   * for. Answered with a {@link #TYPE_ENTRIES} SYNC followed by the offset of the next page, -1 after the last one. An
+   * offset of -1 tells that everything arrived, so that the receiver can let go of the entries
+   */
+  public static final String HANDOVER = "HANDOVER";
+  public static final String HANDOVER_MSG_FORMAT = (HANDOVER+"?%s?%d?%d?"+COMPRESSED_FLAG).replace( "?", MSG_SEPARATOR );
+
+  /** Prefix of the trailing request ID field used to correlate responses with requests. ${msg} #${requestId} */
+  public static final String REQUEST_ID_PREFIX = "#";
+
 
   /** Status Codes **/
   public static final int E0000 = 0;    // No nodes in the network
@@ -53,21 +155,140 @@ public class Constants
   public static final int E9998 = 9998; // Already registered
   public static final int E9997 = 9997; // Port not available
   public static final int E9996 = 9996; // Network Full
+  public static final int E9995 = 9995; // Busy, followed by the milliseconds to wait before trying again
 
 
 
 
 
+  /** A node that hasn't joined the network by then gives up */
+  public static final int JOIN_TIMEOUT_MS = 60000;
+  /** Delay before the second join attempt, doubled for each attempt after it */
+  public static final int JOIN_RETRY_DELAY_MS = 500;
   /** How many times a given UDP request be retried */
   public static final int BOOTSTRAP_RETRIES_COUNT = 5;
+  /** How long a node waits for the bootstrap server to answer a registration or unregistration */
+  public static final int BOOTSTRAP_REQUEST_TIMEOUT_MS = 2000;
+  /** Delay before retrying a bootstrap request that wasn't answered, doubled for each attempt after it */
+  public static final int BOOTSTRAP_RETRY_DELAY_MS = 250;
   public static final int RETRIES_COUNT = 5;
   public static final int RETRY_TIMEOUT_MS = 5000;
+  /** Retransmission timeout used for a peer until its round trip time has been measured */
+  public static final long INITIAL_RTO_MS = 1000;
+  public static final long MIN_RTO_MS = 100;
+  public static final long MAX_RTO_MS = 10000;
+  /** Retransmission timeouts are randomized by +/- this fraction */
+  public static final double RTO_JITTER = 0.1;
   public static final int GRACE_PERIOD_MS = 5000;
-  public static final int HEARTBEAT_FREQUENCY_MS = 20000;
-  public static final int HEARTBEAT_INITIAL_DELAY = 30000;
+  /** How often a node probes one of its peers. Every node is probed about once per period whatever the cluster size */
+  public static int PROBE_PERIOD_MS = 1000;
+  /** How long a probe waits for an answer before asking other nodes to probe the target */
+  public static int PROBE_TIMEOUT_MS = 300;
+  /** Number of nodes asked to probe a target that didn't answer */
+  public static int PROBE_HELPERS = 3;
+  /** How long a suspected node has to refute the suspicion before it is removed */
+  public static int SUSPICION_TIMEOUT_MS = 5000;
+  /** How long a removed node is remembered, so that stale gossip doesn't bring it back */
+  public static final int DEAD_MEMBER_TTL_MS = 60000;
+
 
+  /** Virtual nodes per node, i.e. tokens on the ring. Has to be the same on every node of the network */
+  public static int VIRTUAL_NODES = 256;
+  /** How often a node checks its successor and fixes one of its fingers */
+  public static final int STABILIZE_PERIOD_MS = 2000;
+  public static final int STABILIZE_INITIAL_DELAY_MS = 1000;
+  /** How often a node pulls the routing table changes of a random peer */
+  public static final int ROUTING_SYNC_PERIOD_MS = 10000;
+  /** Number of routing table changes kept for delta syncs. Peers further behind get the whole table */
+  public static final int ROUTING_CHANGE_LOG_SIZE = 1024;
+  /** Number of random peers a joining node announces itself to */
+  public static final int GOSSIP_FANOUT = 3;
+  /** Most membership updates piggybacked on a gossip message */
+  public static final int GOSSIP_MAX_UPDATES = 16;
+  /** An update is sent this many times log2 of the cluster size before being dropped */
+  public static final int GOSSIP_RETRANSMIT_MULTIPLIER = 3;
+  /** Number of nodes holding a replica of an entry, i.e. the owner and the nodes following it on the ring */
+  public static int REPLICATION_FACTOR = 3;
+  /** Replicas that have to acknowledge a write before it succeeds. Reads see the last write only if R + W > N */
+  public static int WRITE_QUORUM = 2;
+  /**
+   * Replicas that have to answer a read. The newest of their values is returned. Unless R + W > N a read may miss the
+   * last write, e.g. by being answered from a local replica that didn't get it
+   */
+  public static int READ_QUORUM = 2;
+  /** How often a node checks whether the replicas of its entries moved, and copies them over if they did */
+  public static final int REPAIR_PERIOD_MS = 5000;
+  /** Most entries in a page of a handover. Pages copied to replicas are split further if they don't fit in a datagram */
+  public static final int HANDOVER_PAGE_SIZE = 512;
+  /** How long the entries being handed over to a joining node are kept around for it to ask for them */
+  public static final int HANDOVER_TTL_MS = 60000;
+  /** Lookups going through more nodes than this are abandoned, the ring is being rebuilt */
+  public static final int MAX_LOOKUP_HOPS = 32;
+  /** Most ranges of the ring whose node ID successor is remembered from past finger lookups */
+  public static final int LOOKUP_CACHE_SIZE = 1024;
+  /** How long the owner of a range is remembered, unless the membership changes before */
+  public static final long LOOKUP_CACHE_TTL_MS = 30000;
 
-  public static final int ADDRESS_SPACE_SIZE = 180;
+  /** Largest UDP payload that can be received */
+  public static final int MAX_DATAGRAM_SIZE = 65536;
+  /** Largest request sent in a single datagram: the UDP payload limit, less room for the request ID */
+  public static final int MAX_REQUEST_SIZE = 65507 - 64;
+  /** Number of receive buffers shared by the receive loops of a node. Bounds the requests being handled at once */
+  public static final int RECEIVE_BUFFER_POOL_SIZE = 64;
+  /** Default number of receive loops of the node server. More than one needs SO_REUSEPORT */
+  public static final int NODE_SERVER_LOOP_THREADS = 1;
+  /** How long outgoing messages to a peer wait for more messages to share their datagram */
+  public static final long COALESCE_WINDOW_MICROS = 300;
+  /** Coalesced datagrams are flushed before growing past this size, roughly one Ethernet MTU */
+  public static final int COALESCE_MAX_BATCH_SIZE = 1400;
+  /** Responses longer than this are sent as CHUNK fragments of this size */
+  public static final int CHUNK_SIZE = 8192;
+  /** How long a chunked response is kept around for fragments to be asked again */
+  public static final long CHUNK_TRANSFER_TTL_MS = 30000;
+  /** Maximum number of fragments asked for in a single CHUNKREQ */
+  public static final int MAX_CHUNKS_PER_REQUEST = 128;
+  /** Receive buffer size of the peer sockets, large enough to absorb a burst of fragments */
+  public static final int SOCKET_RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+  /** Binary payloads smaller than this are never compressed, it wouldn't pay off */
+  public static final int COMPRESSION_THRESHOLD = 256;
+  /** Upper bound of a decompressed payload, guards against corrupt length headers */
+  public static final int MAX_DECOMPRESSED_SIZE = 16 * 1024 * 1024;
+  /** How long a receive loop blocks on its selector before re-checking whether it should stop */
+  public static final int SELECT_TIMEOUT_MS = 500;
+  /** Receive loops of the bootstrap server. More than one needs SO_REUSEPORT */
+  public static final int BOOTSTRAP_LOOP_THREADS = 2;
+  /** Threads handling the requests received by the bootstrap server */
+  public static final int BOOTSTRAP_WORKER_THREADS = Math.max( 2, Runtime.getRuntime().availableProcessors() );
+  /** Number of receive buffers of the bootstrap server. Bounds the requests waiting for a worker */
+  public static final int BOOTSTRAP_BUFFER_POOL_SIZE = 1024;
+  /** Number of random peers handed to a registering node */
+  public static int BOOTSTRAP_PEERS = 2;
+  /** How long a registration lasts unless the node renews it. Nodes renew it three times per lease */
+  public static int BOOTSTRAP_LEASE_MS = 30000;
+  /** Granularity of the lease expiry */
+  public static final int BOOTSTRAP_LEASE_TICK_MS = 1000;
+  /** How long a node waits for the bootstrap server to answer a renewal */
+  public static final int BOOTSTRAP_RENEW_TIMEOUT_MS = 2000;
+  /** Longest message the bootstrap server handles, longer datagrams are truncated */
+  public static final int BOOTSTRAP_MAX_MESSAGE_SIZE = 1024;
+  /** Longest IP address or username, in bytes, the bootstrap server registers */
+  public static final int BOOTSTRAP_MAX_FIELD_LENGTH = 255;
+  /** Registrations per second the bootstrap server admits from each source address, 0 or less admits everything */
+  public static int BOOTSTRAP_SOURCE_RATE = 100;
+  /** Registrations a source address may send at once */
+  public static final int BOOTSTRAP_SOURCE_BURST = 200;
+  /** Upper bound of the time the bootstrap server tells a node to wait before registering again */
+  public static final int BOOTSTRAP_MAX_RETRY_AFTER_MS = 30000;
+  /** Requests waiting for a worker of the bootstrap server, registrations beyond that are told to come back later */
+  public static final int BOOTSTRAP_QUEUE_SIZE = 512;
+  /** How long a node is told to wait when the request queue of the bootstrap server is full */
+  public static final int BOOTSTRAP_BUSY_RETRY_AFTER_MS = 1000;
+  /** Where the bootstrap server persists its registry, null keeps it in memory only */
+  public static String BOOTSTRAP_DATA_DIR = null;
+  /** Size of the memory mapped registry log, about a million registrations. Compacted into a snapshot once full */
+  public static final int BOOTSTRAP_LOG_SIZE = 64 * 1024 * 1024;
+  /** How often the registry log is compacted into a snapshot, if anything was logged since */
+  public static final int BOOTSTRAP_COMPACTION_PERIOD_MS = 10 * 60 * 1000;
 
 
 }
@@ -0,0 +1,108 @@
+package org.uoh.distributed.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Combinators for fanning requests out to several peers without blocking any thread while waiting.
+ */
+public class Futures
+{
+    private Futures()
+    {
+    }
+
+    /**
+     * Waits for all the futures.
+     *
+     * @param futures futures to be combined
+     * @param <T>     type of the results
+     * @return future completed with the results in the order of the given futures, or exceptionally as soon as one of
+     * them fails
+     */
+    public static <T> CompletableFuture<List<T>> allOf( Collection<CompletableFuture<T>> futures )
+    {
+        return firstK( futures, futures.size() ).thenApply( ignored -> {
+            List<T> results = new ArrayList<>( futures.size() );
+            futures.forEach( f -> results.add( f.join() ) );
+            return results;
+        } );
+    }
+
+    /**
+     * Waits for the first {@code k} futures to succeed.
+     *
+     * @param futures futures to be combined
+     * @param k       number of successful results required
+     * @param <T>     type of the results
+     * @return future completed with the first {@code k} results in the order they arrived, or exceptionally as soon
+     * as too many futures failed for {@code k} to be reached
+     */
+    public static <T> CompletableFuture<List<T>> firstK( Collection<CompletableFuture<T>> futures, int k )
+    {
+        if( k < 0 || k > futures.size() )
+        {
+            throw new IllegalArgumentException( "Cannot wait for " + k + " out of " + futures.size() + " futures" );
+        }
+
+        CompletableFuture<List<T>> result = new CompletableFuture<>();
+        if( k == 0 )
+        {
+            result.complete( Collections.emptyList() );
+            return result;
+        }
+
+        List<T> results = Collections.synchronizedList( new ArrayList<>( k ) );
+        AtomicInteger failuresLeft = new AtomicInteger( futures.size() - k );
+        for( CompletableFuture<T> future : futures )
+        {
+            future.whenComplete( ( value, error ) -> {
+                if( error != null )
+                {
+                    if( failuresLeft.getAndDecrement() == 0 )
+                    {
+                        result.completeExceptionally( error );
+                    }
+                    return;
+                }
+
+                synchronized( results )
+                {
+                    if( results.size() < k )
+                    {
+                        results.add( value );
+                        if( results.size() == k )
+                        {
+                            result.complete( new ArrayList<>( results ) );
+                        }
+                    }
+                }
+            } );
+        }
+        return result;
+    }
+
+    /**
+     * Waits for a majority of the futures to succeed.
+     *
+     * @see #firstK(Collection, int)
+     */
+    public static <T> CompletableFuture<List<T>> quorum( Collection<CompletableFuture<T>> futures )
+    {
+        return firstK( futures, futures.isEmpty() ? 0 : futures.size() / 2 + 1 );
+    }
+
+    /**
+     * Waits for {@code quorum} of the futures to succeed.
+     *
+     * @see #firstK(Collection, int)
+     */
+    public static <T> CompletableFuture<List<T>> quorum( Collection<CompletableFuture<T>> futures, int quorum )
+    {
+        return firstK( futures, quorum );
+    }
+}
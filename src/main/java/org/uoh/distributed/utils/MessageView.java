@@ -0,0 +1,246 @@
+package org.uoh.distributed.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable, zero-copy view over a {@code %04d~CMD~...} message held in a {@link ByteBuffer}. Wrapping a message only
+ * records where its fields start, so that dispatching on the command and reading numeric fields doesn't create any
+ * intermediate Strings. A trailing {@link Constants#REQUEST_ID_PREFIX} field is recognised and hidden from the fields.
+ * <p>
+ * A view is not thread safe and is only valid until the underlying buffer is reused.
+ */
+public class MessageView
+{
+    /** Fields beyond this count are merged into the last one, like {@code String.split} with a limit */
+    private static final int MAX_FIELDS = 16;
+    private static final byte SEPARATOR = (byte) Constants.MSG_SEPARATOR.charAt( 0 );
+    private static final byte REQUEST_ID_PREFIX = (byte) Constants.REQUEST_ID_PREFIX.charAt( 0 );
+    private static final byte[] BATCH = bytes( Constants.BATCH );
+
+    private ByteBuffer buffer;
+    private final int[] starts = new int[MAX_FIELDS + 1];
+    private int fieldCount;
+    private int end;
+    private long requestId;
+
+    /**
+     * @param value ASCII string
+     * @return bytes to be compared against with {@link #isCommand(byte[])} or {@link #fieldEquals(int, byte[])}
+     */
+    public static byte[] bytes( String value )
+    {
+        return value.getBytes( StandardCharsets.US_ASCII );
+    }
+
+    /**
+     * Wraps the message between the position and the limit of the buffer. Neither is modified.
+     */
+    public MessageView wrap( ByteBuffer buffer )
+    {
+        return wrap( buffer, buffer.position(), buffer.limit() );
+    }
+
+    /**
+     * Wraps the message between the given absolute indexes of the buffer.
+     */
+    public MessageView wrap( ByteBuffer buffer, int start, int end )
+    {
+        this.buffer = buffer;
+        this.end = end;
+        this.requestId = -1;
+
+        fieldCount = 1;
+        starts[0] = start;
+        for( int i = start; i < end && fieldCount < MAX_FIELDS; i++ )
+        {
+            if( buffer.get( i ) == SEPARATOR )
+            {
+                starts[fieldCount++] = i + 1;
+            }
+        }
+        starts[fieldCount] = end + 1;
+
+        if( fieldCount > 2 && !isCommand( BATCH ) )
+        {
+            findRequestId();
+        }
+        return this;
+    }
+
+    /**
+     * The request ID is the last field of the message, which may lie beyond {@link #MAX_FIELDS}.
+     */
+    private void findRequestId()
+    {
+        int i = end - 1;
+        while( i > starts[0] && isDigit( buffer.get( i ) ) )
+        {
+            i--;
+        }
+        if( i == end - 1 || buffer.get( i ) != REQUEST_ID_PREFIX || buffer.get( i - 1 ) != SEPARATOR )
+        {
+            return;
+        }
+
+        requestId = parseLong( i + 1, end );
+        end = i - 1;
+        while( fieldCount > 1 && starts[fieldCount - 1] > end )
+        {
+            fieldCount--;
+        }
+        starts[fieldCount] = end + 1;
+    }
+
+    public int fieldCount()
+    {
+        return fieldCount;
+    }
+
+    /**
+     * @return request ID carried by the message or -1
+     */
+    public long requestId()
+    {
+        return requestId;
+    }
+
+    public boolean isCommand( byte[] command )
+    {
+        return fieldEquals( 1, command );
+    }
+
+    public boolean fieldEquals( int index, byte[] value )
+    {
+        if( index >= fieldCount || fieldLength( index ) != value.length )
+        {
+            return false;
+        }
+
+        int start = starts[index];
+        for( int i = 0; i < value.length; i++ )
+        {
+            if( buffer.get( start + i ) != value[i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int fieldStart( int index )
+    {
+        checkIndex( index );
+        return starts[index];
+    }
+
+    public int fieldEnd( int index )
+    {
+        checkIndex( index );
+        return starts[index + 1] - 1;
+    }
+
+    public int fieldLength( int index )
+    {
+        return fieldEnd( index ) - fieldStart( index );
+    }
+
+    public int intField( int index )
+    {
+        return (int) longField( index );
+    }
+
+    public long longField( int index )
+    {
+        return parseLong( fieldStart( index ), fieldEnd( index ) );
+    }
+
+    /**
+     * @return read-only buffer over the field, e.g. to be Base64 decoded without going through a String
+     */
+    public ByteBuffer fieldBuffer( int index )
+    {
+        ByteBuffer field = buffer.asReadOnlyBuffer();
+        field.limit( fieldEnd( index ) ).position( fieldStart( index ) );
+        return field;
+    }
+
+    /**
+     * Decodes a field into a String. Allocates, so it is meant for fields that really are text.
+     */
+    public String fieldAsString( int index )
+    {
+        return decode( fieldStart( index ), fieldEnd( index ) );
+    }
+
+    /**
+     * Wraps {@code into} around the next message packed in a {@link Constants#BATCH} message.
+     *
+     * @param position absolute index of the length of the packed message. Starts at {@code fieldStart(3)}
+     * @param into     view to be wrapped around the packed message
+     * @return position of the message after the wrapped one
+     */
+    public int nextPacked( int position, MessageView into )
+    {
+        int separator = position;
+        while( buffer.get( separator ) != SEPARATOR )
+        {
+            separator++;
+        }
+
+        int length = (int) parseLong( position, separator );
+        int start = separator + 1;
+        into.wrap( buffer, start, start + length );
+        return start + length;
+    }
+
+    private long parseLong( int from, int to )
+    {
+        if( from >= to )
+        {
+            throw new NumberFormatException( "Empty numeric field" );
+        }
+
+        boolean negative = buffer.get( from ) == '-';
+        long value = 0;
+        for( int i = negative ? from + 1 : from; i < to; i++ )
+        {
+            byte b = buffer.get( i );
+            if( !isDigit( b ) )
+            {
+                throw new NumberFormatException( "Not a number: " + decode( from, to ) );
+            }
+            value = value * 10 + ( b - '0' );
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean isDigit( byte b )
+    {
+        return b >= '0' && b <= '9';
+    }
+
+    private void checkIndex( int index )
+    {
+        if( index < 0 || index >= fieldCount )
+        {
+            throw new IndexOutOfBoundsException( "Field " + index + " of a message with " + fieldCount + " fields" );
+        }
+    }
+
+    private String decode( int from, int to )
+    {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit( to ).position( from );
+        return StandardCharsets.UTF_8.decode( slice ).toString();
+    }
+
+    /**
+     * @return the whole message, request ID excluded
+     */
+    @Override
+    public String toString()
+    {
+        return buffer == null ? "" : decode( starts[0], end );
+    }
+}
@@ -0,0 +1,214 @@
+package org.uoh.distributed.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate based compression of {@link BinaryCodec} payloads, primed with a preset dictionary holding the byte patterns
+ * our payloads are made of (codec headers, IPv4 prefixes of the usual networks, consecutive ports) so that even a
+ * payload of a few entries has something to refer back to.
+ * <p>
+ * Layout: {@code [0][dictionary:1][rawLength:varint][deflate stream]}. Payloads smaller than
+ * {@link Constants#COMPRESSION_THRESHOLD} or which don't shrink aren't compressed at all, see {@link #compress(byte[])}.
+ * <p>
+ * Both ends have to use the same dictionary, hence it is versioned. The first dictionary was sent without a version as
+ * {@code [rawLength:varint][deflate stream]}, which never starts with a zero byte since the raw length is above the
+ * threshold, so such payloads are still decompressed with it.
+ */
+public class PayloadCompressor
+{
+    /** Primed for the one byte node IDs of the 1..180 ID space, only used to decompress payloads of older nodes */
+    private static final byte[] LEGACY_DICTIONARY = buildLegacyDictionary();
+    private static final byte DICTIONARY_VERSION = 2;
+    private static final byte[] DICTIONARY = buildDictionary();
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial( () -> new Deflater( Deflater.BEST_SPEED, true ) );
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial( () -> new Inflater( true ) );
+
+    private PayloadCompressor()
+    {
+    }
+
+    /**
+     * @param payload payload to be compressed
+     * @return compressed payload, or null when the payload is below the threshold or didn't get smaller, in which case
+     * it should be sent as it is
+     */
+    public static byte[] compress( byte[] payload )
+    {
+        if( payload.length < Constants.COMPRESSION_THRESHOLD )
+        {
+            return null;
+        }
+
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary( DICTIONARY );
+        deflater.setInput( payload );
+        deflater.finish();
+
+        ByteBuffer out = ByteBuffer.allocate( payload.length );
+        out.put( (byte) 0 ).put( DICTIONARY_VERSION );
+        BinaryCodec.writeVarLong( out, payload.length );
+        // Output is capped at the raw size, anything that doesn't fit is not worth sending compressed
+        while( !deflater.finished() && out.hasRemaining() )
+        {
+            int written = deflater.deflate( out.array(), out.position(), out.remaining() );
+            out.position( out.position() + written );
+        }
+
+        if( !deflater.finished() || out.position() >= payload.length )
+        {
+            return null;
+        }
+        byte[] compressed = new byte[out.position()];
+        System.arraycopy( out.array(), 0, compressed, 0, compressed.length );
+        return compressed;
+    }
+
+    public static byte[] decompress( byte[] compressed )
+    {
+        return decompress( ByteBuffer.wrap( compressed ) );
+    }
+
+    /**
+     * @param compressed payload produced by {@link #compress(byte[])}, from its position to its limit
+     * @return the original payload
+     */
+    public static byte[] decompress( ByteBuffer compressed )
+    {
+        byte[] dictionary = LEGACY_DICTIONARY;
+        if( compressed.hasRemaining() && compressed.get( compressed.position() ) == 0 )
+        {
+            compressed.get();
+            byte version = compressed.get();
+            if( version != DICTIONARY_VERSION )
+            {
+                throw new IllegalArgumentException( "Unknown compression dictionary: " + version );
+            }
+            dictionary = DICTIONARY;
+        }
+
+        int length = (int) BinaryCodec.readVarLong( compressed );
+        if( length < 0 || length > Constants.MAX_DECOMPRESSED_SIZE )
+        {
+            throw new IllegalArgumentException( "Invalid decompressed length: " + length );
+        }
+
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setDictionary( dictionary );
+        if( compressed.hasArray() )
+        {
+            inflater.setInput( compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining() );
+        }
+        else
+        {
+            byte[] input = new byte[compressed.remaining()];
+            compressed.get( input );
+            inflater.setInput( input );
+        }
+
+        byte[] payload = new byte[length];
+        try
+        {
+            int read = 0;
+            while( read < length && !inflater.finished() )
+            {
+                int n = inflater.inflate( payload, read, length - read );
+                if( n == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+                {
+                    break;
+                }
+                read += n;
+            }
+            if( read != length )
+            {
+                throw new IllegalArgumentException( "Truncated compressed payload: " + read + "/" + length + " bytes" );
+            }
+        }
+        catch( DataFormatException e )
+        {
+            throw new IllegalArgumentException( "Malformed compressed payload", e );
+        }
+        return payload;
+    }
+
+    /**
+     * Deflate favours the end of the dictionary, hence the most common patterns go last. Node IDs are 64-bit hashes,
+     * which never repeat across payloads, but the entries around them do: the last byte of the varint ID, which is 1 for
+     * half of the IDs, followed by the family, an address of one of the usual networks and a port. The IDs are drawn
+     * from a fixed seed so that every node builds the same dictionary.
+     */
+    private static byte[] buildDictionary()
+    {
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        byte[] text = "localhost127.0.0.1192.168.0.10.0.0.OKFAILEDtruefalse".getBytes( StandardCharsets.US_ASCII );
+        dictionary.write( text, 0, text.length );
+
+        SplittableRandom random = new SplittableRandom( DICTIONARY_VERSION );
+        ByteBuffer entries = ByteBuffer.allocate( 2048 );
+        // Member updates: [status][incarnation] ahead of the routing entry
+        for( int status = 0; status < 3; status++ )
+        {
+            entries.put( (byte) status ).put( (byte) 0 );
+            putRoutingEntry( entries, random.nextLong() | Long.MIN_VALUE, new int[]{ 127, 0, 0, 1 }, 44000 + status );
+        }
+
+        int[][] prefixes = { { 10, 0, 0 }, { 172, 16, 0 }, { 192, 168, 1 }, { 192, 168, 0 }, { 127, 0, 0 } };
+        for( int[] prefix : prefixes )
+        {
+            entries.put( BinaryCodec.VERSION ).put( (byte) 1 ).put( (byte) 8 );
+            for( int i = 0; i < 8; i++ )
+            {
+                // Half of the IDs are above 2^63, their varint ends with 1
+                long nodeId = i % 2 == 0 ? random.nextLong() | Long.MIN_VALUE : random.nextLong() >>> 1;
+                putRoutingEntry( entries, nodeId, new int[]{ prefix[0], prefix[1], prefix[2], 1 + i }, Constants.BOOTSTRAP_PORT + 1 + i );
+            }
+        }
+        dictionary.write( entries.array(), 0, entries.position() );
+        return dictionary.toByteArray();
+    }
+
+    /**
+     * Routing entry as written by {@link BinaryCodec}: {@code [nodeId:varint][family][address][port]}
+     */
+    private static void putRoutingEntry( ByteBuffer buffer, long nodeId, int[] address, int port )
+    {
+        BinaryCodec.writeVarLong( buffer, nodeId );
+        buffer.put( (byte) 4 );
+        for( int octet : address )
+        {
+            buffer.put( (byte) octet );
+        }
+        buffer.putShort( (short) port );
+    }
+
+    private static byte[] buildLegacyDictionary()
+    {
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        byte[] text = "localhost127.0.0.1192.168.0.10.0.0.OKFAILEDtruefalse".getBytes( StandardCharsets.US_ASCII );
+        dictionary.write( text, 0, text.length );
+
+        ByteBuffer entries = ByteBuffer.allocate( 1024 );
+        entries.put( BinaryCodec.VERSION ).put( (byte) 2 ).put( BinaryCodec.VERSION ).put( (byte) 1 );
+        int[][] prefixes = { { 10, 0, 0 }, { 172, 16, 0 }, { 192, 168, 1 }, { 192, 168, 0 }, { 127, 0, 0 } };
+        for( int[] prefix : prefixes )
+        {
+            for( int i = 0; i < 8; i++ )
+            {
+                // Routing entry of a node: [nodeId][family][address][port]
+                entries.put( (byte) ( 1 + i * 21 ) ).put( (byte) 4 );
+                entries.put( (byte) prefix[0] ).put( (byte) prefix[1] ).put( (byte) prefix[2] ).put( (byte) ( 1 + i ) );
+                entries.putShort( (short) ( Constants.BOOTSTRAP_PORT + 1 + i ) );
+            }
+        }
+        dictionary.write( entries.array(), 0, entries.position() );
+        return dictionary.toByteArray();
+    }
+}
@@ -12,6 +12,8 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
@@ -30,12 +32,166 @@ public class RequestBuilder
         return String.format( Constants.MSG_FORMAT, request.length() + 5, request );
     }
 
+    /**
+     * Tags a message with a request ID as a trailing {@link Constants#REQUEST_ID_PREFIX} field so that the response can
+     * be correlated with the request. Nodes unaware of request IDs ignore the trailing field.
+     *
+     * @param message   framed ({@link #buildRequest(String)}) or bare message
+     * @param requestId ID of the request. Negative values leave the message untouched
+     * @return tagged message
+     */
+    public static String tagRequestId( String message, long requestId )
+    {
+        if( requestId < 0 )
+        {
+            return message;
+        }
+
+        String tagged = messageBody( message ) + Constants.MSG_SEPARATOR + Constants.REQUEST_ID_PREFIX + requestId;
+        return isFramed( message ) ? buildRequest( tagged ) : tagged;
+    }
+
+    /**
+     * Reads the request ID tagged by {@link #tagRequestId(String, long)}
+     *
+     * @param message message received
+     * @return request ID or -1 if the message doesn't carry one. Batches never carry one, their messages do
+     */
+    public static long getRequestId( String message )
+    {
+        if( Constants.BATCH.equals( getCommand( message ) ) )
+        {
+            return -1;
+        }
+
+        int index = message.lastIndexOf( Constants.MSG_SEPARATOR + Constants.REQUEST_ID_PREFIX );
+        if( index < 0 )
+        {
+            return -1;
+        }
+
+        String id = message.substring( index + 2 ).trim();
+        if( id.isEmpty() || !id.chars().allMatch( Character::isDigit ) )
+        {
+            return -1;
+        }
+        return Long.parseLong( id );
+    }
+
+    /**
+     * Removes the request ID tagged by {@link #tagRequestId(String, long)} and fixes the length prefix
+     *
+     * @param message message received
+     * @return message as it was before tagging
+     */
+    public static String stripRequestId( String message )
+    {
+        if( getRequestId( message ) < 0 )
+        {
+            return message;
+        }
+
+        String body = messageBody( message );
+        body = body.substring( 0, body.lastIndexOf( Constants.MSG_SEPARATOR + Constants.REQUEST_ID_PREFIX ) );
+        return isFramed( message ) ? buildRequest( body ) : body;
+    }
+
+    /**
+     * Packs several framed messages into a single {@link Constants#BATCH_MSG_FORMAT} message. Each message is prefixed
+     * with its length in UTF-8 bytes, which is what the receiver unpacks by.
+     *
+     * @param messages messages built with {@link #buildRequest(String)}
+     * @return framed batch message
+     */
+    public static String buildBatch( List<String> messages )
+    {
+        StringBuilder builder = new StringBuilder();
+        for( String message : messages )
+        {
+            builder.append( utf8Length( message ) ).append( Constants.MSG_SEPARATOR ).append( message );
+        }
+        return buildRequest( String.format( Constants.BATCH_MSG_FORMAT, messages.size(), builder ) );
+    }
+
+    /**
+     * @return length of the string encoded in UTF-8, without encoding it
+     */
+    public static int utf8Length( String value )
+    {
+        int length = 0;
+        for( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt( i );
+            if( c < 0x80 )
+            {
+                length++;
+            }
+            else if( c < 0x800 )
+            {
+                length += 2;
+            }
+            else if( Character.isHighSurrogate( c ) && i + 1 < value.length() && Character.isLowSurrogate( value.charAt( i + 1 ) ) )
+            {
+                length += 4;
+                i++;
+            }
+            else
+            {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Splits a response into {@link Constants#CHUNK_MSG_FORMAT} fragments, each tagged with the request ID.
+     *
+     * @param response  framed response
+     * @param requestId ID of the request being answered
+     * @param chunkSize maximum number of characters of the response carried by a fragment
+     * @return framed fragments ordered by their sequence number
+     */
+    public static List<String> buildChunks( String response, long requestId, int chunkSize )
+    {
+        int total = ( response.length() + chunkSize - 1 ) / chunkSize;
+        List<String> chunks = new ArrayList<>( total );
+        for( int i = 0; i < total; i++ )
+        {
+            String data = response.substring( i * chunkSize, Math.min( response.length(), ( i + 1 ) * chunkSize ) );
+            chunks.add( tagRequestId( buildRequest( String.format( Constants.CHUNK_MSG_FORMAT, i, total, data ) ), requestId ) );
+        }
+        return chunks;
+    }
+
+    /**
+     * @param message framed or bare message
+     * @return command of the message, i.e. its first field after the length
+     */
+    public static String getCommand( String message )
+    {
+        String body = messageBody( message );
+        int index = body.indexOf( Constants.MSG_SEPARATOR );
+        return index < 0 ? body : body.substring( 0, index );
+    }
+
+    private static boolean isFramed( String message )
+    {
+        int index = message.indexOf( Constants.MSG_SEPARATOR );
+        return index >= 4 && message.substring( 0, index ).chars().allMatch( Character::isDigit );
+    }
+
+    private static String messageBody( String message )
+    {
+        return isFramed( message ) ? message.substring( message.indexOf( Constants.MSG_SEPARATOR ) + 1 ) : message;
+    }
+
     public static String sendRequest( DatagramSocket datagramSocket, String request,
                                       InetAddress address, int port ) throws IOException
     {
 
         // Create a datagram packet to send to the Boostrap server
-        DatagramPacket datagramPacket = new DatagramPacket( request.getBytes(), request.length(), address, port );
+        byte[] data = request.getBytes( StandardCharsets.UTF_8 );
+        DatagramPacket datagramPacket = new DatagramPacket( data, data.length, address, port );
         // Send to bootstrap server
         datagramSocket.send( datagramPacket );
         // Start listening to Bootstrap Server Response. First 4 bytes are read first to identify length of message.
@@ -43,7 +199,7 @@ public class RequestBuilder
         DatagramPacket incoming = new DatagramPacket( buffer, buffer.length );
         datagramSocket.receive( incoming );
 
-        return new String( incoming.getData(), 0, incoming.getLength() );
+        return new String( incoming.getData(), 0, incoming.getLength(), StandardCharsets.UTF_8 );
     }
 
     public static List<InetSocketAddress> processRegisterResponse( String response )
@@ -69,15 +225,6 @@ public class RequestBuilder
                 System.out.println( "Successful - No nodes in the network yet" );
                 peers = new ArrayList<>();
                 break;
-            case Constants.E0001:
-            case Constants.E0002:
-                System.out.println( "Successful - Found 1/2 other nodes in the network" );
-                peers = new ArrayList<>();
-                while( st.hasMoreTokens() )
-                {
-                    peers.add( new InetSocketAddress( st.nextToken(), Integer.parseInt( st.nextToken() ) ) );
-                }
-                break;
             case Constants.E9999:
                 System.out.println( "Failed. There are errors in your command" );
                 break;
@@ -91,11 +238,47 @@ public class RequestBuilder
                 System.out.println( "Failed, can’t register. BS full." );
                 break;
             default:
-                throw new IllegalStateException( "No proper status code returned" );
+                // Any other code below the errors is the number of peers handed out, see Constants#BOOTSTRAP_PEERS
+                if( code < 0 || code >= Constants.E9995 )
+                {
+                    throw new IllegalStateException( "No proper status code returned" );
+                }
+                System.out.println( "Successful - Found " + code + " other nodes in the network" );
+                peers = new ArrayList<>();
+                while( st.hasMoreTokens() )
+                {
+                    peers.add( new InetSocketAddress( st.nextToken(), Integer.parseInt( st.nextToken() ) ) );
+                }
         }
         return peers;
     }
 
+    /**
+     * @param response response to a registration
+     * @return milliseconds the server asked us to wait before registering again, -1 if it didn't
+     */
+    public static long processRetryAfter( String response )
+    {
+        StringTokenizer st = new StringTokenizer( response, Constants.MSG_SEPARATOR );
+        st.nextToken();
+        if( !Constants.REGOK.equals( st.nextToken() ) || Integer.parseInt( st.nextToken().trim() ) != Constants.E9995 )
+        {
+            return -1;
+        }
+        return Long.parseLong( st.nextToken().trim() );
+    }
+
+    /**
+     * @param response response to a registration
+     * @return true if the server already has us registered under our username
+     */
+    public static boolean isAlreadyRegistered( String response )
+    {
+        StringTokenizer st = new StringTokenizer( response, Constants.MSG_SEPARATOR );
+        st.nextToken();
+        return Constants.REGOK.equals( st.nextToken() ) && Integer.parseInt( st.nextToken().trim() ) == Constants.E9998;
+    }
+
     /**
      * Processes the unregister request's response coming from the server
      *
@@ -115,9 +298,8 @@ public class RequestBuilder
             throw new IllegalStateException( Constants.UNREGOK + " not received" );
         }
 
-        int code = Integer.parseInt( st.nextToken() );
-
-        List<InetSocketAddress> peers = new ArrayList<>();
+        // The bundled bootstrap server leaves the code out on success
+        int code = st.hasMoreTokens() ? Integer.parseInt( st.nextToken().trim() ) : Constants.E0000;
 
         switch( code )
         {
@@ -131,6 +313,23 @@ public class RequestBuilder
         }
     }
 
+    /**
+     * Processes the response of the server to a lease renewal
+     *
+     * @param response response received
+     * @return true if renewed, false if the server doesn't know the node, which has to register again
+     */
+    public static boolean processRenewResponse( String response )
+    {
+        StringTokenizer st = new StringTokenizer( response, Constants.MSG_SEPARATOR );
+        st.nextToken();
+        if( !Constants.RENEWOK.equals( st.nextToken() ) )
+        {
+            throw new IllegalStateException( Constants.RENEWOK + " not received" );
+        }
+        return st.hasMoreTokens() && Integer.parseInt( st.nextToken().trim() ) == Constants.E0000;
+    }
+
     public static Object base64StringToObject( String base64 )
     {
         if( base64.equals( "" ) )
@@ -158,12 +357,88 @@ public class RequestBuilder
         return Base64.getEncoder().encodeToString(baos.toByteArray());
     }
 
+    /**
+     * Wraps a {@link BinaryCodec} payload so that it can travel inside the text based message format.
+     */
+    public static String encodeBinary( byte[] payload )
+    {
+        return Base64.getEncoder().encodeToString( payload );
+    }
+
+    public static byte[] decodeBinary( String base64 )
+    {
+        return Base64.getDecoder().decode( base64 );
+    }
+
+    /**
+     * Decodes a binary payload straight from a received buffer, e.g. a {@link MessageView#fieldBuffer(int)}
+     */
+    public static ByteBuffer decodeBinary( ByteBuffer base64 )
+    {
+        return Base64.getDecoder().decode( base64 );
+    }
+
+    /**
+     * Decodes a binary payload, inflating it if it was sent with the {@link Constants#COMPRESSED_FLAG}
+     */
+    public static ByteBuffer decodeBinary( ByteBuffer base64, boolean compressed )
+    {
+        ByteBuffer payload = decodeBinary( base64 );
+        return compressed ? ByteBuffer.wrap( PayloadCompressor.decompress( payload ) ) : payload;
+    }
+
+    public static byte[] decodeBinary( String base64, boolean compressed )
+    {
+        byte[] payload = decodeBinary( base64 );
+        return compressed ? PayloadCompressor.decompress( payload ) : payload;
+    }
+
+    /**
+     * Encodes free text, e.g. a key or a value of an entry, so that it can't clash with the {@link Constants#MSG_SEPARATOR}
+     */
+    public static String encodeText( String text )
+    {
+        return encodeBinary( text.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    public static String decodeText( String base64 )
+    {
+        return new String( decodeBinary( base64.trim() ), StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Checks whether the message parts carry the {@link Constants#BINARY_FLAG} or the {@link Constants#COMPRESSED_FLAG}
+     * at the given index
+     *
+     * @param parts     message split by {@link Constants#MSG_SEPARATOR}
+     * @param flagIndex index at which the flag is expected
+     * @return true if the flag is present
+     */
+    public static boolean hasBinaryFlag( String[] parts, int flagIndex )
+    {
+        return hasFlag( parts, flagIndex, Constants.BINARY_FLAG ) || hasCompressedFlag( parts, flagIndex );
+    }
+
+    /**
+     * Checks whether the message parts carry the {@link Constants#COMPRESSED_FLAG} at the given index
+     */
+    public static boolean hasCompressedFlag( String[] parts, int flagIndex )
+    {
+        return hasFlag( parts, flagIndex, Constants.COMPRESSED_FLAG );
+    }
+
+    private static boolean hasFlag( String[] parts, int flagIndex, String flag )
+    {
+        return parts.length > flagIndex && flag.equals( parts[flagIndex].trim() );
+    }
+
     public static void sendResponse(DatagramSocket datagramSocket, String response,
                                     InetAddress address, int port) throws IOException {
         logger.debug("Sending response to recipient {}:{}", address, port);
 
         // Create a datagram packet to send to the recipient
-        DatagramPacket datagramPacket = new DatagramPacket(response.getBytes(), response.length(), address, port);
+        byte[] data = response.getBytes( StandardCharsets.UTF_8 );
+        DatagramPacket datagramPacket = new DatagramPacket(data, data.length, address, port);
         // Send to recipient
         datagramSocket.send(datagramPacket);
         logger.debug("Datagram packet sent to {}:{}", address, port);
@@ -0,0 +1,113 @@
+package org.uoh.distributed.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the executors of a node. When {@link Constants#VIRTUAL_THREADS} is set and the JVM supports virtual threads
+ * (JDK 21+), request handling, retries and periodic tasks run on virtual threads, so a handler blocked on a retry no
+ * longer holds an OS thread. Otherwise the usual platform thread pools are returned.
+ * <p>
+ * Virtual threads are looked up reflectively so that the build still targets older JDKs.
+ */
+public class ThreadPools
+{
+    private static final Logger logger = LoggerFactory.getLogger( ThreadPools.class );
+
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR;
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY;
+
+    static
+    {
+        Method executor = null;
+        ThreadFactory factory = null;
+        try
+        {
+            executor = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+            Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+            Class<?> builderClass = Class.forName( "java.lang.Thread$Builder" );
+            builder = builderClass.getMethod( "name", String.class, long.class ).invoke( builder, "virtual-", 0L );
+            factory = (ThreadFactory) builderClass.getMethod( "factory" ).invoke( builder );
+        }
+        catch( ReflectiveOperationException | RuntimeException e )
+        {
+            executor = null;
+            factory = null;
+        }
+        NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = executor;
+        VIRTUAL_THREAD_FACTORY = factory;
+    }
+
+    private ThreadPools()
+    {
+    }
+
+    public static boolean isVirtualThreadsSupported()
+    {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * @return true if the executors created from now on use virtual threads
+     */
+    public static boolean isVirtualThreads()
+    {
+        if( Constants.VIRTUAL_THREADS && !isVirtualThreadsSupported() )
+        {
+            logger.warn( "Virtual threads were asked for, but aren't supported by Java {}. Using platform threads",
+                         System.getProperty( "java.version" ) );
+            Constants.VIRTUAL_THREADS = false;
+        }
+        return Constants.VIRTUAL_THREADS;
+    }
+
+    /**
+     * @return executor for short lived, possibly blocking tasks. One virtual thread per task, or a cached thread pool
+     */
+    public static ExecutorService newTaskExecutor()
+    {
+        if( isVirtualThreads() )
+        {
+            try
+            {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke( null );
+            }
+            catch( ReflectiveOperationException e )
+            {
+                logger.warn( "Unable to create a virtual thread executor. Using platform threads", e );
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * @param threads core pool size. With virtual threads the pool threads are virtual
+     * @return executor for delayed and periodic tasks
+     */
+    public static ScheduledExecutorService newScheduledExecutor( int threads )
+    {
+        if( isVirtualThreads() )
+        {
+            return new ScheduledThreadPoolExecutor( threads, VIRTUAL_THREAD_FACTORY );
+        }
+        return Executors.newScheduledThreadPool( threads );
+    }
+
+    /**
+     * Receive loops stay on platform threads whatever the mode, a selector blocked in a virtual thread would pin its
+     * carrier thread anyway.
+     *
+     * @return executor for long running loops
+     */
+    public static ExecutorService newLoopExecutor()
+    {
+        return Executors.newCachedThreadPool();
+    }
+}
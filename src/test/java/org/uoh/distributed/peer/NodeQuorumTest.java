@@ -0,0 +1,150 @@
+package org.uoh.distributed.peer;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.uoh.distributed.utils.Constants;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Quorum writes and reads of a node on a ring of three, with the replies of the two peers under the control of the
+ * test. With a replication factor of three every node holds a replica of every key.
+ */
+public class NodeQuorumTest
+{
+    private static final String KEY = "key";
+
+    private final InetSocketAddress first = new InetSocketAddress( "127.0.0.1", 40001 );
+    private final InetSocketAddress second = new InetSocketAddress( "127.0.0.1", 40002 );
+
+    private StubCommunicator peers;
+    private Node node;
+
+    @BeforeMethod
+    public void createRing()
+    {
+        assertEquals( Constants.REPLICATION_FACTOR, 3 );
+        assertEquals( Constants.WRITE_QUORUM, 2 );
+        assertEquals( Constants.READ_QUORUM, 2 );
+
+        peers = new StubCommunicator();
+        node = new Node( 40000, "127.0.0.1", peers, new NodeServer( 40000 ) );
+        InetSocketAddress self = new InetSocketAddress( "127.0.0.1", 40000 );
+        node.getRoutingTable().setSelf( new RoutingTableEntry( self, NodeIds.nodeId( self ) ) );
+        node.getRoutingTable().addEntry( new RoutingTableEntry( first, NodeIds.nodeId( first ) ) );
+        node.getRoutingTable().addEntry( new RoutingTableEntry( second, NodeIds.nodeId( second ) ) );
+    }
+
+    @Test
+    public void writeWaitsForAQuorum()
+    {
+        CompletableFuture<Void> put = node.put( KEY, "value" );
+
+        // Stored locally, one more replica is needed
+        assertFalse( put.isDone() );
+        peers.puts.get( first ).complete( true );
+        assertTrue( put.isDone() && !put.isCompletedExceptionally() );
+        assertEquals( peers.written.get( first ).getValue(), "value" );
+    }
+
+    @Test
+    public void writeFailsWithoutAQuorum() throws InterruptedException
+    {
+        CompletableFuture<Void> put = node.put( KEY, "value" );
+        peers.puts.get( first ).completeExceptionally( new RuntimeException( "lost" ) );
+        assertFalse( put.isDone() );
+        peers.puts.get( second ).completeExceptionally( new RuntimeException( "lost" ) );
+
+        try
+        {
+            put.get();
+            fail( "Written without a quorum" );
+        }
+        catch( ExecutionException expected )
+        {
+        }
+    }
+
+    @Test
+    public void readReturnsTheNewestOfAQuorum() throws Exception
+    {
+        node.storeEntry( KEY, new VersionedValue( "old", 1 ) );
+        CompletableFuture<Optional<String>> get = node.get( KEY );
+
+        assertFalse( get.isDone() );
+        peers.gets.get( first ).complete( Optional.of( new VersionedValue( "new", 2 ) ) );
+        assertEquals( get.get(), Optional.of( "new" ) );
+    }
+
+    @Test
+    public void readDoesNotBelieveAMissingEntryWhileAnotherReplicaHasIt() throws Exception
+    {
+        node.storeEntry( KEY, new VersionedValue( "value", 1 ) );
+        CompletableFuture<Optional<String>> get = node.get( KEY );
+
+        // A replica that just took over the range, and doesn't have the entry yet
+        peers.gets.get( first ).complete( Optional.empty() );
+        assertFalse( get.isDone() );
+        peers.gets.get( second ).complete( Optional.of( new VersionedValue( "value", 1 ) ) );
+        assertEquals( get.get(), Optional.of( "value" ) );
+    }
+
+    @Test
+    public void readOfAMissingEntryIsEmpty() throws Exception
+    {
+        CompletableFuture<Optional<String>> get = node.get( KEY );
+        peers.gets.get( first ).complete( Optional.empty() );
+        peers.gets.get( second ).complete( Optional.empty() );
+        assertEquals( get.get(), Optional.empty() );
+    }
+
+    @Test
+    public void readFailsWithoutAQuorum() throws InterruptedException
+    {
+        CompletableFuture<Optional<String>> get = node.get( KEY );
+        peers.gets.get( first ).completeExceptionally( new RuntimeException( "lost" ) );
+        peers.gets.get( second ).completeExceptionally( new RuntimeException( "lost" ) );
+
+        try
+        {
+            get.get();
+            fail( "Read without a quorum" );
+        }
+        catch( ExecutionException expected )
+        {
+        }
+    }
+
+    /**
+     * Hands out a future per peer, which the test completes.
+     */
+    private static class StubCommunicator extends Communicator
+    {
+        private final Map<InetSocketAddress, CompletableFuture<Boolean>> puts = new ConcurrentHashMap<>();
+        private final Map<InetSocketAddress, VersionedValue> written = new ConcurrentHashMap<>();
+        private final Map<InetSocketAddress, CompletableFuture<Optional<VersionedValue>>> gets = new ConcurrentHashMap<>();
+
+        @Override
+        public CompletableFuture<Boolean> putAsync( InetSocketAddress peer, String key, VersionedValue value )
+        {
+            written.put( peer, value );
+            return puts.computeIfAbsent( peer, p -> new CompletableFuture<>() );
+        }
+
+        @Override
+        public CompletableFuture<Optional<VersionedValue>> getAsync( InetSocketAddress peer, String key )
+        {
+            return gets.computeIfAbsent( peer, p -> new CompletableFuture<>() );
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.uoh.distributed.server;
+
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class AdmissionControlTest
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos( 1 );
+
+    @Test
+    public void admitsABurstThenTheRate() throws UnknownHostException
+    {
+        AdmissionControl admission = new AdmissionControl( 10, 3, 60_000 );
+        InetAddress source = InetAddress.getByName( "10.0.0.1" );
+
+        for( int i = 0; i < 3; i++ )
+        {
+            assertEquals( admission.admit( source, 0 ), 0 );
+        }
+        assertTrue( admission.admit( source, 0 ) > 0 );
+
+        // A token every 100 ms
+        assertEquals( admission.admit( source, SECOND / 5 ), 0 );
+    }
+
+    @Test
+    public void spreadsOutTheNodesTurnedAway() throws UnknownHostException
+    {
+        AdmissionControl admission = new AdmissionControl( 10, 1, 60_000 );
+        InetAddress source = InetAddress.getByName( "10.0.0.1" );
+        assertEquals( admission.admit( source, 0 ), 0 );
+
+        long previous = 0;
+        for( int i = 0; i < 5; i++ )
+        {
+            long retryAfterMs = admission.admit( source, 0 );
+            assertEquals( retryAfterMs, previous + 100 );
+            previous = retryAfterMs;
+        }
+    }
+
+    @Test
+    public void capsTheRetryAfter() throws UnknownHostException
+    {
+        AdmissionControl admission = new AdmissionControl( 1, 1, 2_000 );
+        InetAddress source = InetAddress.getByName( "10.0.0.1" );
+        long retryAfterMs = 0;
+        for( int i = 0; i < 10; i++ )
+        {
+            retryAfterMs = admission.admit( source, 0 );
+        }
+        assertEquals( retryAfterMs, 2_000 );
+    }
+
+    @Test
+    public void keepsABucketPerSource() throws UnknownHostException
+    {
+        AdmissionControl admission = new AdmissionControl( 1, 1, 60_000 );
+        InetAddress first = InetAddress.getByName( "10.0.0.1" );
+        InetAddress second = InetAddress.getByName( "10.0.0.2" );
+
+        assertEquals( admission.admit( first, 0 ), 0 );
+        assertTrue( admission.admit( first, 0 ) > 0 );
+        assertEquals( admission.admit( second, 0 ), 0 );
+        assertEquals( admission.size(), 2 );
+    }
+
+    @Test
+    public void evictsTheBucketsThatFilledUp() throws UnknownHostException
+    {
+        AdmissionControl admission = new AdmissionControl( 1, 1, 60_000 );
+        InetAddress first = InetAddress.getByName( "10.0.0.1" );
+        InetAddress second = InetAddress.getByName( "10.0.0.2" );
+        admission.admit( first, 0 );
+        admission.admit( second, SECOND / 2 );
+
+        admission.evictIdle( SECOND );
+        assertEquals( admission.size(), 1 );
+        admission.evictIdle( 2 * SECOND );
+        assertEquals( admission.size(), 0 );
+    }
+
+    @Test
+    public void admitsEverythingWithoutARate() throws UnknownHostException
+    {
+        AdmissionControl admission = new AdmissionControl( 0, 1, 60_000 );
+        InetAddress source = InetAddress.getByName( "10.0.0.1" );
+        for( int i = 0; i < 100; i++ )
+        {
+            assertEquals( admission.admit( source, 0 ), 0 );
+        }
+        assertEquals( admission.size(), 0 );
+    }
+}
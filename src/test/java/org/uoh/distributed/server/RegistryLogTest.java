@@ -0,0 +1,179 @@
+package org.uoh.distributed.server;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class RegistryLogTest
+{
+    private Path directory;
+
+    @BeforeMethod
+    public void createDirectory() throws IOException
+    {
+        directory = Files.createTempDirectory( "registry" );
+    }
+
+    @AfterMethod
+    public void deleteDirectory() throws IOException
+    {
+        try (Stream<Path> files = Files.walk( directory ))
+        {
+            files.sorted( Comparator.reverseOrder() ).forEach( file -> file.toFile().delete() );
+        }
+    }
+
+    @Test
+    public void replaysWhatWasAppended() throws IOException
+    {
+        try (RegistryLog log = new RegistryLog( directory, 4096, records -> { } ))
+        {
+            assertEquals( log.replay( new Recorder() ), 0 );
+            log.appendRegister( "10.0.0.1", 5000, "first" );
+            log.appendRegister( "10.0.0.2", 5000, "second" );
+            log.appendUnregister( "10.0.0.1", 5000 );
+        }
+
+        Recorder recorder = new Recorder();
+        assertEquals( new RegistryLog( directory, 4096, records -> { } ).replay( recorder ), 3 );
+        assertEquals( recorder.live, Map.of( "10.0.0.2:5000", "second" ) );
+    }
+
+    @Test
+    public void appendsAfterTheReplayedRecords() throws IOException
+    {
+        try (RegistryLog log = new RegistryLog( directory, 4096, records -> { } ))
+        {
+            log.replay( new Recorder() );
+            log.appendRegister( "10.0.0.1", 5000, "first" );
+        }
+        try (RegistryLog log = new RegistryLog( directory, 4096, records -> { } ))
+        {
+            log.replay( new Recorder() );
+            log.appendRegister( "10.0.0.2", 5000, "second" );
+        }
+
+        Recorder recorder = new Recorder();
+        new RegistryLog( directory, 4096, records -> { } ).replay( recorder );
+        assertEquals( recorder.live, Map.of( "10.0.0.1:5000", "first", "10.0.0.2:5000", "second" ) );
+    }
+
+    @Test
+    public void stopsAtATornRecord() throws IOException
+    {
+        int end;
+        try (RegistryLog log = new RegistryLog( directory, 4096, records -> { } ))
+        {
+            log.replay( new Recorder() );
+            log.appendRegister( "10.0.0.1", 5000, "first" );
+            end = log.position();
+            log.appendRegister( "10.0.0.2", 5000, "second" );
+        }
+
+        // Flip a byte of the payload of the second record, so that it fails its checksum
+        try (FileChannel channel = FileChannel.open( directory.resolve( "registry.log" ), StandardOpenOption.READ, StandardOpenOption.WRITE ))
+        {
+            channel.write( ByteBuffer.wrap( new byte[]{ 42 } ), end + 8 + 3 );
+        }
+
+        Recorder recorder = new Recorder();
+        RegistryLog log = new RegistryLog( directory, 4096, records -> { } );
+        assertEquals( log.replay( recorder ), 1 );
+        assertEquals( recorder.live, Map.of( "10.0.0.1:5000", "first" ) );
+        assertEquals( log.position(), end );
+    }
+
+    @Test
+    public void compactsIntoASnapshot() throws IOException
+    {
+        Map<String, String> live = new LinkedHashMap<>();
+        try (RegistryLog log = new RegistryLog( directory, 4096, records -> { } ))
+        {
+            log.replay( new Recorder() );
+            for( int i = 0; i < 10; i++ )
+            {
+                log.appendRegister( "10.0.0." + i, 5000, "node" + i );
+                live.put( "10.0.0." + i + ":5000", "node" + i );
+            }
+            log.compact( records -> live.forEach( ( address, username ) -> records.register( ip( address ), 5000, username ) ) );
+            assertEquals( log.position(), 0 );
+
+            log.appendUnregister( "10.0.0.0", 5000 );
+            live.remove( "10.0.0.0:5000" );
+        }
+
+        assertTrue( Files.exists( directory.resolve( "registry.snapshot" ) ) );
+        Recorder recorder = new Recorder();
+        assertEquals( new RegistryLog( directory, 4096, records -> { } ).replay( recorder ), 11 );
+        assertEquals( recorder.live, live );
+    }
+
+    @Test
+    public void compactsOnceTheLogIsFull() throws IOException
+    {
+        Map<String, String> live = new LinkedHashMap<>();
+        int[] compactions = { 0 };
+        try (RegistryLog log = new RegistryLog( directory, 256, records -> {
+            compactions[0]++;
+            live.forEach( ( address, username ) -> records.register( ip( address ), 5000, username ) );
+        } ))
+        {
+            log.replay( new Recorder() );
+            for( int i = 0; i < 50; i++ )
+            {
+                // Every other node leaves again, so that the snapshots stay smaller than the log
+                log.appendRegister( "10.0.0." + i, 5000, "node" + i );
+                live.put( "10.0.0." + i + ":5000", "node" + i );
+                if( i % 2 == 1 )
+                {
+                    log.appendUnregister( "10.0.0." + i, 5000 );
+                    live.remove( "10.0.0." + i + ":5000" );
+                }
+            }
+        }
+
+        assertTrue( compactions[0] > 0 );
+        Recorder recorder = new Recorder();
+        new RegistryLog( directory, 256, records -> { } ).replay( recorder );
+        assertEquals( recorder.live, live );
+    }
+
+    private static String ip( String address )
+    {
+        return address.substring( 0, address.indexOf( ':' ) );
+    }
+
+    /**
+     * Applies the records to a map of live registrations, like the registry does.
+     */
+    private static class Recorder implements RegistryLog.Records
+    {
+        private final Map<String, String> live = new LinkedHashMap<>();
+
+        @Override
+        public void register( String ip, int port, String username )
+        {
+            live.put( ip + ':' + port, username );
+        }
+
+        @Override
+        public void unregister( String ip, int port )
+        {
+            live.remove( ip + ':' + port );
+        }
+    }
+}
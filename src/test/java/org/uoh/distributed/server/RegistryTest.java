@@ -0,0 +1,102 @@
+package org.uoh.distributed.server;
+
+import org.testng.annotations.Test;
+import org.uoh.distributed.utils.Constants;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class RegistryTest
+{
+    private static final long LEASE_MS = 60_000;
+
+    @Test
+    public void handsOutDistinctPeersOtherThanTheNode()
+    {
+        Registry registry = new Registry( 2, LEASE_MS, 100 );
+        assertEquals( registry.register( new Neighbour( "10.0.0.1", 5000, "first" ) ).getCode(), Constants.E0000 );
+        assertEquals( registry.register( new Neighbour( "10.0.0.2", 5000, "second" ) ).getCode(), 1 );
+
+        for( int i = 3; i < 20; i++ )
+        {
+            Registry.Registration registration = registry.register( new Neighbour( "10.0.0." + i, 5000, "node" + i ) );
+            assertEquals( registration.getCode(), 2 );
+            assertEquals( new HashSet<>( registration.getPeers() ).size(), 2 );
+            assertFalse( addresses( registration.getPeers() ).contains( "10.0.0." + i ) );
+        }
+        assertEquals( registry.size(), 19 );
+    }
+
+    @Test
+    public void registeringAgainRenewsAndHandsOutFreshPeers()
+    {
+        Registry registry = new Registry( 2, LEASE_MS, 100 );
+        Neighbour node = new Neighbour( "10.0.0.1", 5000, "node" );
+        registry.register( node );
+        registry.register( new Neighbour( "10.0.0.2", 5000, "second" ) );
+        registry.register( new Neighbour( "10.0.0.3", 5000, "third" ) );
+
+        Registry.Registration again = registry.register( new Neighbour( "10.0.0.1", 5000, "node" ) );
+        assertEquals( again.getCode(), 2 );
+        assertEquals( addresses( again.getPeers() ), Set.of( "10.0.0.2", "10.0.0.3" ) );
+        assertEquals( registry.size(), 3 );
+    }
+
+    @Test
+    public void refusesAnAddressTakenByAnotherUsername()
+    {
+        Registry registry = new Registry( 2, LEASE_MS, 100 );
+        registry.register( new Neighbour( "10.0.0.1", 5000, "node" ) );
+        assertEquals( registry.register( new Neighbour( "10.0.0.1", 5000, "other" ) ).getCode(), Constants.E9997 );
+    }
+
+    @Test
+    public void dropsTheLapsedLeases()
+    {
+        Registry registry = new Registry( 2, LEASE_MS, 100 );
+        registry.register( new Neighbour( "10.0.0.1", 5000, "first" ) );
+        registry.register( new Neighbour( "10.0.0.2", 5000, "second" ) );
+        long now = System.currentTimeMillis();
+
+        assertTrue( registry.renew( "10.0.0.2", 5000 ) );
+        assertEquals( registry.expire( now + LEASE_MS / 2 ).size(), 0 );
+        assertEquals( registry.expire( now + 2 * LEASE_MS ).size(), 2 );
+        assertFalse( registry.renew( "10.0.0.1", 5000 ) );
+        assertEquals( registry.size(), 0 );
+    }
+
+    @Test
+    public void recoversFromItsLog() throws IOException
+    {
+        Path directory = Files.createTempDirectory( "registry" );
+        Registry registry = new Registry( 2, LEASE_MS, 100 );
+        RegistryLog log = new RegistryLog( directory, 4096, registry::writeTo );
+        registry.recoverFrom( log );
+        registry.register( new Neighbour( "10.0.0.1", 5000, "first" ) );
+        registry.register( new Neighbour( "10.0.0.2", 5000, "second" ) );
+        registry.register( new Neighbour( "10.0.0.3", 5000, "third" ) );
+        registry.unregister( "10.0.0.2", 5000 );
+        registry.compact();
+        registry.unregister( "10.0.0.3", 5000 );
+        registry.flush();
+
+        Registry recovered = new Registry( 2, LEASE_MS, 100 );
+        assertEquals( recovered.recoverFrom( new RegistryLog( directory, 4096, recovered::writeTo ) ), 1 );
+        assertEquals( addresses( recovered.getNodes() ), Set.of( "10.0.0.1" ) );
+        assertTrue( recovered.renew( "10.0.0.1", 5000 ) );
+    }
+
+    private static Set<String> addresses( List<Neighbour> nodes )
+    {
+        return nodes.stream().map( Neighbour::getIp ).collect( Collectors.toSet() );
+    }
+}
@@ -0,0 +1,112 @@
+package org.uoh.distributed.server;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TimingWheelTest
+{
+    private static final long TICK_MS = 10;
+
+    @Test
+    public void expiresOnTheTickOfTheDeadline()
+    {
+        TimingWheel<String> wheel = new TimingWheel<>( TICK_MS, 0 );
+        wheel.schedule( "a", 55 );
+
+        // Rounded up to the next tick, never early
+        assertEquals( wheel.advance( 59 ), Collections.emptyList() );
+        assertEquals( wheel.advance( 60 ), Collections.singletonList( "a" ) );
+        assertEquals( wheel.size(), 0 );
+    }
+
+    @Test
+    public void cascadesTimersDownTheLevels()
+    {
+        TimingWheel<Long> wheel = new TimingWheel<>( TICK_MS, 0 );
+        // Beyond level 0, 1 and 2, so that each has to come down one or more levels before it expires
+        List<Long> deadlines = Arrays.asList( 64 * TICK_MS, 65 * TICK_MS, 4096 * TICK_MS + 5, 300_000 * TICK_MS, 63 * TICK_MS );
+        deadlines.forEach( deadline -> wheel.schedule( deadline, deadline ) );
+
+        List<Long> expired = new ArrayList<>();
+        for( long now = 0; now <= 300_000 * TICK_MS; now += TICK_MS )
+        {
+            for( long deadline : wheel.advance( now ) )
+            {
+                assertTrue( deadline <= now && now - deadline < TICK_MS, deadline + " expired at " + now );
+                expired.add( deadline );
+            }
+        }
+
+        List<Long> sorted = new ArrayList<>( deadlines );
+        Collections.sort( sorted );
+        assertEquals( expired, sorted );
+    }
+
+    @Test
+    public void expiresTimersBeyondTheLastLevel()
+    {
+        TimingWheel<String> wheel = new TimingWheel<>( 1, 0 );
+        long deadline = 3L << 24;
+        wheel.schedule( "far", deadline );
+
+        assertEquals( wheel.advance( deadline - 1 ), Collections.emptyList() );
+        assertEquals( wheel.advance( deadline ), Collections.singletonList( "far" ) );
+    }
+
+    @Test
+    public void rescheduleAndCancel()
+    {
+        TimingWheel<String> wheel = new TimingWheel<>( TICK_MS, 0 );
+        TimingWheel.Timer<String> renewed = wheel.schedule( "renewed", 100 );
+        TimingWheel.Timer<String> cancelled = wheel.schedule( "cancelled", 100 );
+        wheel.schedule( "kept", 100 );
+
+        wheel.reschedule( renewed, 1000 );
+        wheel.cancel( cancelled );
+        wheel.cancel( cancelled );
+        assertEquals( wheel.size(), 2 );
+        assertEquals( wheel.advance( 100 ), Collections.singletonList( "kept" ) );
+        assertEquals( wheel.advance( 999 ), Collections.emptyList() );
+        assertEquals( wheel.advance( 1000 ), Collections.singletonList( "renewed" ) );
+
+        // An expired timer can be scheduled again
+        wheel.reschedule( renewed, 2000 );
+        assertEquals( wheel.size(), 1 );
+        assertEquals( wheel.advance( 2000 ), Collections.singletonList( "renewed" ) );
+    }
+
+    @Test
+    public void matchesASortedList()
+    {
+        Random random = new Random( 1 );
+        TimingWheel<Integer> wheel = new TimingWheel<>( 1, 0 );
+        long[] deadlines = new long[2000];
+        for( int i = 0; i < deadlines.length; i++ )
+        {
+            deadlines[i] = random.nextInt( 1 << 20 );
+            wheel.schedule( i, deadlines[i] );
+        }
+
+        long now = 0;
+        int expired = 0;
+        while( expired < deadlines.length )
+        {
+            now += 1 + random.nextInt( 5000 );
+            for( int i : wheel.advance( now ) )
+            {
+                assertTrue( deadlines[i] <= now, "Timer " + i + " of " + deadlines[i] + " expired early at " + now );
+                assertTrue( deadlines[i] > now - 5001, "Timer " + i + " of " + deadlines[i] + " expired late at " + now );
+                expired++;
+            }
+        }
+        assertEquals( wheel.size(), 0 );
+    }
+}
@@ -0,0 +1,173 @@
+package org.uoh.distributed.utils;
+
+import org.testng.annotations.Test;
+import org.uoh.distributed.peer.MemberUpdate;
+import org.uoh.distributed.peer.RoutingDelta;
+import org.uoh.distributed.peer.RoutingTableEntry;
+import org.uoh.distributed.peer.VersionedValue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class BinaryCodecTest
+{
+    private static final RoutingTableEntry IPV4 = new RoutingTableEntry( new InetSocketAddress( "127.0.0.1", 44444 ), -42L );
+    private static final RoutingTableEntry IPV6 = new RoutingTableEntry( new InetSocketAddress( "::1", 1 ), Long.MAX_VALUE );
+    private static final RoutingTableEntry UNRESOLVED = new RoutingTableEntry( InetSocketAddress.createUnresolved( "node.example", 65535 ), 1 );
+
+    @Test
+    public void routingEntriesRoundTrip()
+    {
+        Set<RoutingTableEntry> entries = new HashSet<>( Arrays.asList( IPV4, IPV6, UNRESOLVED ) );
+        assertEquals( BinaryCodec.decodeRoutingEntries( BinaryCodec.encodeRoutingEntries( entries ) ), entries );
+    }
+
+    @Test
+    public void routingDeltaRoundTrip()
+    {
+        RoutingDelta delta = new RoutingDelta( 7, 3, 9, false, Arrays.asList( IPV4, UNRESOLVED ), Collections.singletonList( IPV6 ) );
+        RoutingDelta decoded = BinaryCodec.decodeRoutingDelta( BinaryCodec.encodeRoutingDelta( delta ) );
+
+        assertEquals( decoded.getEpoch(), 7 );
+        assertEquals( decoded.getFromVersion(), 3 );
+        assertEquals( decoded.getToVersion(), 9 );
+        assertEquals( decoded.isFull(), false );
+        assertEquals( new HashSet<>( decoded.getAdded() ), new HashSet<>( delta.getAdded() ) );
+        assertEquals( new HashSet<>( decoded.getRemoved() ), new HashSet<>( delta.getRemoved() ) );
+    }
+
+    @Test
+    public void memberUpdatesRoundTrip()
+    {
+        List<MemberUpdate> updates = Arrays.asList( new MemberUpdate( IPV4, MemberUpdate.Status.values()[0], 0 ),
+                                                    new MemberUpdate( IPV6, MemberUpdate.Status.values()[MemberUpdate.Status.values().length - 1], 1 << 20 ) );
+        List<MemberUpdate> decoded = BinaryCodec.decodeMemberUpdates( BinaryCodec.encodeMemberUpdates( updates ) );
+
+        assertEquals( decoded.size(), updates.size() );
+        for( int i = 0; i < updates.size(); i++ )
+        {
+            assertEquals( decoded.get( i ).getEntry(), updates.get( i ).getEntry() );
+            assertEquals( decoded.get( i ).getStatus(), updates.get( i ).getStatus() );
+            assertEquals( decoded.get( i ).getIncarnation(), updates.get( i ).getIncarnation() );
+        }
+    }
+
+    @Test
+    public void entryTableRoundTrip()
+    {
+        Map<String, String> table = new HashMap<>();
+        table.put( "", "empty key" );
+        table.put( "ключ", "värde ~ with the separator" );
+        for( int i = 0; i < 100; i++ )
+        {
+            table.put( "key" + i, String.join( "", Collections.nCopies( i, "v" ) ) );
+        }
+        assertEquals( BinaryCodec.decodeEntryTable( BinaryCodec.encodeEntryTable( table ) ), table );
+    }
+
+    @Test
+    public void versionedEntriesRoundTrip()
+    {
+        Map<String, VersionedValue> entries = new HashMap<>();
+        entries.put( "a", new VersionedValue( "first", 0 ) );
+        entries.put( "b", new VersionedValue( "second", Long.MAX_VALUE ) );
+        Map<String, VersionedValue> decoded = BinaryCodec.decodeVersionedEntries( BinaryCodec.encodeVersionedEntries( entries ) );
+
+        assertEquals( decoded.keySet(), entries.keySet() );
+        entries.forEach( ( key, value ) -> {
+            assertEquals( decoded.get( key ).getValue(), value.getValue() );
+            assertEquals( decoded.get( key ).getVersion(), value.getVersion() );
+        } );
+    }
+
+    @Test
+    public void varLongRoundTrip()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 10 * 5 );
+        long[] values = { 0, 127, 128, Long.MAX_VALUE, -1 };
+        for( long value : values )
+        {
+            BinaryCodec.writeVarLong( buffer, value );
+        }
+        buffer.flip();
+        for( long value : values )
+        {
+            assertEquals( BinaryCodec.readVarLong( buffer ), value );
+        }
+        assertEquals( buffer.remaining(), 0 );
+    }
+
+    @Test( expectedExceptions = IllegalArgumentException.class )
+    public void rejectsCountBeyondPayload()
+    {
+        // An entry table claiming a million entries, with none following
+        BinaryCodec.decodeEntryTable( withCount( BinaryCodec.encodeEntryTable( Collections.emptyMap() ), 1_000_000 ) );
+    }
+
+    @Test( expectedExceptions = IllegalArgumentException.class )
+    public void rejectsNegativeCount()
+    {
+        BinaryCodec.decodeVersionedEntries( withCount( BinaryCodec.encodeVersionedEntries( Collections.emptyMap() ), -1 ) );
+    }
+
+    @Test( expectedExceptions = IllegalArgumentException.class )
+    public void rejectsRoutingEntryCountBeyondPayload()
+    {
+        BinaryCodec.decodeRoutingEntries( withCount( BinaryCodec.encodeRoutingEntries( Collections.emptyList() ), Integer.MAX_VALUE ) );
+    }
+
+    @Test( expectedExceptions = IllegalArgumentException.class )
+    public void rejectsStringLengthBeyondPayload()
+    {
+        byte[] encoded = BinaryCodec.encodeEntryTable( Collections.singletonMap( "key", "value" ) );
+        // Header and count take 3 bytes, the length of the key follows
+        encoded[3] = 100;
+        BinaryCodec.decodeEntryTable( encoded );
+    }
+
+    @Test( expectedExceptions = IllegalArgumentException.class )
+    public void rejectsHostLengthBeyondPayload()
+    {
+        byte[] encoded = BinaryCodec.encodeRoutingEntries( Collections.singletonList( UNRESOLVED ) );
+        // Header, count, node ID 1 and the family take 5 bytes, the length of the host follows
+        encoded[5] = 100;
+        BinaryCodec.decodeRoutingEntries( encoded );
+    }
+
+    @Test
+    public void rejectsUnexpectedHeader()
+    {
+        byte[] encoded = BinaryCodec.encodeEntryTable( Collections.emptyMap() );
+        try
+        {
+            BinaryCodec.decodeVersionedEntries( encoded );
+        }
+        catch( IllegalArgumentException e )
+        {
+            assertTrue( e.getMessage().contains( "header" ) );
+            return;
+        }
+        throw new AssertionError( "Decoded a payload of another kind" );
+    }
+
+    /**
+     * Replaces the count that follows the header of an empty collection.
+     */
+    private static byte[] withCount( byte[] empty, long count )
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 2 + 10 );
+        buffer.put( empty, 0, 2 );
+        BinaryCodec.writeVarLong( buffer, count );
+        return Arrays.copyOf( buffer.array(), buffer.position() );
+    }
+}